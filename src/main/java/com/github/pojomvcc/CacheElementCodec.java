@@ -0,0 +1,67 @@
+package com.github.pojomvcc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CacheElementCodec} converts {@link K}s and {@link V}s to and from a compact binary form, so that they
+ * can be stored outside of the heap (for example by a {@link CacheVersionExpirationHandler} that archives history
+ * to disk).
+ * <p/>
+ * Where a {@link CacheElementFactory} knows how to copy a {@link V}, a {@link CacheElementCodec} knows how to write
+ * it out and read it back again. An encoded {@link V} must decode to a {@link V} that is equivalent to a clone of
+ * the original.
+ * <p/>
+ * Equal {@link K}s must always encode to the same bytes, as storage tiers may compare encoded keys rather than
+ * decoding them.
+ *
+ * @author Aidan Morgan
+ * @see com.github.pojomvcc.codec.PojoCodec
+ */
+public interface CacheElementCodec<K, V> {
+  /**
+   * Writes the provided {@link K} to the provided {@code java.nio.ByteBuffer}, starting at its position.
+   *
+   * @param key    the {@link K} to encode.
+   * @param buffer the {@code java.nio.ByteBuffer} to write to.
+   * @throws java.nio.BufferOverflowException if the {@code java.nio.ByteBuffer} is too small, the caller will
+   *                                          retry with a larger buffer.
+   */
+  public void encodeKey(K key, ByteBuffer buffer);
+
+  /**
+   * Reads a {@link K} written by {@link CacheElementCodec#encodeKey(Object, ByteBuffer)} from the provided
+   * {@code java.nio.ByteBuffer}, starting at its position.
+   *
+   * @param buffer the {@code java.nio.ByteBuffer} to read from.
+   * @return the decoded {@link K}.
+   */
+  public K decodeKey(ByteBuffer buffer);
+
+  /**
+   * Writes the provided {@link V} to the provided {@code java.nio.ByteBuffer}, starting at its position.
+   *
+   * @param element the {@link V} to encode.
+   * @param buffer  the {@code java.nio.ByteBuffer} to write to.
+   * @throws java.nio.BufferOverflowException if the {@code java.nio.ByteBuffer} is too small, the caller will
+   *                                          retry with a larger buffer.
+   */
+  public void encode(V element, ByteBuffer buffer);
+
+  /**
+   * Reads a {@link V} written by {@link CacheElementCodec#encode(Object, ByteBuffer)} from the provided
+   * {@code java.nio.ByteBuffer}, starting at its position.
+   *
+   * @param buffer the {@code java.nio.ByteBuffer} to read from.
+   * @return the decoded {@link V}.
+   */
+  public V decode(ByteBuffer buffer);
+
+  /**
+   * Returns an estimate of the number of bytes that {@link CacheElementCodec#encode(Object, ByteBuffer)} will write
+   * for the provided {@link V}, used to size buffers. Returns {@code -1} if no estimate can be made.
+   *
+   * @param element
+   * @return
+   */
+  public int estimateSize(V element);
+}
@@ -5,10 +5,10 @@ package com.github.pojomvcc;
  * {@link V} instances and also providing the merge behaviour when the
  * {@link RootObjectCache} needs to merge back to a {@link V}.
  * <p/>
- * Implementations of this interface should be relatively performant as they will
- * potentially hold the {@link com.github.pojomvcc.RootObjectCache)'s
- * {@code java.util.concurrent.locks.ReadWriteLock} and therefore prevent other operations
- * against the cache from being performed if used in a multi-threaded environment.
+ * Clones and merges for a commit are performed before the {@link com.github.pojomvcc.RootObjectCache}'s
+ * commit lock is taken, against the leading versions observed at the time. Only when another commit has changed
+ * one of those leading versions in the meantime (and retrying outside of the lock has not succeeded) is the merge
+ * repeated whilst holding the lock, so implementations should still be reasonably performant.
  *
  * @author Aidan Morgan
  */
@@ -1,14 +1,37 @@
 package com.github.pojomvcc;
 
+import com.github.pojomvcc.util.OffHeapArena;
+
 import java.util.*;
 
 /**
  * Class that contains all revisions for an {@code V}.
+ * <p/>
+ * The revision history is stored as a version chain of parallel arrays sorted by ascending revision: a
+ * {@code long[]} of revision numbers, an {@code Object[]} of {@link V}s and a {@code byte[]} of
+ * {@link CacheRevisionType}s. Finding the {@link V} for a revision is a binary search over the primitive
+ * revision numbers, so no boxing or allocation is required, and each version only costs a slot in each array
+ * rather than a {@code java.util.TreeMap} entry, a {@code Long} and a {@link CacheElementRevision}.
+ * <p/>
+ * The arrays are published as an immutable {@link CacheElementRevisions.Chain} through a {@code volatile} field, so
+ * any number of threads can read the history without locking whilst a single writer appends to it. Appending
+ * a version writes into the unused capacity of the arrays before publishing a new {@link CacheElementRevisions.Chain}
+ * (readers of the previous {@link CacheElementRevisions.Chain} never look past their own count), all other
+ * modifications copy the arrays. Methods that modify the history are {@code synchronized}.
+ * <p/>
+ * Versions other than the leading one can be compacted once they have been superseded (see
+ * {@link CacheElementRevisions#compactHistory(OffHeapArena)}). If the {@link CacheElementFactory} is a
+ * {@link DeltaCacheElementFactory} a version can be replaced by the delta from the version after it, and a full
+ * version can be moved into an {@link OffHeapArena}. The slot in the {@code Object[]} then holds the delta or an
+ * {@link OffHeapArena.Ref} and the {@link V} is rebuilt when it is read.
  *
  * @author Aidan Morgan
  */
 public class CacheElementRevisions<K, V> {
-  private static final Comparator<Long> REVISION_COMPARATOR = new AscendingRevisionComparator();
+  /**
+   * The {@link CacheRevisionType}s indexed by the values stored in {@link CacheElementRevisions.Chain#states}.
+   */
+  private static final CacheRevisionType[] REVISION_TYPES = CacheRevisionType.values();
 
   /**
    * The {@link K} this set of {@link CacheElementRevisions} is for.
@@ -16,10 +39,15 @@ public class CacheElementRevisions<K, V> {
   private K cacheKey;
 
   /**
-   * The {@code java.util.SortedMap} of {@link CacheElementRevision}s that make up this revision
-   * history.
+   * The currently published version chain.
+   */
+  private volatile Chain chain = Chain.EMPTY;
+
+  /**
+   * The number of versions, from the oldest, that {@link CacheElementRevisions#compactHistory(OffHeapArena)} has
+   * already visited. Guarded by {@code this}.
    */
-  private SortedMap<Long, CacheElementRevision<K, V>> revisions;
+  private int compacted;
 
   /**
    * A reference to the {@link RootObjectCache} for this revision history.
@@ -35,7 +63,6 @@ public class CacheElementRevisions<K, V> {
    */
   public CacheElementRevisions(RootObjectCache<K, V> rootObjectCache, K oid) {
     this.rootObjectCache = rootObjectCache;
-    this.revisions = new TreeMap<Long, CacheElementRevision<K, V>>(REVISION_COMPARATOR);
     this.cacheKey = oid;
   }
 
@@ -45,44 +72,74 @@ public class CacheElementRevisions<K, V> {
    * @return
    */
   public V getLeading() {
-    Long lastRevision = revisions.lastKey();
-    return revisions.get(lastRevision).getElement();
+    Chain c = chain;
+
+    if (c.count == 0) {
+      throw new ObjectCacheException("There are no revisions in this CacheElementRevisions. This is a bug, there should be at least one.");
+    }
+
+    return c.elementAt(c.count - 1);
+  }
+
+  /**
+   * Returns the leading (latest) version of the enclosed {@link V}, including the revision it was recorded at.
+   * The revision and {@link V} are always read from the same version, even if a commit is appending to this
+   * history concurrently.
+   *
+   * @return
+   */
+  public CacheElementRevision<K, V> getLeadingVersion() {
+    Chain c = chain;
+
+    if (c.count == 0) {
+      throw new ObjectCacheException("There are no revisions in this CacheElementRevisions. This is a bug, there should be at least one.");
+    }
+
+    int index = c.count - 1;
+    return new CacheElementRevision<K, V>(cacheKey, c.<V>elementAt(index), c.revisionNumbers[index], c.stateAt(index));
+  }
+
+  /**
+   * Returns the revision of the leading (latest) version of the enclosed {@link V}.
+   *
+   * @return
+   */
+  public long getLeadingRevision() {
+    Chain c = chain;
+
+    if (c.count == 0) {
+      throw new ObjectCacheException("There are no revisions in this CacheElementRevisions. This is a bug, there should be at least one.");
+    }
+
+    return c.revisionNumbers[c.count - 1];
   }
 
   /**
    * Returns the {@link V} with the enclosed {@link K} at the provided revision.
    * <p/>
-   * This works by moving through the recorded revision history and finding the {@link CacheElementRevision}
-   * in the internal store that has the highest revision that is less than the provided revision. This allows the storage
-   * of deltas-only whilst being able to retrieve the object state at a specific revision.
+   * This works by finding the version in the recorded revision history that has the highest revision that is
+   * less than or equal to the provided revision. This allows the storage of deltas-only whilst being able to
+   * retrieve the object state at a specific revision.
    *
    * @param revision
    * @return
    */
   public V get(long revision) {
-    if (revisions.isEmpty()) {
-      throw new ObjectCacheException("There are no revisions in this CacheElementRevisions. This is a bug, there should be at least one.");
-    }
+    Chain c = chain;
+    int index = c.floorIndex(revision);
 
-    CacheElementRevision<K, V> rev = null;
-
-    // if the key is in the map just return it straight away.
-    if (revisions.containsKey(revision)) {
-      rev = revisions.get(revision);
-    } else {
-      // head map will return a SortedMap of all values that have a revision STRICTLY less than the
-      // value provided.
-      SortedMap<Long, CacheElementRevision<K, V>> vals = revisions.headMap(revision);
-      if (null != vals && !vals.isEmpty()) {
-        rev = vals.get(vals.firstKey());
+    if (index >= 0) {
+      // if the revision has been deleted then we return null and pretend it never existed.
+      if (CacheRevisionType.DELETED == c.stateAt(index)) {
+        return null;
       }
+
+      return c.<V>elementAt(index);
     }
 
     // If the revision element was not found in memory, then we need to go to the CacheExpirationHandler and beg for
     // it (nicely of course).
-    if (null == rev) {
-      rev = rootObjectCache.getCacheExpiry().getHandler().retrieve(cacheKey, revision);
-    }
+    CacheElementRevision<K, V> rev = rootObjectCache.getCacheExpiry().getHandler().retrieve(cacheKey, revision);
 
     // if the revision is null at this point there is nothing we can do, it's not in the list.
     if (null == rev) {
@@ -97,6 +154,20 @@ public class CacheElementRevisions<K, V> {
     return rev.getElement();
   }
 
+  /**
+   * Returns the revision of the version (which may be a removal) that is visible at the provided revision, or
+   * {@code -1} if there is no such version in memory.
+   *
+   * @param revision
+   * @return
+   */
+  public long getRevisionAt(long revision) {
+    Chain c = chain;
+    int index = c.floorIndex(revision);
+
+    return index >= 0 ? c.revisionNumbers[index] : -1;
+  }
+
   /**
    * Returns the {@link K} for the enclosed {@link V}.
    *
@@ -115,13 +186,12 @@ public class CacheElementRevisions<K, V> {
    * @param key the {@link K} of the {@link V} to add.
    * @param ele the {@link V} to add.
    */
-  public void addElement(long l, K key, V ele) {
+  public synchronized void addElement(long l, K key, V ele) {
     if (null == ele) {
       throw new ObjectCacheException("Element cannot be null.");
     }
 
-    CacheElementRevision<K, V> cr = new CacheElementRevision<K, V>(key, ele, l, CacheRevisionType.ADDED);
-    revisions.put(l, cr);
+    put(l, ele, CacheRevisionType.ADDED);
   }
 
   /**
@@ -132,13 +202,12 @@ public class CacheElementRevisions<K, V> {
    * @param l
    * @param ele
    */
-  public void addModification(long l, K key, V ele) {
+  public synchronized void addModification(long l, K key, V ele) {
     if (null == ele) {
       throw new ObjectCacheException("Element cannot be null.");
     }
 
-    CacheElementRevision<K, V> cr = new CacheElementRevision<K, V>(key, ele, l, CacheRevisionType.MODIFIED);
-    revisions.put(l, cr);
+    put(l, ele, CacheRevisionType.MODIFIED);
   }
 
   /**
@@ -149,13 +218,12 @@ public class CacheElementRevisions<K, V> {
    * @param l
    * @param ele
    */
-  public void removeElement(long l, K ele) {
+  public synchronized void removeElement(long l, K ele) {
     if (ele == null) {
       throw new ObjectCacheException("CacheKey for removal cannot be null.");
     }
 
-    CacheElementRevision<K, V> cr = new CacheElementRevision<K, V>(ele, null, l, CacheRevisionType.DELETED);
-    revisions.put(l, cr);
+    put(l, null, CacheRevisionType.DELETED);
   }
 
   /**
@@ -163,9 +231,13 @@ public class CacheElementRevisions<K, V> {
    *
    * @param remove
    */
-  public void removeRevisions(List<CacheElementRevision<K, V>> remove) {
+  public synchronized void removeRevisions(List<CacheElementRevision<K, V>> remove) {
     for (CacheElementRevision<K, V> rev : remove) {
-      revisions.remove(rev.getRevision());
+      int index = chain.indexOf(rev.getRevision());
+
+      if (index >= 0) {
+        removeAt(index);
+      }
     }
   }
 
@@ -177,15 +249,21 @@ public class CacheElementRevisions<K, V> {
    */
   public Iterator<CacheElementRevision<K, V>> getRevisions() {
     return new Iterator<CacheElementRevision<K, V>>() {
-
-      Iterator<Map.Entry<Long, CacheElementRevision<K, V>>> itr = revisions.entrySet().iterator();
+      final Chain c = chain;
+      int index = 0;
 
       public boolean hasNext() {
-        return itr.hasNext();
+        return index < c.count;
       }
 
       public CacheElementRevision<K, V> next() {
-        return itr.next().getValue();
+        if (index >= c.count) {
+          throw new NoSuchElementException();
+        }
+
+        CacheElementRevision<K, V> rev = new CacheElementRevision<K, V>(cacheKey, c.<V>elementAt(index), c.revisionNumbers[index], c.stateAt(index));
+        index++;
+        return rev;
       }
 
       public void remove() {
@@ -196,33 +274,109 @@ public class CacheElementRevisions<K, V> {
 
   /**
    * Removes the revision history for the provided revision.
+   * <p/>
+   * A version is still required by every revision between it and the next version, so only a history that
+   * consists of a single {@link CacheRevisionType#DELETED} version is removed (in which case it is as if the
+   * {@link V} never existed).
    *
    * @param revision
    */
-  public void removeRevision(long revision) {
-    if (!revisions.containsKey(revision)) {
+  public synchronized void removeRevision(long revision) {
+    Chain c = chain;
+    int index = c.indexOf(revision);
+
+    if (index < 0) {
       return;
     }
 
-    // if there is more than one revision in here
-    if (revisions.size() > 1) {
-      // and the revision we are wanting to remove is not the latest revision
-      if (revisions.get(revision).getRevision() > revision) {
-        revisions.remove(revision);
+    // we have only one revision (which is typically the minimum case)
+    if (c.count == 1) {
+      // if the revision was deleted then we are okay to evict the revision history
+      // and just pretend it never existed.
+      if (c.stateAt(index) == CacheRevisionType.DELETED) {
+        removeAt(index);
       }
     }
-    // we have only one revision (which is typically the minimum case)
-    else if (revisions.size() == 1) {
-      CacheElementRevision rev = revisions.get(revision);
-
-      if (null != rev) {
-        // if the revision was deleted then we are okay to evict the revision history
-        // and just pretend it never existed.
-        if (rev.getRevisionType() == CacheRevisionType.DELETED) {
-          revisions.remove(revision);
-        }
+  }
+
+  /**
+   * Removes the versions that are no longer needed once every revision before the provided revision has been
+   * expired, that is every version older than the version that is visible at the provided revision, and that
+   * version too if it is a {@link CacheRevisionType#DELETED} (in which case it is as if the {@link V} never existed
+   * for the remaining revisions).
+   *
+   * @param oldestRetained the oldest revision that is still retained by the {@link RootObjectCache}.
+   * @return the versions that were removed, oldest first.
+   */
+  public synchronized List<CacheElementRevision<K, V>> expireBefore(long oldestRetained) {
+    Chain c = chain;
+    int index = c.floorIndex(oldestRetained);
+
+    if (index >= 0 && c.stateAt(index) == CacheRevisionType.DELETED) {
+      index++;
+    }
+
+    if (index <= 0) {
+      return Collections.emptyList();
+    }
+
+    List<CacheElementRevision<K, V>> removed = new ArrayList<CacheElementRevision<K, V>>(index);
+    for (int i = 0; i < index; i++) {
+      removed.add(new CacheElementRevision<K, V>(cacheKey, c.<V>elementAt(i), c.revisionNumbers[i], c.stateAt(i)));
+      release(c.elements[i]);
+    }
+
+    int newCount = c.count - index;
+    Chain copy = new Chain(new long[Math.max(newCount, 1)], new Object[Math.max(newCount, 1)], new byte[Math.max(newCount, 1)], newCount);
+
+    System.arraycopy(c.revisionNumbers, index, copy.revisionNumbers, 0, newCount);
+    System.arraycopy(c.elements, index, copy.elements, 0, newCount);
+    System.arraycopy(c.states, index, copy.states, 0, newCount);
+
+    chain = newCount == 0 ? Chain.EMPTY : copy;
+    compacted = Math.max(0, compacted - index);
+    return removed;
+  }
+
+  /**
+   * Compacts the versions before the leading version that have been superseded since this was last called.
+   * <p/>
+   * If the {@link CacheElementFactory} is a {@link DeltaCacheElementFactory} each version is replaced by the delta
+   * from the version after it, unless it would make more than {@link DeltaCacheElementFactory#getKeyframeInterval()}
+   * deltas in a row, in which case it is kept as a keyframe. If an {@link OffHeapArena} is provided, the
+   * versions that are still full {@link V}s are then moved into it.
+   *
+   * @param arena the {@link OffHeapArena} to store full versions in, or {@code null} to keep them on the heap.
+   */
+  @SuppressWarnings({"unchecked"})
+  public synchronized void compactHistory(OffHeapArena<K, V> arena) {
+    Chain c = chain;
+    CacheElementFactory<V> factory = rootObjectCache.getElementFactory();
+    DeltaCacheElementFactory<V, Object> deltas = factory instanceof DeltaCacheElementFactory ? (DeltaCacheElementFactory<V, Object>) factory : null;
+    boolean changed = false;
+
+    // readers of this chain see either the V or its replacement, which rebuilds an equivalent V.
+    for (int i = compacted; i < c.count - 1; i++) {
+      Object element = c.elements[i];
+
+      if (element == null || element instanceof Delta || element instanceof OffHeapArena.Ref) {
+        continue;
+      }
+
+      if (deltas != null && c.elements[i + 1] != null && c.deltasBelow(i) < deltas.getKeyframeInterval()) {
+        c.elements[i] = new Delta(deltas, deltas.diff(c.<V>elementAt(i + 1), (V) element));
+        changed = true;
+      } else if (arena != null) {
+        c.elements[i] = arena.store((V) element);
+        changed = true;
       }
     }
+
+    compacted = Math.max(compacted, c.count - 1);
+
+    if (changed) {
+      chain = new Chain(c.revisionNumbers, c.elements, c.states, c.count);
+    }
   }
 
   public boolean containsRevision(long revision) {
@@ -235,21 +389,253 @@ public class CacheElementRevisions<K, V> {
    * @return
    */
   public int size() {
-    return revisions.size();
+    return chain.count;
   }
 
   public boolean isDeleted() {
-    Long lastRevision = revisions.lastKey();
-    return revisions.get(lastRevision).getState() == CacheRevisionType.DELETED;
+    Chain c = chain;
+    return c.count == 0 || c.stateAt(c.count - 1) == CacheRevisionType.DELETED;
+  }
+
+  /**
+   * Records a version at the provided revision, replacing any version already recorded at that revision.
+   */
+  private void put(long revision, V ele, CacheRevisionType type) {
+    Chain c = chain;
+    int index = c.floorIndex(revision);
+    byte state = (byte) type.ordinal();
+
+    if (index >= 0 && c.revisionNumbers[index] == revision) {
+      Chain copy = c.copy(c.count);
+      copy.materialise(index - 1);
+      release(copy.elements[index]);
+      copy.elements[index] = ele;
+      copy.states[index] = state;
+      chain = copy;
+      compacted = Math.min(compacted, index);
+      return;
+    }
+
+    // versions are nearly always appended, so index + 1 == count in the common case.
+    int insertAt = index + 1;
+
+    if (insertAt == c.count && c.count < c.revisionNumbers.length) {
+      // there is spare capacity after the last published version, no reader will look at it until the new
+      // chain is published so it can be written in place.
+      c.revisionNumbers[insertAt] = revision;
+      c.elements[insertAt] = ele;
+      c.states[insertAt] = state;
+      chain = new Chain(c.revisionNumbers, c.elements, c.states, c.count + 1);
+      return;
+    }
+
+    Chain grown = c.copy(c.count == 0 ? 1 : c.count + (c.count >> 1) + 1);
+    int moved = c.count - insertAt;
+
+    if (moved > 0) {
+      System.arraycopy(grown.revisionNumbers, insertAt, grown.revisionNumbers, insertAt + 1, moved);
+      System.arraycopy(grown.elements, insertAt, grown.elements, insertAt + 1, moved);
+      System.arraycopy(grown.states, insertAt, grown.states, insertAt + 1, moved);
+    }
+
+    // the version before the new one may be a delta from the version that is now after the new one.
+    grown.materialise(insertAt - 1);
+    grown.revisionNumbers[insertAt] = revision;
+    grown.elements[insertAt] = ele;
+    grown.states[insertAt] = state;
+    chain = new Chain(grown.revisionNumbers, grown.elements, grown.states, c.count + 1);
+    compacted = Math.min(compacted, insertAt);
+  }
 
+  /**
+   * Removes the version at the provided index, copying the remaining versions so that concurrent readers are
+   * unaffected.
+   */
+  private void removeAt(int index) {
+    Chain c = chain;
+    int newCount = c.count - 1;
+
+    Chain copy = new Chain(new long[Math.max(newCount, 1)], new Object[Math.max(newCount, 1)], new byte[Math.max(newCount, 1)], newCount);
+
+    System.arraycopy(c.revisionNumbers, 0, copy.revisionNumbers, 0, index);
+    System.arraycopy(c.elements, 0, copy.elements, 0, index);
+    System.arraycopy(c.states, 0, copy.states, 0, index);
+
+    // the version before the removed one may be a delta from it, so it has to be rebuilt first.
+    if (index > 0 && copy.elements[index - 1] instanceof Delta) {
+      copy.elements[index - 1] = c.elementAt(index - 1);
+    }
+
+    release(c.elements[index]);
+
+    System.arraycopy(c.revisionNumbers, index + 1, copy.revisionNumbers, index, newCount - index);
+    System.arraycopy(c.elements, index + 1, copy.elements, index, newCount - index);
+    System.arraycopy(c.states, index + 1, copy.states, index, newCount - index);
+
+    chain = copy;
+
+    if (index < compacted) {
+      compacted--;
+    }
   }
 
   /**
-   * Implementation of the {@code java.util.Comparator} interface for comparing revision numbers.
+   * Releases the memory used by a version that has been moved off the heap.
    */
-  private static class AscendingRevisionComparator implements Comparator<Long> {
-    public int compare(Long o1, Long o2) {
-      return o1.compareTo(o2);
+  private static void release(Object element) {
+    if (element instanceof OffHeapArena.Ref) {
+      ((OffHeapArena.Ref<?>) element).release();
+    }
+  }
+
+  /**
+   * A version stored as the delta from the version after it.
+   */
+  private static final class Delta {
+    private final DeltaCacheElementFactory<Object, Object> factory;
+    private final Object delta;
+
+    @SuppressWarnings({"unchecked"})
+    Delta(DeltaCacheElementFactory<?, Object> factory, Object delta) {
+      this.factory = (DeltaCacheElementFactory<Object, Object>) factory;
+      this.delta = delta;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    <V> V patch(V next) {
+      return (V) factory.patch(next, delta);
+    }
+  }
+
+  /**
+   * An immutable (up to {@link Chain#count}) view of the version history, sorted by ascending revision.
+   */
+  private static final class Chain {
+    static final Chain EMPTY = new Chain(new long[0], new Object[0], new byte[0], 0);
+
+    /**
+     * The revision numbers of the versions, in ascending order.
+     */
+    final long[] revisionNumbers;
+
+    /**
+     * The {@code V} for each version, parallel to {@link Chain#revisionNumbers}.
+     */
+    final Object[] elements;
+
+    /**
+     * The ordinal of the {@link CacheRevisionType} of each version, parallel to {@link Chain#revisionNumbers}.
+     */
+    final byte[] states;
+
+    /**
+     * The number of versions in this {@link Chain}, entries after this are not part of the chain.
+     */
+    final int count;
+
+    Chain(long[] revisionNumbers, Object[] elements, byte[] states, int count) {
+      this.revisionNumbers = revisionNumbers;
+      this.elements = elements;
+      this.states = states;
+      this.count = count;
+    }
+
+    /**
+     * Returns a copy of this {@link Chain} with arrays of at least the provided capacity.
+     */
+    Chain copy(int capacity) {
+      int length = Math.max(capacity, count);
+      return new Chain(Arrays.copyOf(revisionNumbers, length), Arrays.copyOf(elements, length), Arrays.copyOf(states, length), count);
+    }
+
+    /**
+     * Returns the index of the version with the highest revision that is less than or equal to the provided
+     * revision, or {@code -1} if all versions are newer than the provided revision.
+     */
+    int floorIndex(long revision) {
+      int low = 0;
+      int high = count - 1;
+
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long midRevision = revisionNumbers[mid];
+
+        if (midRevision < revision) {
+          low = mid + 1;
+        } else if (midRevision > revision) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+
+      return high;
+    }
+
+    /**
+     * Returns the index of the version with exactly the provided revision, or {@code -1} if there isn't one.
+     */
+    int indexOf(long revision) {
+      int index = floorIndex(revision);
+
+      if (index >= 0 && revisionNumbers[index] == revision) {
+        return index;
+      }
+
+      return -1;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    <V> V elementAt(int index) {
+      Object element = elements[index];
+
+      if (element instanceof Delta) {
+        // rebuild the version by patching the nearest full version after it with each delta in turn.
+        int full = index + 1;
+        while (elements[full] instanceof Delta) {
+          full++;
+        }
+
+        V rebuilt = this.<V>elementAt(full);
+        for (int i = full - 1; i >= index; i--) {
+          rebuilt = ((Delta) elements[i]).<V>patch(rebuilt);
+        }
+
+        return rebuilt;
+      }
+
+      if (element instanceof OffHeapArena.Ref) {
+        return ((OffHeapArena.Ref<V>) element).get();
+      }
+
+      return (V) element;
+    }
+
+    /**
+     * Returns the number of versions immediately before the provided index that are stored as deltas.
+     */
+    int deltasBelow(int index) {
+      int run = 0;
+
+      for (int i = index - 1; i >= 0 && elements[i] instanceof Delta; i--) {
+        run++;
+      }
+
+      return run;
+    }
+
+    /**
+     * Replaces the version at the provided index with the full {@code V} if it is stored as a delta. Only used on a
+     * {@link Chain} that hasn't been published.
+     */
+    void materialise(int index) {
+      if (index >= 0 && elements[index] instanceof Delta) {
+        elements[index] = elementAt(index);
+      }
+    }
+
+    CacheRevisionType stateAt(int index) {
+      return REVISION_TYPES[states[index]];
     }
   }
 }
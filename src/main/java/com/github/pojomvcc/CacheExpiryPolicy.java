@@ -7,6 +7,9 @@ package com.github.pojomvcc;
  * It is very important that instances of this class perform very quickly. This operation is called frequently to clean
  * up the {@link RootObjectCache}, all while maintaining the write lock, so excessively long running
  * expiry policies will cause issues.
+ * <p/>
+ * Revisions are always expired from the oldest end: {@link CacheExpiryPolicy#shouldExpire(RootObjectCache, RevisionKeyList)}
+ * is asked about the oldest retained revision first, and expiry stops at the first revision it wants to retain.
  *
  * @author Aidan Morgan
  */
@@ -43,17 +46,7 @@ public abstract class CacheExpiryPolicy<K, V> {
 
       @Override
       public boolean shouldExpire(RootObjectCache<K, V> rootCache, RevisionKeyList<K> rkl) {
-        return rkl.getRevision() < getOldestActiveRevision(rootCache);
-      }
-
-      private long getOldestActiveRevision(RootObjectCache<K, V> rootObjectCache) {
-        long lowestRevisionNumber = Long.MAX_VALUE;
-
-        for (RevisionObjectCache cache : rootObjectCache.getActiveRevisions()) {
-          lowestRevisionNumber = Math.min(lowestRevisionNumber, cache.getRevision());
-        }
-
-        return lowestRevisionNumber;
+        return rkl.getRevision() < rootCache.getOldestActiveRevision();
       }
 
     };
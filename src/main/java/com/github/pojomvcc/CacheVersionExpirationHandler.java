@@ -0,0 +1,28 @@
+package com.github.pojomvcc;
+
+import java.util.List;
+
+/**
+ * A {@link CacheExpirationHandler} that is given the versions of each {@link V} that are removed from memory when
+ * revisions expire, so that they can be kept somewhere else and returned from
+ * {@link CacheExpirationHandler#retrieve(Object, long)} later on.
+ * <p/>
+ * A {@link RevisionKeyList} only describes which keys were in a revision, it does not carry the {@link V}s, so a
+ * plain {@link CacheExpirationHandler} has no way of keeping the history that is being removed.
+ *
+ * @author Aidan Morgan
+ */
+public interface CacheVersionExpirationHandler<K, V> extends CacheExpirationHandler<K, V> {
+  /**
+   * Called when versions of the {@link V} with the provided {@link K} are removed from memory because no retained
+   * revision can see them any more.
+   * <p/>
+   * Versions of a {@link K} are always provided in ascending revision order, and every version provided for a
+   * {@link K} is older than the versions provided for it in later calls. A {@link CacheRevisionType#DELETED}
+   * version has a {@code null} element.
+   *
+   * @param key      the {@link K} of the versions.
+   * @param versions the versions that were removed, oldest first.
+   */
+  public void versionsExpired(K key, List<CacheElementRevision<K, V>> versions);
+}
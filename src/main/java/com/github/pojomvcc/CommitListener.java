@@ -0,0 +1,33 @@
+package com.github.pojomvcc;
+
+/**
+ * A {@link CommitListener} is given the {@link CommitRecord} of every revision of a {@link RootObjectCache} as the
+ * revision is made visible, in revision order (see {@link com.github.pojomvcc.feed.CommitFeed}).
+ * <p/>
+ * {@link CommitListener#committed(CommitRecord)} is called whilst revisions are being published one at a time, so
+ * it must return quickly and must not block. Unlike a {@link CommitLog} a {@link CommitListener} cannot stop the
+ * revision from being made visible. If it throws, it is removed from the {@link RootObjectCache} (as it has missed
+ * a revision) and is told why with {@link CommitListener#failed(CommitRecord, RuntimeException)}.
+ *
+ * @author Aidan Morgan
+ */
+public interface CommitListener<K, V> {
+  /**
+   * Called once for every revision, in revision order, by one thread at a time.
+   *
+   * @param record the {@link CommitRecord} of the revision that has been made visible.
+   */
+  public void committed(CommitRecord<K, V> record);
+
+  /**
+   * Called once if {@link CommitListener#committed(CommitRecord)} throws, after this {@link CommitListener} has
+   * been removed from the {@link RootObjectCache}. It is not told about any revisions after the one that failed.
+   * <p/>
+   * The default implementation does nothing.
+   *
+   * @param record the {@link CommitRecord} of the revision that could not be handled.
+   * @param cause  what {@link CommitListener#committed(CommitRecord)} threw.
+   */
+  public default void failed(CommitRecord<K, V> record, RuntimeException cause) {
+  }
+}
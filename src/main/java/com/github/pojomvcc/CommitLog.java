@@ -0,0 +1,21 @@
+package com.github.pojomvcc;
+
+/**
+ * A {@link CommitLog} is given the {@link CommitRecord} of every revision of a {@link RootObjectCache} before the
+ * revision is made visible, in revision order, so that the changes can be made durable (see
+ * {@link com.github.pojomvcc.persist.WriteAheadLog}).
+ * <p/>
+ * If {@link CommitLog#append(CommitRecord)} throws, the revision is never made visible and the
+ * {@link RootObjectCache} stops accepting commits, as the log no longer describes it.
+ *
+ * @author Aidan Morgan
+ */
+public interface CommitLog<K, V> {
+  /**
+   * Records the provided {@link CommitRecord}. Called once for every revision, in revision order, by one thread at
+   * a time.
+   *
+   * @param record the {@link CommitRecord} of the revision being committed.
+   */
+  public void append(CommitRecord<K, V> record);
+}
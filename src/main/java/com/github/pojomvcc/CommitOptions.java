@@ -1,8 +1,176 @@
 package com.github.pojomvcc;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
 /**
- * TODO: [AM] : implement me!
+ * {@code CommitOptions} define how a {@link RootObjectCache} applies the commits of {@link RevisionObjectCache}s.
+ * <p/>
+ * By default every {@link RootObjectCache#commit(RevisionObjectCache)} creates its own revision. When group commit
+ * is enabled the commits that arrive within the group commit window (or until the maximum group size is reached)
+ * are applied together and share a single revision, trading a little commit latency for far fewer revisions
+ * (and therefore far less history to expire) when there are many small, concurrent commits.
+ * <p/>
+ * Each commit in a group is still validated on its own, in the order the commits arrived, so a commit that
+ * conflicts with the {@link RootObjectCache} (or an earlier commit in the same group) fails without affecting
+ * the other commits in the group.
+ * <p/>
+ * When parallel prepare is enabled a commit that changes at least the threshold number of {@link V}s creates the
+ * clones and merges of those {@link V}s on a {@code java.util.concurrent.ForkJoinPool} instead of on the committing
+ * thread. The {@link CacheElementFactory} must then allow {@link CacheElementFactory#createClone(Object)} and
+ * {@link CacheElementFactory#merge(Object, Object)} to be called concurrently.
+ *
  * @author Aidan Morgan
  */
 public class CommitOptions {
+  /**
+   * The default {@link CommitOptions}, every commit creates a new revision.
+   */
+  public static CommitOptions DEFAULT() {
+    return new CommitOptions(0L, 1, Integer.MAX_VALUE, null);
+  }
+
+  /**
+   * Creates {@link CommitOptions} that group the commits that arrive within the provided window, or until
+   * {@code maxGroupSize} commits are waiting, into a single revision.
+   *
+   * @param window       the maximum time the first commit in a group waits for other commits to join it.
+   * @param unit         the {@code java.util.concurrent.TimeUnit} of {@code window}.
+   * @param maxGroupSize the maximum number of commits to apply in one revision.
+   * @return
+   */
+  public static CommitOptions GROUP(long window, TimeUnit unit, int maxGroupSize) {
+    if (window < 0) {
+      throw new ObjectCacheException("The group commit window cannot be negative, " + window + " provided.");
+    }
+
+    if (maxGroupSize < 1) {
+      throw new ObjectCacheException("The maximum group size must be at least one, " + maxGroupSize + " provided.");
+    }
+
+    return new CommitOptions(unit.toNanos(window), maxGroupSize, Integer.MAX_VALUE, null);
+  }
+
+  /**
+   * Creates {@link CommitOptions} that prepare the commits that change at least {@code threshold} {@link V}s in
+   * parallel on the {@code java.util.concurrent.ForkJoinPool#commonPool()}.
+   *
+   * @param threshold the minimum number of added and modified {@link V}s for a commit to be prepared in parallel.
+   * @return
+   */
+  public static CommitOptions PARALLEL(int threshold) {
+    return PARALLEL(threshold, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates {@link CommitOptions} that prepare the commits that change at least {@code threshold} {@link V}s in
+   * parallel on the provided {@code java.util.concurrent.ForkJoinPool}.
+   *
+   * @param threshold the minimum number of added and modified {@link V}s for a commit to be prepared in parallel.
+   * @param pool      the {@code java.util.concurrent.ForkJoinPool} to prepare the commits on.
+   * @return
+   */
+  public static CommitOptions PARALLEL(int threshold, ForkJoinPool pool) {
+    if (threshold < 1) {
+      throw new ObjectCacheException("The parallel prepare threshold must be at least one, " + threshold + " provided.");
+    }
+
+    if (pool == null) {
+      throw new ObjectCacheException("A ForkJoinPool must be provided for parallel prepare.");
+    }
+
+    return new CommitOptions(0L, 1, threshold, pool);
+  }
+
+  /**
+   * The time, in nanoseconds, that the first commit in a group waits for other commits to join it.
+   */
+  private final long groupWindowNanos;
+
+  /**
+   * The maximum number of commits that are applied in one revision.
+   */
+  private final int maxGroupSize;
+
+  /**
+   * The minimum number of added and modified {@link V}s for a commit to be prepared in parallel.
+   */
+  private final int parallelThreshold;
+
+  /**
+   * The {@code java.util.concurrent.ForkJoinPool} that commits are prepared on, {@code null} if parallel prepare
+   * is disabled.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Constructor.
+   *
+   * @param groupWindowNanos  the group commit window in nanoseconds.
+   * @param maxGroupSize      the maximum number of commits to apply in one revision.
+   * @param parallelThreshold the minimum number of changed {@link V}s for a commit to be prepared in parallel.
+   * @param pool              the {@code java.util.concurrent.ForkJoinPool} to prepare commits on, or {@code null}.
+   */
+  private CommitOptions(long groupWindowNanos, int maxGroupSize, int parallelThreshold, ForkJoinPool pool) {
+    this.groupWindowNanos = groupWindowNanos;
+    this.maxGroupSize = maxGroupSize;
+    this.parallelThreshold = parallelThreshold;
+    this.pool = pool;
+  }
+
+  /**
+   * Returns {@code true} if concurrent commits should be grouped into a single revision.
+   *
+   * @return
+   */
+  public boolean isGroupCommit() {
+    return maxGroupSize > 1;
+  }
+
+  /**
+   * Returns the time, in nanoseconds, that the first commit in a group waits for other commits to join it.
+   *
+   * @return
+   */
+  public long getGroupWindowNanos() {
+    return groupWindowNanos;
+  }
+
+  /**
+   * Returns the maximum number of commits that are applied in one revision.
+   *
+   * @return
+   */
+  public int getMaxGroupSize() {
+    return maxGroupSize;
+  }
+
+  /**
+   * Returns {@code true} if a commit that changes the provided number of {@link V}s should be prepared in parallel.
+   *
+   * @param changed the number of added and modified {@link V}s in the commit.
+   * @return
+   */
+  public boolean isParallelPrepare(int changed) {
+    return pool != null && changed >= parallelThreshold;
+  }
+
+  /**
+   * Returns the minimum number of added and modified {@link V}s for a commit to be prepared in parallel.
+   *
+   * @return
+   */
+  public int getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  /**
+   * Returns the {@code java.util.concurrent.ForkJoinPool} that commits are prepared on, {@code null} if parallel
+   * prepare is disabled.
+   *
+   * @return
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
 }
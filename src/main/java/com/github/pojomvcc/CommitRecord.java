@@ -0,0 +1,95 @@
+package com.github.pojomvcc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes that a single revision of a {@link RootObjectCache} made, as they were applied.
+ * <p/>
+ * The {@link V}s in a {@link CommitRecord} are the versions stored in the {@link RootObjectCache}, they must not be
+ * modified.
+ *
+ * @author Aidan Morgan
+ */
+public class CommitRecord<K, V> {
+  /**
+   * The revision that the changes were applied at.
+   */
+  private final long revision;
+
+  /**
+   * The {@link V}s that were added, by {@link K}.
+   */
+  private final Map<K, V> added;
+
+  /**
+   * The {@link V}s that were modified, by {@link K}.
+   */
+  private final Map<K, V> modified;
+
+  /**
+   * The {@link K}s that were removed.
+   */
+  private final Set<K> removed;
+
+  /**
+   * Constructor.
+   *
+   * @param revision the revision that the changes were applied at.
+   * @param added    the {@link V}s that were added, by {@link K}.
+   * @param modified the {@link V}s that were modified, by {@link K}.
+   * @param removed  the {@link K}s that were removed.
+   */
+  public CommitRecord(long revision, Map<K, V> added, Map<K, V> modified, Set<K> removed) {
+    this.revision = revision;
+    this.added = Collections.unmodifiableMap(added);
+    this.modified = Collections.unmodifiableMap(modified);
+    this.removed = Collections.unmodifiableSet(removed);
+  }
+
+  /**
+   * Returns the revision that the changes were applied at.
+   *
+   * @return
+   */
+  public long getRevision() {
+    return revision;
+  }
+
+  /**
+   * Returns the {@link V}s that were added, by {@link K}.
+   *
+   * @return
+   */
+  public Map<K, V> getAdded() {
+    return added;
+  }
+
+  /**
+   * Returns the {@link V}s that were modified, by {@link K}.
+   *
+   * @return
+   */
+  public Map<K, V> getModified() {
+    return modified;
+  }
+
+  /**
+   * Returns the {@link K}s that were removed.
+   *
+   * @return
+   */
+  public Set<K> getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Returns {@code true} if the revision made no changes.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+  }
+}
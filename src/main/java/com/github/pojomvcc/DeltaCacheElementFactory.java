@@ -0,0 +1,44 @@
+package com.github.pojomvcc;
+
+/**
+ * A {@link CacheElementFactory} that can also describe the difference between two {@link V}s as a delta of type
+ * {@link D}.
+ * <p/>
+ * When the {@link CacheElementFactory} of a {@link RootObjectCache} is a {@link DeltaCacheElementFactory} the
+ * versions of a {@link V} that are no longer leading are stored as the delta from the version after them rather
+ * than as a full {@link V}, so a large {@link V} that only changes a little each revision costs little more than the
+ * size of the changes. An old version is rebuilt when it is read by patching the next full version with each delta
+ * in turn. To bound the number of patches a read can take, a full {@link V} (a keyframe) is kept after every
+ * {@link DeltaCacheElementFactory#getKeyframeInterval()} deltas.
+ *
+ * @author Aidan Morgan
+ */
+public interface DeltaCacheElementFactory<V, D> extends CacheElementFactory<V> {
+  /**
+   * Returns the delta that turns {@code from} into {@code to}, such that {@code patch(from, diff(from, to))} is
+   * equivalent to {@code to}. Neither {@link V} may be modified.
+   *
+   * @param from the {@link V} the delta is applied to.
+   * @param to   the {@link V} that the delta produces.
+   * @return
+   */
+  public D diff(V from, V to);
+
+  /**
+   * Returns a new {@link V} that is the result of applying the provided delta to the provided {@link V}. The
+   * provided {@link V} is a stored version and must not be modified.
+   *
+   * @param base  the {@link V} to apply the delta to.
+   * @param delta a delta returned by {@link DeltaCacheElementFactory#diff(Object, Object)}.
+   * @return
+   */
+  public V patch(V base, D delta);
+
+  /**
+   * Returns the maximum number of versions in a row that are stored as deltas before a full version is kept,
+   * which is the most patches a read of an old version will take.
+   *
+   * @return
+   */
+  public int getKeyframeInterval();
+}
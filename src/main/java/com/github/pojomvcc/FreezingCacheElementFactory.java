@@ -0,0 +1,27 @@
+package com.github.pojomvcc;
+
+/**
+ * A {@link CacheElementFactory} that can make the {@link V}s stored in a {@link RootObjectCache} immutable.
+ * <p/>
+ * The {@link V}s returned from a {@link ReadOnlyRevisionObjectCache} created by {@link RootObjectCache#export()}
+ * are the instances stored in the {@link RootObjectCache}, not clones, so a caller that modifies one would be
+ * modifying the history of the cache. If the {@link RootObjectCache}'s factory implements this interface every
+ * {@link V} is frozen as it is committed, so that such a modification fails instead.
+ * <p/>
+ * {@link CacheElementFactory#createClone(Object)} must return a mutable clone of a frozen {@link V}, as it is
+ * used to create the copies handed out by a {@link RevisionObjectCache}, and
+ * {@link CacheElementFactory#merge(Object, Object)} must not modify the frozen {@link V} it is merging into.
+ *
+ * @author Aidan Morgan
+ */
+public interface FreezingCacheElementFactory<V> extends CacheElementFactory<V> {
+  /**
+   * Makes the provided {@link V} immutable. The provided {@link V} is a clone that is owned by the
+   * {@link RootObjectCache}, so it can either be frozen in place and returned, or an immutable view of it
+   * can be returned instead.
+   *
+   * @param element the {@link V} to freeze.
+   * @return the immutable {@link V} to store.
+   */
+  public V freeze(V element);
+}
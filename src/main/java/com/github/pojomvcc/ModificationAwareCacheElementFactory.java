@@ -0,0 +1,30 @@
+package com.github.pojomvcc;
+
+/**
+ * A {@link CacheElementFactory} that can tell whether a {@link V} retrieved from a {@link RevisionObjectCache}
+ * has actually been changed.
+ * <p/>
+ * Every {@link V} that is retrieved from a {@link RevisionObjectCache} is a clone, and without a
+ * {@link ModificationAwareCacheElementFactory} the {@link RevisionObjectCache} has to assume that every clone
+ * has been modified, so a commit merges and records a new revision of every {@link V} that was read. When the
+ * {@link RootObjectCache}'s factory implements this interface only the {@link V}s that
+ * {@link ModificationAwareCacheElementFactory#isModified(Object, Object)} reports as changed (or that were
+ * explicitly replaced) are committed.
+ *
+ * @author Aidan Morgan
+ */
+public interface ModificationAwareCacheElementFactory<V> extends CacheElementFactory<V> {
+  /**
+   * Returns {@code true} if the provided clone has been changed since it was created from the provided original.
+   * <p/>
+   * This is called whenever the modified {@link V}s of a {@link RevisionObjectCache} are requested (including
+   * when it is committed) for every {@link V} that has been retrieved from it, so implementations should be
+   * cheap, for example comparing fields or a version number rather than serialising the {@link V}.
+   *
+   * @param original the {@link V} from the {@link RootObjectCache} that the clone was created from, this must
+   *                 not be modified.
+   * @param clone    the clone that was returned from the {@link RevisionObjectCache}.
+   * @return {@code true} if the clone should be committed as a modification.
+   */
+  public boolean isModified(V original, V clone);
+}
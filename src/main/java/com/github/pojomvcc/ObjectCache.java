@@ -1,5 +1,7 @@
 package com.github.pojomvcc;
 
+import java.util.Spliterator;
+
 /**
  * Base-interface for all operations that can be performed on a {@link ObjectCache}.
  *
@@ -32,4 +34,19 @@ public interface ObjectCache<K, V> {
    * @return The current size of the this cache.
    */
   public int size();
+
+  /**
+   * Returns a {@code java.util.Spliterator} over the {@link K}s in the current revision of this {@link ObjectCache}.
+   * <p/>
+   * Traversal takes time linear in the number of {@link K}s and the {@code java.util.Spliterator} splits without
+   * copying the keys, so {@code java.util.stream.StreamSupport#stream(java.util.Spliterator, boolean)} can be used
+   * to process a revision in parallel.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @return
+   */
+  public default Spliterator<K> keySpliterator() {
+    throw new UnsupportedOperationException("This ObjectCache does not support key spliterators.");
+  }
 }
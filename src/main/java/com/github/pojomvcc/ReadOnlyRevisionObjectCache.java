@@ -3,10 +3,13 @@ package com.github.pojomvcc;
 /**
  * An implementation of the {@link com.github.pojomvcc.ObjectCache} interface that provides a
  * read-only view of a specific revision of the {@link com.github.pojomvcc.RootObjectCache}.
+ * <p/>
+ * The history of the revision is kept until the {@link ReadOnlyRevisionObjectCache} is closed, or until it is
+ * garbage collected if it is never closed. It can't be read once it is closed.
  *
  * @author Aidan Morgan
  */
-public interface ReadOnlyRevisionObjectCache<K, V> extends ObjectCache<K, V> {
+public interface ReadOnlyRevisionObjectCache<K, V> extends ObjectCache<K, V>, AutoCloseable {
   /**
    * Returns the {@code com.github.pojomvcc.RootObjectCache} that owns this {@code com.github.pojomvcc.RevisionObjectCache}.
    *
@@ -24,4 +27,13 @@ public interface ReadOnlyRevisionObjectCache<K, V> extends ObjectCache<K, V> {
    */
   public boolean containsKey(K key);
 
+  /**
+   * Releases the revision of this {@link ReadOnlyRevisionObjectCache}, so that its history can be expired. Closing a
+   * {@link ReadOnlyRevisionObjectCache} more than once has no further effect.
+   * <p/>
+   * The default implementation does nothing, for a {@link ReadOnlyRevisionObjectCache} that does not keep its
+   * revision.
+   */
+  public default void close() {
+  }
 }
@@ -0,0 +1,91 @@
+package com.github.pojomvcc;
+
+/**
+ * A single {@link K} that was added, modified or removed between the two revisions of a {@link RevisionDiff}.
+ * <p/>
+ * The {@link V}s are only looked up when they are asked for, and are the instances stored in the
+ * {@link RootObjectCache} so they must not be modified. A {@link RevisionChange} keeps its {@link RevisionDiff}
+ * (and so the history it needs) reachable, but must not be read once the {@link RevisionDiff} is closed.
+ *
+ * @author Aidan Morgan
+ */
+public class RevisionChange<K, V> {
+  /**
+   * The {@link RevisionDiff} that this {@link RevisionChange} belongs to.
+   */
+  private final RevisionDiff<K, V> diff;
+
+  /**
+   * The {@link K} that changed.
+   */
+  private final K key;
+
+  /**
+   * How the {@link K} changed.
+   */
+  private final CacheRevisionType type;
+
+  /**
+   * Constructor.
+   *
+   * @param diff the {@link RevisionDiff} that this {@link RevisionChange} belongs to.
+   * @param key  the {@link K} that changed.
+   * @param type how the {@link K} changed.
+   */
+  public RevisionChange(RevisionDiff<K, V> diff, K key, CacheRevisionType type) {
+    this.diff = diff;
+    this.key = key;
+    this.type = type;
+  }
+
+  /**
+   * Returns the {@link K} that changed.
+   *
+   * @return
+   */
+  public K getKey() {
+    return key;
+  }
+
+  /**
+   * Returns {@link CacheRevisionType#ADDED} if the {@link K} was not present at the from revision,
+   * {@link CacheRevisionType#DELETED} if it is not present at the to revision and {@link CacheRevisionType#MODIFIED}
+   * otherwise.
+   *
+   * @return
+   */
+  public CacheRevisionType getType() {
+    return type;
+  }
+
+  /**
+   * Returns the {@link V} at the to revision, {@code null} if the {@link K} was removed.
+   *
+   * @return
+   */
+  public V getElement() {
+    if (type == CacheRevisionType.DELETED) {
+      return null;
+    }
+
+    return diff.getParentCache().getElementWithRevision(diff.getToRevision(), key);
+  }
+
+  /**
+   * Returns the {@link V} at the from revision, {@code null} if the {@link K} was added.
+   *
+   * @return
+   */
+  public V getPreviousElement() {
+    if (type == CacheRevisionType.ADDED) {
+      return null;
+    }
+
+    return diff.getParentCache().getElementWithRevision(diff.getFromRevision(), key);
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + key;
+  }
+}
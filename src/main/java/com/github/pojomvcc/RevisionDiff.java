@@ -0,0 +1,63 @@
+package com.github.pojomvcc;
+
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
+/**
+ * The {@link K}s that differ between two revisions of a {@link RootObjectCache}, see
+ * {@link RootObjectCache#diff(long, long)}.
+ * <p/>
+ * The {@link RevisionChange}s are produced as they are iterated from the change records of the revisions in
+ * between, so a {@link RevisionDiff} over a large range is never materialised. Each {@link K} is reported once, no
+ * matter how many of the revisions changed it, and {@link K}s that were added and removed again in between are not
+ * reported at all. The order of the {@link RevisionChange}s is undefined.
+ * <p/>
+ * The history of both revisions is kept until the {@link RevisionDiff} is closed, or until it is garbage collected
+ * if it is never closed. Neither the {@link RevisionDiff} nor its {@link RevisionChange}s can be read once it is
+ * closed.
+ *
+ * @author Aidan Morgan
+ */
+public interface RevisionDiff<K, V> extends Iterable<RevisionChange<K, V>>, AutoCloseable {
+  /**
+   * Returns the {@link RootObjectCache} that this {@link RevisionDiff} was created by.
+   *
+   * @return
+   */
+  public RootObjectCache<K, V> getParentCache();
+
+  /**
+   * Returns the revision that the changes are from.
+   *
+   * @return
+   */
+  public long getFromRevision();
+
+  /**
+   * Returns the revision that the changes are to.
+   *
+   * @return
+   */
+  public long getToRevision();
+
+  /**
+   * Returns a {@code java.util.Spliterator} over the {@link RevisionChange}s, which splits by the revisions in
+   * between (and then by the changes of a single revision) so that the changes can be processed in parallel.
+   *
+   * @return
+   */
+  public Spliterator<RevisionChange<K, V>> spliterator();
+
+  /**
+   * Returns a sequential {@code java.util.stream.Stream} of the {@link RevisionChange}s.
+   *
+   * @return
+   */
+  public Stream<RevisionChange<K, V>> stream();
+
+  /**
+   * Releases the history of the revisions of this {@link RevisionDiff}, so that it can be expired. Closing a
+   * {@link RevisionDiff} more than once has no further effect.
+   */
+  public void close();
+}
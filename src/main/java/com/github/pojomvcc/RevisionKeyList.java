@@ -1,20 +1,33 @@
 package com.github.pojomvcc;
 
-import java.util.ArrayList;
+import com.github.pojomvcc.util.PersistentHashSet;
+
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.List;
 
 /**
  * A {@link RevisionKeyList} represents the set of {@link K} instances that
  * are associated with a specific revision in the {@link RootObjectCache}.
+ * <p/>
+ * The keys are held in a {@link PersistentHashSet}, so a {@link RevisionKeyList} created from the
+ * previous revision shares almost all of its structure with it and only pays for the keys that changed.
+ * <p/>
+ * A {@link RevisionKeyList} also records the keys that were changed (added, modified or removed) by the commit
+ * that created it, so that expiring history only has to visit the keys that have versions to reclaim.
  *
  * @author Aidan Morgan
  */
 public class RevisionKeyList<K> {
   /**
-   * A {@code java.util.List} of {@link K} that are the keys for this revision.
+   * The immutable {@link PersistentHashSet} of {@link K} that are the keys for this revision.
+   */
+  private PersistentHashSet<K> keys;
+
+  /**
+   * The {@link K}s that were added, modified or removed by the commit that created this revision.
    */
-  private List<K> keys;
+  private Collection<K> changedKeys = Collections.emptyList();
 
   /**
    * The revision this set of {@link K} are for.
@@ -36,7 +49,7 @@ public class RevisionKeyList<K> {
     this.revision = rev;
     this.revisionTime = timestamp;
 
-    this.keys = new ArrayList<K>();
+    this.keys = PersistentHashSet.empty();
   }
 
   /**
@@ -50,27 +63,51 @@ public class RevisionKeyList<K> {
 
 
   /**
-   * Copy-Constructor. This will create a new {@link RevisionKeyList} with a copy of the
-   * keys in the provided {@code com.github.pojomvcc.RevisionKeyList} but assigned to the provided revision
+   * Copy-Constructor. This will create a new {@link RevisionKeyList} with the same
+   * keys as the provided {@code com.github.pojomvcc.RevisionKeyList} but assigned to the provided revision
    * and the {@link RevisionKeyList#revisionTime} set to the current time.
+   * <p/>
+   * As the keys are immutable they are shared rather than copied.
    *
    * @param revision the revision of this {@link RevisionKeyList}.
-   * @param other    a {@link RevisionKeyList} to clone the {@link K}s for.
+   * @param other    a {@link RevisionKeyList} to share the {@link K}s of.
    */
-  public RevisionKeyList(long revision, RevisionKeyList other) {
+  public RevisionKeyList(long revision, RevisionKeyList<K> other) {
+    this(revision, other.keys);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param revision the revision of this {@link RevisionKeyList}.
+   * @param keys     the {@link PersistentHashSet} of {@link K}s that make up the revision.
+   */
+  public RevisionKeyList(long revision, PersistentHashSet<K> keys) {
     this(revision, System.currentTimeMillis());
-    this.keys = new ArrayList<K>(other.keys);
+    this.keys = keys;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param revision    the revision of this {@link RevisionKeyList}.
+   * @param keys        the {@link PersistentHashSet} of {@link K}s that make up the revision.
+   * @param changedKeys the {@link K}s that were added, modified or removed by the commit that created the revision,
+   *                    this must not be modified afterwards.
+   */
+  public RevisionKeyList(long revision, PersistentHashSet<K> keys, Collection<K> changedKeys) {
+    this(revision, keys);
+    this.changedKeys = Collections.unmodifiableCollection(changedKeys);
   }
 
   /**
    * Copy-Constructor.
    *
    * @param revision the revision of this {@link RevisionKeyList}.
-   * @param other    a {@code java.util.List} of {@link K}s that make up the revision.
+   * @param other    a {@code java.util.Collection} of {@link K}s that make up the revision.
    */
-  public RevisionKeyList(long revision, List<K> other) {
-    this(revision, System.currentTimeMillis());
-    keys = new ArrayList<K>(other);
+  public RevisionKeyList(long revision, Collection<K> other) {
+    this(revision, PersistentHashSet.of(other));
   }
 
   /**
@@ -113,14 +150,33 @@ public class RevisionKeyList<K> {
   }
 
   /**
-   * Returns a {@code List} of {@link K}s that are in this {@link RevisionKeyList}.
+   * Returns the immutable {@link PersistentHashSet} of {@link K}s that are in this {@link RevisionKeyList}.
    *
    * @return
    */
-  public List<K> getKeys() {
+  public PersistentHashSet<K> getKeys() {
     return keys;
   }
 
+  /**
+   * Returns the {@link K}s that were added, modified or removed by the commit that created this revision.
+   *
+   * @return
+   */
+  public Collection<K> getChangedKeys() {
+    return changedKeys;
+  }
+
+  /**
+   * Returns {@code true} if the provided {@link K} is in this {@link RevisionKeyList}.
+   *
+   * @param key
+   * @return
+   */
+  public boolean contains(K key) {
+    return keys.contains(key);
+  }
+
   /**
    * Returns the number {@link K}s in this {@link RevisionKeyList}.
    *
@@ -1,6 +1,7 @@
 package com.github.pojomvcc;
 
 import java.util.List;
+import java.util.Spliterator;
 
 /**
  * A {@link RevisionObjectCache} is a modifiable view (or "working copy") of a {@link RootObjectCache}.
@@ -86,4 +87,13 @@ public interface RevisionObjectCache<K,V> extends ReadOnlyRevisionObjectCache<K,
    * @return
    */
   public List<K> getKeys();
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The default implementation splits {@link RevisionObjectCache#getKeys()}, which copies the {@link K}s.
+   */
+  public default Spliterator<K> keySpliterator() {
+    return getKeys().spliterator();
+  }
 }
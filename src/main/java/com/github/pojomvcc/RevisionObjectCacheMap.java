@@ -1,82 +1,172 @@
 package com.github.pojomvcc;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
- * An implementation of the {@code java.util.Map} interface that retrieves all of it's
- * values from a {@link RevisionObjectCache}.
+ * An implementation of the {@code java.util.Map} interface that is a view of a single revision of a
+ * {@link RootObjectCache}.
+ * <p/>
+ * Creating a {@link RevisionObjectCacheMap} only takes a reference to the immutable key set of the revision,
+ * nothing is copied. {@link RevisionObjectCacheMap#get(Object)} looks the {@link V} up in the
+ * {@link RootObjectCache} at the revision each time it is called, and iterating the
+ * {@link RevisionObjectCacheMap} looks up each {@link V} as it is reached.
+ * <p/>
+ * Each {@link V} is cloned with the {@link RootObjectCache}'s {@link CacheElementFactory} as it is returned, so
+ * modifying it does not modify the history of the {@link RootObjectCache} (and each call returns a new clone).
+ * If the {@link CacheElementFactory} is a {@link FreezingCacheElementFactory} the stored {@link V}s are immutable,
+ * so they are returned as they are without being copied.
  * <p/>
  * The returned {@code java.util.Map} is effectively a read-only {@code java.util.Map},
  * that means that all methods which attempt to modify the underlying {@code java.util.Map}
  * will throw a {@code java.lang.UnsupportedOperationException}.
+ * <p/>
+ * A {@link RevisionObjectCacheMap} returned by {@link RootObjectCache#asMap()} keeps the history of its revision
+ * until it is closed, or until it is garbage collected if it is never closed. It can't be read once it is closed.
  *
  * @author Aidan Morgan
  */
-public class RevisionObjectCacheMap<K,V> implements Map<K, V> {
+public class RevisionObjectCacheMap<K, V> extends AbstractMap<K, V> implements AutoCloseable {
+  /**
+   * The {@link RootObjectCache} that the {@link V}s are read from.
+   */
+  private final RootObjectCache<K, V> rootCache;
+
+  /**
+   * The revision that this {@link RevisionObjectCacheMap} is a view of.
+   */
+  private final long revision;
+
+  /**
+   * The immutable {@code java.util.Set} of {@link K}s at {@link RevisionObjectCacheMap#revision}.
+   */
+  private final Set<K> keys;
+
   /**
-   * A {@code java.util.Map} of {@link K} to {@link V}.
+   * Releases the revision when this {@link RevisionObjectCacheMap} is closed, {@code null} if there is nothing to
+   * release.
    */
-  private Map<K, V> valueMap;
+  private final Runnable release;
+
+  /**
+   * Set once this {@link RevisionObjectCacheMap} has been closed.
+   */
+  private volatile boolean closed;
 
   /**
    * Constructor.
    *
-   * @param rootCache the {@code com.github.pojomvcc.impl.RootObjectCacheImpl} to initialise this
-   *                  {@link RevisionObjectCacheMap} from.
+   * @param rootCache the {@link RootObjectCache} to read the {@link V}s from.
+   * @param revision  the revision that this {@link RevisionObjectCacheMap} is a view of, which the caller must
+   *                  make sure is not expired whilst this {@link RevisionObjectCacheMap} is in use.
+   * @param keys      the immutable {@code java.util.Set} of {@link K}s at the revision.
    */
-  public RevisionObjectCacheMap(RootObjectCache<K,V> rootCache) {
-    valueMap = new HashMap<K, V>(rootCache.size());
-    initialiseMap(rootCache);
+  public RevisionObjectCacheMap(RootObjectCache<K, V> rootCache, long revision, Set<K> keys) {
+    this(rootCache, revision, keys, null);
   }
 
   /**
-   * Initalises the underlying {@code java.util.Map} from the provided {@link RootObjectCache}.
+   * Constructor.
    *
-   * @param rootCache
+   * @param rootCache the {@link RootObjectCache} to read the {@link V}s from.
+   * @param revision  the revision that this {@link RevisionObjectCacheMap} is a view of, which must not be
+   *                  expired until this {@link RevisionObjectCacheMap} is closed.
+   * @param keys      the immutable {@code java.util.Set} of {@link K}s at the revision.
+   * @param release   run when this {@link RevisionObjectCacheMap} is closed, to say that the revision is no longer
+   *                  needed.
    */
-  private void initialiseMap(RootObjectCache<K,V> rootCache) {
-    RevisionObjectCache<K,V> cache = rootCache.checkout();
+  public RevisionObjectCacheMap(RootObjectCache<K, V> rootCache, long revision, Set<K> keys, Runnable release) {
+    this.rootCache = rootCache;
+    this.revision = revision;
+    this.keys = Collections.unmodifiableSet(keys);
+    this.release = release;
+  }
 
-    for (K key : cache.getKeys()) {
-      valueMap.put(key, cache.getElement(key));
-    }
-    
-    cache.close();
+  /**
+   * Returns the revision that this {@link RevisionObjectCacheMap} is a view of.
+   *
+   * @return
+   */
+  public long getRevision() {
+    return revision;
   }
 
   /**
    * @inheritDoc
    */
   public int size() {
-    return valueMap.size();
+    return keys.size();
   }
 
   /**
    * @inheritDoc
    */
   public boolean isEmpty() {
-    return valueMap.isEmpty();
+    return keys.isEmpty();
   }
 
   /**
    * @inheritDoc
    */
   public boolean containsKey(Object key) {
-    return valueMap.containsKey(key);
+    return keys.contains(key);
   }
 
   /**
    * @inheritDoc
    */
-  public boolean containsValue(Object value) {
-    return valueMap.containsValue(value);
+  @SuppressWarnings({"unchecked"})
+  public V get(Object key) {
+    checkOpen();
+
+    if (!keys.contains(key)) {
+      return null;
+    }
+
+    return lookup((K) key);
   }
 
   /**
-   * @inheritDoc
+   * Releases the revision of this {@link RevisionObjectCacheMap}, so that its history can be expired. Closing a
+   * {@link RevisionObjectCacheMap} more than once has no further effect.
    */
-  public V get(Object key) {
-    return valueMap.get(key);
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    if (release != null) {
+      release.run();
+    }
+  }
+
+  /**
+   * Returns a clone of the {@link V} with the provided {@link K} at {@link RevisionObjectCacheMap#revision}, or the
+   * stored {@link V} itself if it is frozen. The revision may have been expired once this
+   * {@link RevisionObjectCacheMap} is closed.
+   */
+  private V lookup(K key) {
+    checkOpen();
+
+    V element = rootCache.getElementWithRevision(revision, key);
+    CacheElementFactory<V> factory = rootCache.getElementFactory();
+
+    if (element == null || factory instanceof FreezingCacheElementFactory) {
+      return element;
+    }
+
+    return factory.createClone(element);
+  }
+
+  /**
+   * Throws an {@link ObjectCacheException} if this {@link RevisionObjectCacheMap} has been closed.
+   */
+  private void checkOpen() {
+    if (closed) {
+      throw new ObjectCacheException("Cannot read from a RevisionObjectCacheMap that has been closed.");
+    }
   }
 
   /**
@@ -119,20 +209,76 @@ public class RevisionObjectCacheMap<K,V> implements Map<K, V> {
    * @inheritDoc
    */
   public Set<K> keySet() {
-    return valueMap.keySet();
+    return keys;
   }
 
   /**
    * @inheritDoc
+   * <p/>
+   * The entries are created as they are iterated, looking up the {@link V} for each key.
    */
-  public Collection<V> values() {
-    return valueMap.values();
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      public Iterator<Entry<K, V>> iterator() {
+        final Iterator<K> it = keys.iterator();
+
+        return new Iterator<Entry<K, V>>() {
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          public Entry<K, V> next() {
+            K key = it.next();
+            return new SimpleImmutableEntry<K, V>(key, lookup(key));
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException("Cannot remove values from a RevisionObjectCacheMap.");
+          }
+        };
+      }
+
+      public int size() {
+        return keys.size();
+      }
+
+      public Spliterator<Entry<K, V>> spliterator() {
+        return new EntrySpliterator(keys.spliterator());
+      }
+    };
   }
 
   /**
-   * @inheritDoc
+   * {@code java.util.Spliterator} that looks up the {@link V} for each {@link K} of the key set's
+   * {@code java.util.Spliterator}, splitting wherever the key set splits. Reading from the {@link RootObjectCache}
+   * does not take any locks, so the entries can be processed in parallel.
    */
-  public Set<Entry<K, V>> entrySet() {
-    return valueMap.entrySet();
+  private final class EntrySpliterator implements Spliterator<Entry<K, V>> {
+    private final Spliterator<K> keys;
+
+    EntrySpliterator(Spliterator<K> keys) {
+      this.keys = keys;
+    }
+
+    public boolean tryAdvance(final Consumer<? super Entry<K, V>> action) {
+      return keys.tryAdvance(new Consumer<K>() {
+        public void accept(K key) {
+          action.accept(new SimpleImmutableEntry<K, V>(key, lookup(key)));
+        }
+      });
+    }
+
+    public Spliterator<Entry<K, V>> trySplit() {
+      Spliterator<K> split = keys.trySplit();
+      return split != null ? new EntrySpliterator(split) : null;
+    }
+
+    public long estimateSize() {
+      return keys.estimateSize();
+    }
+
+    public int characteristics() {
+      return keys.characteristics() & (DISTINCT | NONNULL | IMMUTABLE | SIZED | SUBSIZED);
+    }
   }
 }
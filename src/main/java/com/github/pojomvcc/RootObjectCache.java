@@ -1,7 +1,12 @@
 package com.github.pojomvcc;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The {@link RootObjectCache} is the base-cache for all operations. The {@code com.github.pojomvcc.RootObjectCache}
@@ -14,22 +19,61 @@ import java.util.Map;
  * @author Aidan Morgan
  */
 public interface RootObjectCache<K, V> extends ObjectCache<K, V> {
+  /**
+   * Returns an immutable {@code java.util.Set} of {@link K} which are the registered keys for the
+   * provided revision of the cache.
+   * <p/>
+   * The returned {@code java.util.Set} is shared with the {@link RootObjectCache}, it is not copied.
+   * <p/>
+   * The default implementation copies {@link RootObjectCache#getKeysForRevision(long)} instead.
+   *
+   * @param revision
+   * @return
+   */
+  public default Set<K> getKeySetForRevision(long revision) {
+    return Collections.unmodifiableSet(new LinkedHashSet<K>(getKeysForRevision(revision)));
+  }
+
+  /**
+   * Returns an immutable {@code java.util.Set} of {@link K}s for the current revision.
+   *
+   * @return
+   * @see {@link RootObjectCache#getKeySetForRevision(long)}
+   * @see {@link ObjectCache#getRevision()}
+   */
+  public default Set<K> getKeySet() {
+    return getKeySetForRevision(getRevision());
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The default implementation splits {@link RootObjectCache#getKeySet()}.
+   */
+  public default Spliterator<K> keySpliterator() {
+    return getKeySet().spliterator();
+  }
+
   /**
    * Returns a {@code java.util.List} of {@link K} which are the registered keys for the
    * provided revision of the cache.
    *
    * @param revision
    * @return
+   * @deprecated the keys are copied into the {@code java.util.List} on every call, use
+   *             {@link RootObjectCache#getKeySetForRevision(long)} instead.
    */
+  @Deprecated
   public List<K> getKeysForRevision(long revision);
 
   /**
    * Returns a {@code java.util.List} of {@link K}s for the current revision.
    *
    * @return
-   * @srr {@link RootObjectCache#getKeysForRevision(long)}
-   * @see {@link ObjectCache#getRevision()}
+   * @deprecated the keys are copied into the {@code java.util.List} on every call, use
+   *             {@link RootObjectCache#getKeySet()} instead.
    */
+  @Deprecated
   public List<K> getKeys();
 
   /**
@@ -71,7 +115,11 @@ public interface RootObjectCache<K, V> extends ObjectCache<K, V> {
 
   /**
    * Creates a "checkout" of this {@link RootObjectCache}, but is considered read-only. No changes can be
-   * made to the returned {@link ReadOnlyRevisionObjectCache} and it is not tracked by the {@link RootObjectCache}.
+   * made to the returned {@link ReadOnlyRevisionObjectCache} and it is not tracked by the {@link RootObjectCache},
+   * but the history of its revision is not expired whilst it is in use.
+   * <p/>
+   * The returned {@link ReadOnlyRevisionObjectCache} does not clone the {@link V}s it returns, they are the instances
+   * stored in this {@link RootObjectCache} and must not be modified (see {@link FreezingCacheElementFactory}).
    *
    * @return
    */
@@ -81,10 +129,166 @@ public interface RootObjectCache<K, V> extends ObjectCache<K, V> {
    * Committs all changes in the provided {@code com.github.pojomvcc.RevisionObjectCache} to this {@code com.github.pojomvcc.RootObjectCache},
    * that is, all added, removed and modified {@code V}s are updated and the revision
    * number is incremented.
+   * <p/>
+   * If group commit is enabled in the {@link CommitOptions} the changes may be applied in the same revision
+   * as the changes of other, concurrent, commits.
    *
    * @param cache
+   * @return the revision that the changes were committed in.
+   * @see RootObjectCache#setCommitOptions(CommitOptions)
+   */
+  public long commit(RevisionObjectCache<K, V> cache);
+
+  /**
+   * Defines the {@link CommitOptions} that determine how commits are applied to this {@link RootObjectCache}.
+   * <p/>
+   * The default implementation only supports commits that are applied one at a time, and throws a
+   * {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param options
+   */
+  public default void setCommitOptions(CommitOptions options) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support CommitOptions.");
+  }
+
+  /**
+   * Returns the {@link CommitOptions} that are used by this {@link RootObjectCache}.
+   * <p/>
+   * The default implementation returns {@link CommitOptions#DEFAULT()}.
+   *
+   * @return
+   */
+  public default CommitOptions getCommitOptions() {
+    return CommitOptions.DEFAULT();
+  }
+
+  /**
+   * Defines the {@link VacuumOptions} that determine when the history expired by the {@link CacheExpiry} is
+   * reclaimed.
+   * <p/>
+   * The default implementation only supports reclaiming history as it is expired, and throws a
+   * {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param options
+   */
+  public default void setVacuumOptions(VacuumOptions options) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support VacuumOptions.");
+  }
+
+  /**
+   * Returns the {@link VacuumOptions} that are used by this {@link RootObjectCache}.
+   * <p/>
+   * The default implementation returns {@link VacuumOptions#SYNCHRONOUS()}.
+   *
+   * @return
+   */
+  public default VacuumOptions getVacuumOptions() {
+    return VacuumOptions.SYNCHRONOUS();
+  }
+
+  /**
+   * Defines the {@link StorageOptions} that determine where versions that are no longer leading are kept. Only
+   * versions superseded after the {@link StorageOptions} are set are affected.
+   * <p/>
+   * The default implementation only supports keeping versions on the heap, and throws a
+   * {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param options
+   */
+  public default void setStorageOptions(StorageOptions<K, V> options) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support StorageOptions.");
+  }
+
+  /**
+   * Returns the {@link StorageOptions} that are used by this {@link RootObjectCache}.
+   * <p/>
+   * The default implementation returns {@link StorageOptions#ON_HEAP()}.
+   *
+   * @return
+   */
+  public default StorageOptions<K, V> getStorageOptions() {
+    return StorageOptions.ON_HEAP();
+  }
+
+  /**
+   * Defines the {@link CommitLog} that every revision is recorded in before it is made visible, or {@code null} to
+   * not record revisions.
+   * <p/>
+   * The default implementation does not record revisions, and throws a
+   * {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param log
+   */
+  public default void setCommitLog(CommitLog<K, V> log) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support a CommitLog.");
+  }
+
+  /**
+   * Returns the {@link CommitLog} that revisions are recorded in, or {@code null} if there isn't one.
+   * <p/>
+   * The default implementation returns {@code null}.
+   *
+   * @return
+   */
+  public default CommitLog<K, V> getCommitLog() {
+    return null;
+  }
+
+  /**
+   * Adds a {@link CommitListener} that is told about every revision after the current revision, until it is removed
+   * or it fails.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param listener
+   */
+  public default void addCommitListener(CommitListener<K, V> listener) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support CommitListeners.");
+  }
+
+  /**
+   * Removes a {@link CommitListener} that was added with
+   * {@link RootObjectCache#addCommitListener(CommitListener)}.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param listener
+   */
+  public default void removeCommitListener(CommitListener<K, V> listener) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support CommitListeners.");
+  }
+
+  /**
+   * Applies the provided {@link CommitRecord} at its original revision, without validating it or recording it in
+   * the {@link CommitLog}. This is used to rebuild a {@link RootObjectCache} from a log and must not be called
+   * whilst commits are in progress.
+   * <p/>
+   * A {@link CommitRecord} with a revision at or before the current head has already been applied and is ignored.
+   * Revisions between the current head and the {@link CommitRecord} are skipped.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param record the {@link CommitRecord} to apply.
+   */
+  public default void replay(CommitRecord<K, V> record) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support replaying a CommitRecord.");
+  }
+
+  /**
+   * Loads the provided {@link V}s into this empty {@link RootObjectCache} as a single revision, without validating
+   * them or recording them in the {@link CommitLog}. The partitions are loaded in parallel by the threads of the
+   * provided {@code java.util.concurrent.ForkJoinPool}. This is used to restore a {@link RootObjectCache} from a
+   * checkpoint and must not be called whilst commits are in progress.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param revision   the revision to load the {@link V}s at, which becomes the current revision.
+   * @param partitions the {@link K}s and {@link V}s to load, no {@link K} may be in more than one partition.
+   * @param pool       the {@code java.util.concurrent.ForkJoinPool} to load the partitions on.
    */
-  public void commit(RevisionObjectCache<K, V> cache);
+  public default void load(long revision, List<Map<K, V>> partitions, ForkJoinPool pool) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support loading a checkpoint.");
+  }
 
   /**
    * Defines the {@code com.github.pojomvcc.CacheExpiry} that defines how and when {@code V}s
@@ -110,6 +314,53 @@ public interface RootObjectCache<K, V> extends ObjectCache<K, V> {
    */
   public void close(RevisionObjectCache<K, V> revisionObjectCache);
 
+  /**
+   * Callback from a {@link RevisionObjectCache} that it is moving to a newer revision, the older revision is no
+   * longer needed by the {@link RevisionObjectCache} and the newer revision must be kept until it is closed (or
+   * moved again). Must be called before {@link RevisionObjectCache#getRevision()} returns the newer revision.
+   * <p/>
+   * The default implementation does nothing, for a {@link RootObjectCache} that does not track the revisions in use.
+   *
+   * @param revisionObjectCache the {@link RevisionObjectCache} that is moving.
+   * @param revision            the revision it is moving to, which must not be older than its current revision.
+   */
+  public default void rebase(RevisionObjectCache<K, V> revisionObjectCache, long revision) {
+  }
+
+  /**
+   * Returns the {@link K}s that were added, modified or removed by the revisions after {@code fromRevision} up to
+   * and including {@code toRevision}.
+   * <p/>
+   * Only the change records of the revisions in between are read, so this costs time proportional to the number
+   * of changes rather than the size of this {@link RootObjectCache}.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param fromRevision the revision to start from (exclusive), which must not have been expired.
+   * @param toRevision   the revision to finish at (inclusive).
+   * @return
+   */
+  public default Set<K> getChangedKeys(long fromRevision, long toRevision) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support finding the changed keys.");
+  }
+
+  /**
+   * Returns the {@link K}s that were added, modified or removed between two retained revisions, and the
+   * {@link V}s at either revision.
+   * <p/>
+   * The {@link RevisionDiff} is computed from the change records of the revisions in between as it is iterated,
+   * it does not compare the key sets or {@link V}s of the two revisions.
+   * <p/>
+   * The default implementation throws a {@code java.lang.UnsupportedOperationException}.
+   *
+   * @param fromRevision the revision to diff from, which must not have been expired.
+   * @param toRevision   the revision to diff to, which must not be older than {@code fromRevision}.
+   * @return
+   */
+  public default RevisionDiff<K, V> diff(long fromRevision, long toRevision) {
+    throw new UnsupportedOperationException("This RootObjectCache does not support diffing revisions.");
+  }
+
   /**
    * Returns a {@code List} of {@link RevisionObjectCache}s that are currently active (not closed).
    *
@@ -118,15 +369,43 @@ public interface RootObjectCache<K, V> extends ObjectCache<K, V> {
    */
   public List<RevisionObjectCache<K, V>> getActiveRevisions();
 
+  /**
+   * Returns the oldest revision that is in use by an active {@link RevisionObjectCache}, or the current revision if
+   * there are no active {@link RevisionObjectCache}s. Revisions older than this are no longer needed by any
+   * {@link RevisionObjectCache}.
+   * <p/>
+   * Unlike {@link RootObjectCache#getActiveRevisions()} this does not visit every active {@link RevisionObjectCache}.
+   * <p/>
+   * The default implementation does visit every {@link RevisionObjectCache} returned by
+   * {@link RootObjectCache#getActiveRevisions()}.
+   *
+   * @return
+   */
+  public default long getOldestActiveRevision() {
+    long oldest = getRevision();
+
+    for (RevisionObjectCache<K, V> active : getActiveRevisions()) {
+      oldest = Math.min(oldest, active.getRevision());
+    }
+
+    return oldest;
+  }
+
   /**
    * Returns a {@code java.util.Map} which is a simple mechanism for getting the current revision in a
    * read-only manner.
    * <p/>
-   * The returned {@code java.util.Map} is read-only and cannot be modified in any way.
+   * The returned {@code java.util.Map} is read-only and cannot be modified in any way. It is a view of the
+   * revision rather than a copy, the {@link V}s it returns are cloned as they are read unless the
+   * {@link CacheElementFactory} is a {@link FreezingCacheElementFactory}, in which case the stored (frozen)
+   * {@link V}s are returned without being copied.
+   * <p/>
+   * The history of the revision is kept until the {@link RevisionObjectCacheMap} is closed, or until it is garbage
+   * collected if it is never closed.
    *
    * @return
    */
-  public Map<K, V> asMap();
+  public RevisionObjectCacheMap<K, V> asMap();
 
   /**
    * Returns {@code true} if this {@link RootObjectCache} contains the provided
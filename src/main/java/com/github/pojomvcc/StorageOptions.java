@@ -0,0 +1,104 @@
+package com.github.pojomvcc;
+
+import com.github.pojomvcc.util.OffHeapArena;
+
+/**
+ * {@code StorageOptions} define where a {@link RootObjectCache} keeps the versions of {@link V}s that are no longer
+ * the leading version.
+ * <p/>
+ * By default every version is kept on the heap as a live object until it is expired. When history is moved off
+ * the heap a version is encoded with a {@link CacheElementCodec} into an {@link OffHeapArena} as soon as a newer
+ * version is committed, and decoded again each time it is read through
+ * {@link RootObjectCache#getElementWithRevision(long, Object)}. Only the leading versions remain as objects on
+ * the heap, which keeps long lived history (for example history pinned by a long running
+ * {@link RevisionObjectCache}) out of the old generation, at the cost of encoding every superseded version and
+ * decoding every read of an old revision.
+ *
+ * @author Aidan Morgan
+ */
+public class StorageOptions<K, V> {
+  /**
+   * The default {@link StorageOptions}, every version is kept on the heap.
+   */
+  public static <K, V> StorageOptions<K, V> ON_HEAP() {
+    return new StorageOptions<K, V>(null, 0);
+  }
+
+  /**
+   * Creates {@link StorageOptions} that move superseded versions off the heap, using chunks of
+   * {@link OffHeapArena#DEFAULT_CHUNK_SIZE}.
+   *
+   * @param codec the {@link CacheElementCodec} used to encode the superseded versions.
+   * @return
+   */
+  public static <K, V> StorageOptions<K, V> OFF_HEAP(CacheElementCodec<K, V> codec) {
+    return OFF_HEAP(codec, OffHeapArena.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Creates {@link StorageOptions} that move superseded versions off the heap.
+   *
+   * @param codec     the {@link CacheElementCodec} used to encode the superseded versions.
+   * @param chunkSize the size of each chunk of direct memory that is allocated.
+   * @return
+   */
+  public static <K, V> StorageOptions<K, V> OFF_HEAP(CacheElementCodec<K, V> codec, int chunkSize) {
+    if (codec == null) {
+      throw new ObjectCacheException("A CacheElementCodec is required to store history off the heap.");
+    }
+
+    if (chunkSize < 1) {
+      throw new ObjectCacheException("The chunk size must be positive, " + chunkSize + " provided.");
+    }
+
+    return new StorageOptions<K, V>(codec, chunkSize);
+  }
+
+  /**
+   * The {@link CacheElementCodec} used to encode superseded versions, {@code null} if they are kept on the heap.
+   */
+  private final CacheElementCodec<K, V> codec;
+
+  /**
+   * The size of each chunk of direct memory.
+   */
+  private final int chunkSize;
+
+  /**
+   * Constructor.
+   *
+   * @param codec     the {@link CacheElementCodec} used to encode superseded versions.
+   * @param chunkSize the size of each chunk of direct memory.
+   */
+  private StorageOptions(CacheElementCodec<K, V> codec, int chunkSize) {
+    this.codec = codec;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Returns {@code true} if superseded versions are moved off the heap.
+   *
+   * @return
+   */
+  public boolean isOffHeap() {
+    return codec != null;
+  }
+
+  /**
+   * Returns the {@link CacheElementCodec} used to encode superseded versions.
+   *
+   * @return
+   */
+  public CacheElementCodec<K, V> getCodec() {
+    return codec;
+  }
+
+  /**
+   * Returns the size of each chunk of direct memory.
+   *
+   * @return
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+}
@@ -0,0 +1,99 @@
+package com.github.pojomvcc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code VacuumOptions} define when a {@link RootObjectCache} reclaims the history that its {@link CacheExpiry}
+ * has decided to expire.
+ * <p/>
+ * By default history is reclaimed synchronously whenever a {@link RevisionObjectCache} is closed, which holds the
+ * {@link RootObjectCache}'s write lock (blocking checkouts and other closes) for as long as it takes. A background
+ * vacuum instead reclaims history on a dedicated thread in time slices of a bounded length, releasing the lock and
+ * pausing between slices, and closing a {@link RevisionObjectCache} only signals it to run.
+ *
+ * @author Aidan Morgan
+ */
+public class VacuumOptions {
+  /**
+   * The default {@link VacuumOptions}, history is reclaimed synchronously when a {@link RevisionObjectCache} is
+   * closed.
+   */
+  public static VacuumOptions SYNCHRONOUS() {
+    return new VacuumOptions(false, 0L, 0L);
+  }
+
+  /**
+   * Creates {@link VacuumOptions} that reclaim history on a background thread.
+   *
+   * @param slice the longest time the vacuum holds the write lock for before it pauses.
+   * @param pause the time the vacuum waits between slices.
+   * @param unit  the {@code java.util.concurrent.TimeUnit} of {@code slice} and {@code pause}.
+   * @return
+   */
+  public static VacuumOptions BACKGROUND(long slice, long pause, TimeUnit unit) {
+    if (slice <= 0) {
+      throw new ObjectCacheException("The vacuum slice must be positive, " + slice + " provided.");
+    }
+
+    if (pause < 0) {
+      throw new ObjectCacheException("The vacuum pause cannot be negative, " + pause + " provided.");
+    }
+
+    return new VacuumOptions(true, unit.toNanos(slice), unit.toNanos(pause));
+  }
+
+  /**
+   * {@code true} if history is reclaimed on a background thread.
+   */
+  private final boolean background;
+
+  /**
+   * The longest time, in nanoseconds, that a background vacuum holds the write lock for.
+   */
+  private final long sliceNanos;
+
+  /**
+   * The time, in nanoseconds, that a background vacuum waits between slices.
+   */
+  private final long pauseNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param background {@code true} if history is reclaimed on a background thread.
+   * @param sliceNanos the longest time, in nanoseconds, that a background vacuum holds the write lock for.
+   * @param pauseNanos the time, in nanoseconds, that a background vacuum waits between slices.
+   */
+  private VacuumOptions(boolean background, long sliceNanos, long pauseNanos) {
+    this.background = background;
+    this.sliceNanos = sliceNanos;
+    this.pauseNanos = pauseNanos;
+  }
+
+  /**
+   * Returns {@code true} if history is reclaimed on a background thread.
+   *
+   * @return
+   */
+  public boolean isBackground() {
+    return background;
+  }
+
+  /**
+   * Returns the longest time, in nanoseconds, that a background vacuum holds the write lock for.
+   *
+   * @return
+   */
+  public long getSliceNanos() {
+    return sliceNanos;
+  }
+
+  /**
+   * Returns the time, in nanoseconds, that a background vacuum waits between slices.
+   *
+   * @return
+   */
+  public long getPauseNanos() {
+    return pauseNanos;
+  }
+}
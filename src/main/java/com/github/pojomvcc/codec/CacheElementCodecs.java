@@ -0,0 +1,86 @@
+package com.github.pojomvcc.codec;
+
+import com.github.pojomvcc.CacheElementCodec;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Helper methods for using a {@link CacheElementCodec} with byte arrays.
+ *
+ * @author Aidan Morgan
+ */
+public final class CacheElementCodecs {
+  /**
+   * The size of the buffer to start with when the {@link CacheElementCodec} can't estimate the size.
+   */
+  private static final int DEFAULT_BUFFER_SIZE = 64;
+
+  private CacheElementCodecs() {
+  }
+
+  /**
+   * Returns the encoded form of the provided key.
+   *
+   * @param codec
+   * @param key
+   * @return
+   */
+  public static <K, V> byte[] encodeKey(CacheElementCodec<K, V> codec, K key) {
+    for (int size = DEFAULT_BUFFER_SIZE; ; size *= 2) {
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+
+      try {
+        codec.encodeKey(key, buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+      } catch (BufferOverflowException e) {
+        // try again with a bigger buffer.
+      }
+    }
+  }
+
+  /**
+   * Returns the encoded form of the provided element.
+   *
+   * @param codec
+   * @param element
+   * @return
+   */
+  public static <K, V> byte[] encode(CacheElementCodec<K, V> codec, V element) {
+    int estimate = codec.estimateSize(element);
+
+    for (int size = estimate > 0 ? estimate : DEFAULT_BUFFER_SIZE; ; size *= 2) {
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+
+      try {
+        codec.encode(element, buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+      } catch (BufferOverflowException e) {
+        // the estimate was too small, try again with a bigger buffer.
+      }
+    }
+  }
+
+  /**
+   * Returns the key decoded from the provided bytes.
+   *
+   * @param codec
+   * @param bytes
+   * @return
+   */
+  public static <K, V> K decodeKey(CacheElementCodec<K, V> codec, byte[] bytes) {
+    return codec.decodeKey(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Returns the element decoded from the provided bytes.
+   *
+   * @param codec
+   * @param bytes
+   * @return
+   */
+  public static <K, V> V decode(CacheElementCodec<K, V> codec, byte[] bytes) {
+    return codec.decode(ByteBuffer.wrap(bytes));
+  }
+}
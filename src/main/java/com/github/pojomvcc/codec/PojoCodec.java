@@ -0,0 +1,485 @@
+package com.github.pojomvcc.codec;
+
+import com.github.pojomvcc.CacheElementCodec;
+import com.github.pojomvcc.ObjectCacheException;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link CacheElementCodec} for simple POJOs that writes the fields of a {@link K} or {@link V} directly, without
+ * the class descriptors and stream headers of Java serialization.
+ * <p/>
+ * The layout of each class (its fields and how to write them) is worked out once when the {@link PojoCodec} is
+ * created, encoding an object is then a walk over an array of field writers. Primitive fields are read and written
+ * using the primitive {@code java.lang.reflect.Field} accessors, so they are never boxed.
+ * <p/>
+ * The following types are supported, both as the {@link K} and {@link V} classes and as the types of their
+ * fields:
+ * <ul>
+ * <li>the primitive types and their boxed equivalents,</li>
+ * <li>{@code java.lang.String}, stored as UTF-8,</li>
+ * <li>{@code enum}s, stored by ordinal,</li>
+ * <li>{@code byte[]},</li>
+ * <li>any other class with a no-argument constructor whose fields are all supported types, which is written
+ * field by field.</li>
+ * </ul>
+ * Static and {@code transient} fields are skipped. Fields are written according to their declared type, so a
+ * field that holds an instance of a subclass of its declared type cannot be encoded. There is no support for
+ * collections or for object graphs with shared references or cycles, use a {@link SerializableCodec} (or a
+ * hand-written {@link CacheElementCodec}) for those.
+ *
+ * @author Aidan Morgan
+ */
+public class PojoCodec<K, V> implements CacheElementCodec<K, V> {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The {@link PojoCodec.TypeCodec} for the {@link K}s.
+   */
+  private final TypeCodec keyCodec;
+
+  /**
+   * The {@link PojoCodec.TypeCodec} for the {@link V}s.
+   */
+  private final TypeCodec elementCodec;
+
+  /**
+   * Constructor.
+   *
+   * @param keyClass     the class of the {@link K}s.
+   * @param elementClass the class of the {@link V}s.
+   * @throws ObjectCacheException if either class (or the type of any of their fields) is not supported.
+   */
+  public PojoCodec(Class<K> keyClass, Class<V> elementClass) {
+    Map<Class<?>, TypeCodec> codecs = new HashMap<Class<?>, TypeCodec>();
+
+    this.keyCodec = codecFor(keyClass, codecs);
+    this.elementCodec = codecFor(elementClass, codecs);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void encodeKey(K key, ByteBuffer buffer) {
+    keyCodec.write(key, buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @SuppressWarnings({"unchecked"})
+  public K decodeKey(ByteBuffer buffer) {
+    return (K) keyCodec.read(buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void encode(V element, ByteBuffer buffer) {
+    elementCodec.write(element, buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @SuppressWarnings({"unchecked"})
+  public V decode(ByteBuffer buffer) {
+    return (V) elementCodec.read(buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public int estimateSize(V element) {
+    return elementCodec.estimateSize();
+  }
+
+  /**
+   * Returns the {@link PojoCodec.TypeCodec} for the provided class, creating it (and the
+   * {@link PojoCodec.TypeCodec}s of its fields) if required.
+   */
+  private static TypeCodec codecFor(Class<?> type, Map<Class<?>, TypeCodec> codecs) {
+    TypeCodec codec = codecs.get(type);
+
+    if (codec != null) {
+      return codec;
+    }
+
+    if (type == String.class) {
+      codec = new StringCodec();
+    } else if (type == byte[].class) {
+      codec = new BytesCodec();
+    } else if (type.isEnum()) {
+      codec = new EnumCodec(type);
+    } else if (Primitive.forBoxed(type) != null) {
+      codec = new BoxedCodec(Primitive.forBoxed(type));
+    } else if (type.isPrimitive() || type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+      throw new ObjectCacheException("PojoCodec cannot encode values of type " + type.getName() + ".");
+    } else {
+      ObjectCodec objectCodec = new ObjectCodec(type);
+
+      // registered before the fields are resolved so that a class can refer to itself.
+      codecs.put(type, objectCodec);
+      objectCodec.resolve(codecs);
+      return objectCodec;
+    }
+
+    codecs.put(type, codec);
+    return codec;
+  }
+
+  /**
+   * The primitive types, and how to read and write them.
+   */
+  private static enum Primitive {
+    BOOLEAN(boolean.class, Boolean.class, 1),
+    BYTE(byte.class, Byte.class, 1),
+    SHORT(short.class, Short.class, 2),
+    CHAR(char.class, Character.class, 2),
+    INT(int.class, Integer.class, 4),
+    LONG(long.class, Long.class, 8),
+    FLOAT(float.class, Float.class, 4),
+    DOUBLE(double.class, Double.class, 8);
+
+    final Class<?> type;
+    final Class<?> boxed;
+    final int size;
+
+    Primitive(Class<?> type, Class<?> boxed, int size) {
+      this.type = type;
+      this.boxed = boxed;
+      this.size = size;
+    }
+
+    static Primitive forType(Class<?> type) {
+      for (Primitive p : values()) {
+        if (p.type == type) {
+          return p;
+        }
+      }
+
+      return null;
+    }
+
+    static Primitive forBoxed(Class<?> type) {
+      for (Primitive p : values()) {
+        if (p.boxed == type) {
+          return p;
+        }
+      }
+
+      return null;
+    }
+
+    void writeField(Field field, Object target, ByteBuffer buffer) throws IllegalAccessException {
+      switch (this) {
+        case BOOLEAN:
+          buffer.put(field.getBoolean(target) ? (byte) 1 : (byte) 0);
+          break;
+        case BYTE:
+          buffer.put(field.getByte(target));
+          break;
+        case SHORT:
+          buffer.putShort(field.getShort(target));
+          break;
+        case CHAR:
+          buffer.putChar(field.getChar(target));
+          break;
+        case INT:
+          buffer.putInt(field.getInt(target));
+          break;
+        case LONG:
+          buffer.putLong(field.getLong(target));
+          break;
+        case FLOAT:
+          buffer.putFloat(field.getFloat(target));
+          break;
+        case DOUBLE:
+          buffer.putDouble(field.getDouble(target));
+          break;
+      }
+    }
+
+    void readField(Field field, Object target, ByteBuffer buffer) throws IllegalAccessException {
+      switch (this) {
+        case BOOLEAN:
+          field.setBoolean(target, buffer.get() != 0);
+          break;
+        case BYTE:
+          field.setByte(target, buffer.get());
+          break;
+        case SHORT:
+          field.setShort(target, buffer.getShort());
+          break;
+        case CHAR:
+          field.setChar(target, buffer.getChar());
+          break;
+        case INT:
+          field.setInt(target, buffer.getInt());
+          break;
+        case LONG:
+          field.setLong(target, buffer.getLong());
+          break;
+        case FLOAT:
+          field.setFloat(target, buffer.getFloat());
+          break;
+        case DOUBLE:
+          field.setDouble(target, buffer.getDouble());
+          break;
+      }
+    }
+
+    void writeBoxed(Object value, ByteBuffer buffer) {
+      switch (this) {
+        case BOOLEAN:
+          buffer.put((Boolean) value ? (byte) 1 : (byte) 0);
+          break;
+        case BYTE:
+          buffer.put((Byte) value);
+          break;
+        case SHORT:
+          buffer.putShort((Short) value);
+          break;
+        case CHAR:
+          buffer.putChar((Character) value);
+          break;
+        case INT:
+          buffer.putInt((Integer) value);
+          break;
+        case LONG:
+          buffer.putLong((Long) value);
+          break;
+        case FLOAT:
+          buffer.putFloat((Float) value);
+          break;
+        case DOUBLE:
+          buffer.putDouble((Double) value);
+          break;
+      }
+    }
+
+    Object readBoxed(ByteBuffer buffer) {
+      switch (this) {
+        case BOOLEAN:
+          return buffer.get() != 0;
+        case BYTE:
+          return buffer.get();
+        case SHORT:
+          return buffer.getShort();
+        case CHAR:
+          return buffer.getChar();
+        case INT:
+          return buffer.getInt();
+        case LONG:
+          return buffer.getLong();
+        case FLOAT:
+          return buffer.getFloat();
+        default:
+          return buffer.getDouble();
+      }
+    }
+  }
+
+  /**
+   * Reads and writes non-null values of a single type.
+   */
+  private static abstract class TypeCodec {
+    abstract void write(Object value, ByteBuffer buffer);
+
+    abstract Object read(ByteBuffer buffer);
+
+    /**
+     * Returns a guess at the encoded size of a value, used to size buffers.
+     */
+    abstract int estimateSize();
+  }
+
+  private static final class StringCodec extends TypeCodec {
+    void write(Object value, ByteBuffer buffer) {
+      byte[] bytes = ((String) value).getBytes(UTF8);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+
+    Object read(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return new String(bytes, UTF8);
+    }
+
+    int estimateSize() {
+      return 4 + 32;
+    }
+  }
+
+  private static final class BytesCodec extends TypeCodec {
+    void write(Object value, ByteBuffer buffer) {
+      byte[] bytes = (byte[]) value;
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+
+    Object read(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return bytes;
+    }
+
+    int estimateSize() {
+      return 4 + 32;
+    }
+  }
+
+  private static final class EnumCodec extends TypeCodec {
+    private final Object[] constants;
+
+    EnumCodec(Class<?> type) {
+      this.constants = type.getEnumConstants();
+    }
+
+    void write(Object value, ByteBuffer buffer) {
+      buffer.putInt(((Enum<?>) value).ordinal());
+    }
+
+    Object read(ByteBuffer buffer) {
+      return constants[buffer.getInt()];
+    }
+
+    int estimateSize() {
+      return 4;
+    }
+  }
+
+  private static final class BoxedCodec extends TypeCodec {
+    private final Primitive primitive;
+
+    BoxedCodec(Primitive primitive) {
+      this.primitive = primitive;
+    }
+
+    void write(Object value, ByteBuffer buffer) {
+      primitive.writeBoxed(value, buffer);
+    }
+
+    Object read(ByteBuffer buffer) {
+      return primitive.readBoxed(buffer);
+    }
+
+    int estimateSize() {
+      return primitive.size;
+    }
+  }
+
+  /**
+   * Writes an object field by field. Reference fields are preceded by a byte that is {@code 0} if the field is
+   * {@code null}.
+   */
+  private static final class ObjectCodec extends TypeCodec {
+    private final Class<?> type;
+    private final Constructor<?> constructor;
+
+    private Field[] fields;
+    private Primitive[] primitives;
+    private TypeCodec[] references;
+    private int estimate;
+
+    ObjectCodec(Class<?> type) {
+      this.type = type;
+
+      try {
+        this.constructor = type.getDeclaredConstructor();
+        this.constructor.setAccessible(true);
+      } catch (NoSuchMethodException e) {
+        throw new ObjectCacheException("PojoCodec cannot encode " + type.getName() + ", it has no no-argument constructor.", e);
+      }
+    }
+
+    void resolve(Map<Class<?>, TypeCodec> codecs) {
+      List<Field> found = new ArrayList<Field>();
+
+      for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+        for (Field f : c.getDeclaredFields()) {
+          int modifiers = f.getModifiers();
+
+          if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !f.isSynthetic()) {
+            f.setAccessible(true);
+            found.add(f);
+          }
+        }
+      }
+
+      fields = found.toArray(new Field[found.size()]);
+      primitives = new Primitive[fields.length];
+      references = new TypeCodec[fields.length];
+      estimate = 0;
+
+      for (int i = 0; i < fields.length; i++) {
+        Class<?> fieldType = fields[i].getType();
+
+        if (fieldType.isPrimitive()) {
+          primitives[i] = Primitive.forType(fieldType);
+          estimate += primitives[i].size;
+        } else {
+          references[i] = codecFor(fieldType, codecs);
+          // don't follow references to the type being resolved, its estimate isn't known yet.
+          estimate += 1 + (references[i] == this ? 0 : references[i].estimateSize());
+        }
+      }
+    }
+
+    void write(Object value, ByteBuffer buffer) {
+      if (value.getClass() != type) {
+        throw new ObjectCacheException("PojoCodec for " + type.getName() + " cannot encode a " + value.getClass().getName() + ".");
+      }
+
+      try {
+        for (int i = 0; i < fields.length; i++) {
+          if (primitives[i] != null) {
+            primitives[i].writeField(fields[i], value, buffer);
+          } else {
+            Object fieldValue = fields[i].get(value);
+
+            if (fieldValue == null) {
+              buffer.put((byte) 0);
+            } else {
+              buffer.put((byte) 1);
+              references[i].write(fieldValue, buffer);
+            }
+          }
+        }
+      } catch (IllegalAccessException e) {
+        throw new ObjectCacheException("Cannot encode " + value + ".", e);
+      }
+    }
+
+    Object read(ByteBuffer buffer) {
+      try {
+        Object value = constructor.newInstance();
+
+        for (int i = 0; i < fields.length; i++) {
+          if (primitives[i] != null) {
+            primitives[i].readField(fields[i], value, buffer);
+          } else {
+            fields[i].set(value, buffer.get() == 0 ? null : references[i].read(buffer));
+          }
+        }
+
+        return value;
+      } catch (Exception e) {
+        throw new ObjectCacheException("Cannot decode a " + type.getName() + ".", e);
+      }
+    }
+
+    int estimateSize() {
+      return estimate;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.github.pojomvcc.codec;
+
+import com.github.pojomvcc.CacheElementCodec;
+import com.github.pojomvcc.ObjectCacheException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CacheElementCodec} that uses standard Java serialization, for {@link K}s and {@link V}s that are
+ * {@code java.io.Serializable} but have no better {@link CacheElementCodec}.
+ * <p/>
+ * Java serialization writes a description of every class it encounters, so this is much larger and slower than a
+ * {@link PojoCodec}, but it works for any {@code java.io.Serializable} object graph.
+ *
+ * @author Aidan Morgan
+ */
+public class SerializableCodec<K, V> implements CacheElementCodec<K, V> {
+  /**
+   * @inheritDoc
+   */
+  public void encodeKey(K key, ByteBuffer buffer) {
+    write(key, buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public K decodeKey(ByteBuffer buffer) {
+    return this.<K>read(buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void encode(V element, ByteBuffer buffer) {
+    write(element, buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public V decode(ByteBuffer buffer) {
+    return this.<V>read(buffer);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public int estimateSize(V element) {
+    return -1;
+  }
+
+  private void write(Object o, ByteBuffer buffer) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(o);
+      out.close();
+
+      buffer.putInt(bytes.size());
+      buffer.put(bytes.toByteArray());
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot serialize " + o + ".", e);
+    }
+  }
+
+  @SuppressWarnings({"unchecked"})
+  private <T> T read(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+      try {
+        return (T) in.readObject();
+      }
+      finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot deserialize object.", e);
+    } catch (ClassNotFoundException e) {
+      throw new ObjectCacheException("Cannot deserialize object.", e);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.github.pojomvcc.feed;
+
+import com.github.pojomvcc.CommitRecord;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A single revision of a {@code com.github.pojomvcc.RootObjectCache}, as published by a {@link CommitFeed}.
+ * <p/>
+ * The {@link V}s are only available if the {@link CommitFeed} was created to include them, they are the versions
+ * stored in the {@code com.github.pojomvcc.RootObjectCache} and must not be modified. If they are not included
+ * the {@link CommitEvent} only holds the {@link K}s, so a buffered {@link CommitEvent} doesn't keep the {@link V}s
+ * of its revision reachable.
+ *
+ * @author Aidan Morgan
+ */
+public class CommitEvent<K, V> {
+  /**
+   * The revision.
+   */
+  private final long revision;
+
+  /**
+   * The {@link CommitRecord} of the revision, or {@code null} if the {@link V}s are not included.
+   */
+  private final CommitRecord<K, V> record;
+
+  /**
+   * The {@link K}s that were added, modified and removed by the revision.
+   */
+  private final Set<K> addedKeys;
+  private final Set<K> modifiedKeys;
+  private final Set<K> removedKeys;
+
+  /**
+   * The time the revision was published, in milliseconds since the epoch.
+   */
+  private final long timestamp;
+
+  /**
+   * {@code true} if {@link CommitEvent#getElement(Object)} can return the {@link V}s.
+   */
+  private final boolean includeElements;
+
+  /**
+   * Constructor.
+   *
+   * @param record          the {@link CommitRecord} of the revision.
+   * @param timestamp       the time the revision was published, in milliseconds since the epoch.
+   * @param includeElements {@code true} if the {@link V}s should be available.
+   */
+  public CommitEvent(CommitRecord<K, V> record, long timestamp, boolean includeElements) {
+    this.revision = record.getRevision();
+    this.timestamp = timestamp;
+    this.includeElements = includeElements;
+    this.removedKeys = record.getRemoved();
+
+    if (includeElements) {
+      this.record = record;
+      this.addedKeys = record.getAdded().keySet();
+      this.modifiedKeys = record.getModified().keySet();
+    } else {
+      // the key sets of the record are views of its maps, which would keep the V's reachable.
+      this.record = null;
+      this.addedKeys = Collections.unmodifiableSet(new LinkedHashSet<K>(record.getAdded().keySet()));
+      this.modifiedKeys = Collections.unmodifiableSet(new LinkedHashSet<K>(record.getModified().keySet()));
+    }
+  }
+
+  /**
+   * Returns the revision.
+   *
+   * @return
+   */
+  public long getRevision() {
+    return revision;
+  }
+
+  /**
+   * Returns the time the revision was published, in milliseconds since the epoch.
+   *
+   * @return
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Returns the {@link K}s that were added by the revision.
+   *
+   * @return
+   */
+  public Set<K> getAddedKeys() {
+    return addedKeys;
+  }
+
+  /**
+   * Returns the {@link K}s that were modified by the revision.
+   *
+   * @return
+   */
+  public Set<K> getModifiedKeys() {
+    return modifiedKeys;
+  }
+
+  /**
+   * Returns the {@link K}s that were removed by the revision.
+   *
+   * @return
+   */
+  public Set<K> getRemovedKeys() {
+    return removedKeys;
+  }
+
+  /**
+   * Returns {@code true} if {@link CommitEvent#getElement(Object)} returns the {@link V}s, {@code false} if the
+   * {@link CommitFeed} only publishes the {@link K}s.
+   *
+   * @return
+   */
+  public boolean hasElements() {
+    return includeElements;
+  }
+
+  /**
+   * Returns the {@link V} that the revision added or modified for the provided {@link K}, or {@code null} if the
+   * revision did not add or modify it or this {@link CommitEvent} does not include the {@link V}s.
+   *
+   * @param key
+   * @return
+   */
+  public V getElement(K key) {
+    if (!includeElements) {
+      return null;
+    }
+
+    V added = record.getAdded().get(key);
+    return added != null ? added : record.getModified().get(key);
+  }
+
+  @Override
+  public String toString() {
+    return "CommitEvent[revision=" + getRevision() + ", added=" + getAddedKeys().size() + ", modified=" + getModifiedKeys().size() + ", removed=" + getRemovedKeys().size() + "]";
+  }
+}
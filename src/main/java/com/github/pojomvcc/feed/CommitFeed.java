@@ -0,0 +1,338 @@
+package com.github.pojomvcc.feed;
+
+import com.github.pojomvcc.CommitListener;
+import com.github.pojomvcc.CommitRecord;
+import com.github.pojomvcc.ObjectCacheException;
+import com.github.pojomvcc.RootObjectCache;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code java.util.concurrent.Flow.Publisher} of a {@link CommitEvent} for every revision of a
+ * {@link RootObjectCache}, from the time the {@link CommitFeed} is created until it is closed.
+ * <p/>
+ * Publishing a revision only adds the {@link CommitEvent} to a bounded buffer for each subscriber, the
+ * {@code java.util.concurrent.Flow.Subscriber}s are called on the {@code java.util.concurrent.Executor} of the
+ * {@link CommitFeed} and only as fast as they request {@link CommitEvent}s. A commit never waits for a subscriber.
+ * <p/>
+ * If a subscriber falls so far behind that its buffer is full, or the {@code java.util.concurrent.Executor} rejects
+ * it, the subscription is cancelled and the subscriber is given an {@link ObjectCacheException} rather than silently
+ * missing revisions. It can subscribe again and catch
+ * up from the last revision it saw using {@link RootObjectCache#diff(long, long)}, provided it keeps that revision
+ * checked out. If the {@link CommitFeed} itself fails to publish a revision it stops, and every subscriber is given
+ * an {@link ObjectCacheException}.
+ *
+ * @author Aidan Morgan
+ */
+public class CommitFeed<K, V> implements Flow.Publisher<CommitEvent<K, V>>, CommitListener<K, V> {
+  /**
+   * The default number of {@link CommitEvent}s that are buffered for each subscriber.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = Flow.defaultBufferSize();
+
+  /**
+   * How long the thread of an executor created by a {@link CommitFeed} waits for more work before it exits.
+   */
+  private static final long IDLE_SECONDS = 1L;
+
+  private final RootObjectCache<K, V> rootCache;
+  private final Executor executor;
+
+  private final int bufferSize;
+  private final boolean includeElements;
+
+  /**
+   * The subscriptions that are still receiving {@link CommitEvent}s.
+   */
+  private final Set<FeedSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean closed;
+
+  /**
+   * Why this {@link CommitFeed} stopped publishing revisions, or {@code null} if it hasn't failed.
+   */
+  private volatile ObjectCacheException failure;
+
+  /**
+   * Constructor. Publishes the {@link K}s of each revision, with {@link CommitFeed#DEFAULT_BUFFER_SIZE}
+   * {@link CommitEvent}s buffered for each subscriber, on a thread of its own.
+   *
+   * @param rootCache the {@link RootObjectCache} to publish the revisions of.
+   */
+  public CommitFeed(RootObjectCache<K, V> rootCache) {
+    this(rootCache, null, DEFAULT_BUFFER_SIZE, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param rootCache       the {@link RootObjectCache} to publish the revisions of.
+   * @param executor        the {@code java.util.concurrent.Executor} to call the subscribers on, or {@code null}
+   *                        to use a thread owned by this {@link CommitFeed}.
+   * @param bufferSize      the maximum number of {@link CommitEvent}s buffered for each subscriber.
+   * @param includeElements {@code true} if the {@link CommitEvent}s should include the added and modified
+   *                        {@link V}s.
+   */
+  public CommitFeed(RootObjectCache<K, V> rootCache, Executor executor, int bufferSize, boolean includeElements) {
+    if (bufferSize < 1) {
+      throw new ObjectCacheException("The buffer size must be at least one, " + bufferSize + " provided.");
+    }
+
+    this.rootCache = rootCache;
+    this.bufferSize = bufferSize;
+    this.includeElements = includeElements;
+
+    if (executor == null) {
+      // the thread exits when there is nothing to deliver rather than the executor being shut down, so the
+      // executor never rejects a subscriber (which would fail it), even once this CommitFeed is closed.
+      this.executor = new ThreadPoolExecutor(0, 1, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "pojo-mvcc-commit-feed");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    } else {
+      this.executor = executor;
+    }
+
+    rootCache.addCommitListener(this);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void subscribe(Flow.Subscriber<? super CommitEvent<K, V>> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Cannot subscribe a null Flow.Subscriber.");
+    }
+
+    FeedSubscription subscription = new FeedSubscription(subscriber);
+    subscriptions.add(subscription);
+
+    ObjectCacheException f = failure;
+
+    if (f != null) {
+      subscription.fail(f);
+    } else if (closed) {
+      subscription.complete();
+    }
+
+    subscription.signal();
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * Called by the {@link RootObjectCache} as each revision is published, adds the {@link CommitEvent} to the buffer
+   * of every subscriber.
+   */
+  public void committed(CommitRecord<K, V> record) {
+    if (subscriptions.isEmpty()) {
+      return;
+    }
+
+    CommitEvent<K, V> event = new CommitEvent<K, V>(record, System.currentTimeMillis(), includeElements);
+
+    for (FeedSubscription subscription : subscriptions) {
+      subscription.offer(event);
+    }
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * Called by the {@link RootObjectCache} if {@link CommitFeed#committed(CommitRecord)} throws, which means the
+   * subscribers would miss a revision. Every subscriber is given an {@link ObjectCacheException} instead, the same
+   * as a subscriber that falls too far behind.
+   */
+  public void failed(CommitRecord<K, V> record, RuntimeException cause) {
+    failure = new ObjectCacheException("CommitFeed failed to publish revision " + record.getRevision() + ", no further revisions will be published.", cause);
+    closed = true;
+
+    for (FeedSubscription subscription : subscriptions) {
+      subscription.fail(failure);
+      subscription.signal();
+    }
+  }
+
+  /**
+   * Returns the number of subscribers that are still receiving {@link CommitEvent}s.
+   *
+   * @return
+   */
+  public int getSubscriberCount() {
+    return subscriptions.size();
+  }
+
+  /**
+   * Stops publishing revisions. Each subscriber is given the {@link CommitEvent}s already in its buffer and is then
+   * completed.
+   */
+  public void close() {
+    closed = true;
+    rootCache.removeCommitListener(this);
+
+    for (FeedSubscription subscription : subscriptions) {
+      subscription.complete();
+      subscription.signal();
+    }
+  }
+
+  /**
+   * The buffer and demand of a single subscriber. All of the signals to the subscriber are made by
+   * {@link FeedSubscription#run()}, which is only ever running on one thread at a time.
+   */
+  private final class FeedSubscription implements Flow.Subscription, Runnable {
+    private final Flow.Subscriber<? super CommitEvent<K, V>> subscriber;
+    private final ArrayBlockingQueue<CommitEvent<K, V>> buffer = new ArrayBlockingQueue<CommitEvent<K, V>>(bufferSize);
+    private final AtomicLong requested = new AtomicLong();
+
+    /**
+     * The number of times {@link FeedSubscription#signal()} has been called since {@link FeedSubscription#run()}
+     * last caught up, {@link FeedSubscription#run()} is only scheduled when this moves from zero.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private boolean subscribed;
+    private volatile boolean completed;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+
+    FeedSubscription(Flow.Subscriber<? super CommitEvent<K, V>> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    public void request(long n) {
+      if (n <= 0) {
+        fail(new IllegalArgumentException("Subscribers must request a positive number of CommitEvents, " + n + " requested."));
+      } else {
+        long current;
+        do {
+          current = requested.get();
+        } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+      }
+
+      signal();
+    }
+
+    public void cancel() {
+      cancelled = true;
+      subscriptions.remove(this);
+      buffer.clear();
+    }
+
+    void offer(CommitEvent<K, V> event) {
+      if (!buffer.offer(event)) {
+        fail(new ObjectCacheException("CommitFeed subscriber fell more than " + bufferSize + " revisions behind at revision " + event.getRevision() + " and was cancelled."));
+      }
+
+      signal();
+    }
+
+    void complete() {
+      completed = true;
+    }
+
+    private void fail(Throwable t) {
+      if (error == null) {
+        error = t;
+      }
+
+      subscriptions.remove(this);
+    }
+
+    void signal() {
+      if (pending.getAndIncrement() == 0) {
+        try {
+          executor.execute(this);
+        } catch (RejectedExecutionException e) {
+          reject(e);
+        }
+      }
+    }
+
+    /**
+     * Fails this subscription because the {@code java.util.concurrent.Executor} would not run it. The
+     * {@link CommitEvent}s are never delivered on the calling thread instead, as that is usually a commit which
+     * would be held up by the subscriber. The pending count is left above zero, so nothing is delivered after this.
+     */
+    private void reject(RejectedExecutionException e) {
+      Throwable t = error != null ? error : new ObjectCacheException("CommitFeed subscriber was cancelled as its Executor rejected it.", e);
+      cancel();
+
+      try {
+        if (!subscribed) {
+          subscribed = true;
+          subscriber.onSubscribe(this);
+        }
+
+        subscriber.onError(t);
+      } catch (RuntimeException ignored) {
+        // a subscriber must not throw, it has been cancelled anyway.
+      }
+    }
+
+    public void run() {
+      int missed = 1;
+
+      do {
+        try {
+          deliver();
+        } catch (RuntimeException e) {
+          // a subscriber must not throw, if it does it gets nothing more.
+          cancel();
+        }
+
+        missed = pending.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void deliver() {
+      if (!subscribed) {
+        subscribed = true;
+        subscriber.onSubscribe(this);
+      }
+
+      while (!cancelled) {
+        if (error != null) {
+          cancel();
+          subscriber.onError(error);
+          return;
+        }
+
+        if (buffer.isEmpty()) {
+          if (completed) {
+            cancel();
+            subscriber.onComplete();
+          }
+
+          return;
+        }
+
+        if (requested.get() == 0) {
+          return;
+        }
+
+        // a demand of Long.MAX_VALUE is unbounded, so it is never used up.
+        long current;
+        do {
+          current = requested.get();
+        } while (current != Long.MAX_VALUE && !requested.compareAndSet(current, current - 1));
+
+        subscriber.onNext(buffer.poll());
+      }
+    }
+  }
+}
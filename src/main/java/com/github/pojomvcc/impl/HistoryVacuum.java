@@ -0,0 +1,98 @@
+package com.github.pojomvcc.impl;
+
+import com.github.pojomvcc.VacuumOptions;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reclaims the expired history of a {@link RootObjectCacheImpl} on a background thread.
+ * <p/>
+ * A vacuum pass is started by {@link HistoryVacuum#signal()}, which only schedules the pass so it never blocks the
+ * caller. A pass expires revisions in slices of at most {@link VacuumOptions#getSliceNanos()}, releasing the
+ * {@link RootObjectCacheImpl}'s write lock and waiting {@link VacuumOptions#getPauseNanos()} between slices so that
+ * checkouts and closes are not held up by a large backlog of history.
+ *
+ * @author Aidan Morgan
+ */
+class HistoryVacuum {
+  /**
+   * The {@link RootObjectCacheImpl} to vacuum.
+   */
+  private final RootObjectCacheImpl<?, ?> rootCache;
+
+  /**
+   * The {@link VacuumOptions} that control the pacing of the vacuum.
+   */
+  private final VacuumOptions options;
+
+  /**
+   * The single daemon thread that runs the vacuum.
+   */
+  private final ScheduledExecutorService executor;
+
+  /**
+   * {@code true} if a pass has been requested that hasn't started yet, so repeated signals only run one pass.
+   */
+  private final AtomicBoolean requested = new AtomicBoolean(false);
+
+  /**
+   * Constructor.
+   *
+   * @param rootCache the {@link RootObjectCacheImpl} to vacuum.
+   * @param options   the {@link VacuumOptions} that control the pacing of the vacuum.
+   */
+  HistoryVacuum(RootObjectCacheImpl<?, ?> rootCache, VacuumOptions options) {
+    this.rootCache = rootCache;
+    this.options = options;
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "pojo-mvcc-vacuum");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Requests a vacuum pass. Returns immediately, if a pass has already been requested but hasn't started this
+   * does nothing.
+   */
+  void signal() {
+    if (requested.compareAndSet(false, true) && !executor.isShutdown()) {
+      executor.execute(new Runnable() {
+        public void run() {
+          requested.set(false);
+
+          if (rootCache.startVacuum()) {
+            slice();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs a single slice of the current pass, scheduling the next slice if there is more to do.
+   */
+  private void slice() {
+    if (rootCache.vacuum(System.nanoTime() + options.getSliceNanos()) && !executor.isShutdown()) {
+      executor.schedule(new Runnable() {
+        public void run() {
+          slice();
+        }
+      }, options.getPauseNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Stops the vacuum, any slice that is running is allowed to finish but no more are started.
+   */
+  void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,77 @@
+package com.github.pojomvcc.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes of a single commit to a {@link RootObjectCacheImpl} after the {@code V}s to store have been
+ * cloned (and merged), ready to be validated and installed at a revision.
+ * <p/>
+ * The {@code V}s in a {@link PreparedCommit} are owned by the {@link RootObjectCacheImpl}, they are never
+ * handed out to callers.
+ *
+ * @author Aidan Morgan
+ */
+class PreparedCommit<K, V> {
+  /**
+   * The keys of the added {@code V}s.
+   */
+  final List<K> addedKeys = new ArrayList<K>();
+
+  /**
+   * The {@code V}s to store for the added keys, parallel to {@link PreparedCommit#addedKeys}.
+   */
+  final List<V> addedElements = new ArrayList<V>();
+
+  /**
+   * The keys of the modified {@code V}s.
+   */
+  final List<K> modifiedKeys = new ArrayList<K>();
+
+  /**
+   * The merged {@code V}s to store for the modified keys, parallel to {@link PreparedCommit#modifiedKeys}.
+   */
+  final List<V> modifiedElements = new ArrayList<V>();
+
+  /**
+   * The {@code V}s from the working copy for the modified keys, parallel to {@link PreparedCommit#modifiedKeys}.
+   * Kept so that the merge can be repeated if the leading version changes before the commit is installed.
+   */
+  final List<V> modifiedSources = new ArrayList<V>();
+
+  /**
+   * The revision of the leading version that each merged {@code V} was merged with, parallel to
+   * {@link PreparedCommit#modifiedKeys}.
+   */
+  final List<Long> mergedRevisions = new ArrayList<Long>();
+
+  /**
+   * The keys of the removed {@code V}s.
+   */
+  final List<K> removedKeys = new ArrayList<K>();
+
+  void added(K key, V element) {
+    addedKeys.add(key);
+    addedElements.add(element);
+  }
+
+  void modified(K key, V source, V merged, long mergedRevision) {
+    modifiedKeys.add(key);
+    modifiedSources.add(source);
+    modifiedElements.add(merged);
+    mergedRevisions.add(mergedRevision);
+  }
+
+  /**
+   * Replaces the merged {@code V} at the provided index after the merge has been repeated against a newer
+   * leading version.
+   */
+  void remerged(int index, V merged, long mergedRevision) {
+    modifiedElements.set(index, merged);
+    mergedRevisions.set(index, mergedRevision);
+  }
+
+  void removed(K key) {
+    removedKeys.add(key);
+  }
+}
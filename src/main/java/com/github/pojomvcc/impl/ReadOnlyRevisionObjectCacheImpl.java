@@ -0,0 +1,133 @@
+package com.github.pojomvcc.impl;
+
+import com.github.pojomvcc.ObjectCacheException;
+import com.github.pojomvcc.ReadOnlyRevisionObjectCache;
+import com.github.pojomvcc.RootObjectCache;
+
+import java.util.Set;
+import java.util.Spliterator;
+
+/**
+ * A {@link ReadOnlyRevisionObjectCache} that reads the {@link V}s of a revision directly from the
+ * {@link com.github.pojomvcc.RootObjectCache}.
+ * <p/>
+ * Unlike a {@link RevisionObjectCacheImpl} no {@link V}s are cloned, the instances stored in the
+ * {@link com.github.pojomvcc.RootObjectCache} are returned and must not be modified (see
+ * {@link com.github.pojomvcc.FreezingCacheElementFactory}). Creating a {@link ReadOnlyRevisionObjectCacheImpl}
+ * only takes a reference to the immutable key set of the revision, and reads do not allocate.
+ *
+ * @author Aidan Morgan
+ */
+public class ReadOnlyRevisionObjectCacheImpl<K, V> implements ReadOnlyRevisionObjectCache<K, V> {
+  private RootObjectCache<K, V> rootCache;
+  private long revision;
+
+  /**
+   * The immutable {@code java.util.Set} of {@link K}s at {@link ReadOnlyRevisionObjectCacheImpl#revision}, shared
+   * with the {@link com.github.pojomvcc.RootObjectCache}.
+   */
+  private Set<K> keys;
+
+  /**
+   * Releases the revision when this {@link ReadOnlyRevisionObjectCacheImpl} is closed, {@code null} if there is
+   * nothing to release.
+   */
+  private Runnable release;
+
+  /**
+   * Set once this {@link ReadOnlyRevisionObjectCacheImpl} has been closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param cache    the {@link com.github.pojomvcc.RootObjectCache} that owns this {@link ReadOnlyRevisionObjectCache}.
+   * @param revision the revision that this {@link ReadOnlyRevisionObjectCache} is for.
+   * @param keys     the immutable {@code java.util.Set} of {@link K}s at the revision.
+   */
+  public ReadOnlyRevisionObjectCacheImpl(RootObjectCache<K, V> cache, long revision, Set<K> keys) {
+    this(cache, revision, keys, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param cache    the {@link com.github.pojomvcc.RootObjectCache} that owns this {@link ReadOnlyRevisionObjectCache}.
+   * @param revision the revision that this {@link ReadOnlyRevisionObjectCache} is for.
+   * @param keys     the immutable {@code java.util.Set} of {@link K}s at the revision.
+   * @param release  run when this {@link ReadOnlyRevisionObjectCache} is closed, to say that the revision is no
+   *                 longer needed.
+   */
+  public ReadOnlyRevisionObjectCacheImpl(RootObjectCache<K, V> cache, long revision, Set<K> keys, Runnable release) {
+    this.rootCache = cache;
+    this.revision = revision;
+    this.keys = keys;
+    this.release = release;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public long getRevision() {
+    return revision;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public RootObjectCache<K, V> getParentCache() {
+    return rootCache;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public V getElement(K key) {
+    if (closed) {
+      throw new ObjectCacheException("Cannot read from a ReadOnlyRevisionObjectCache that has been closed.");
+    }
+
+    if (!keys.contains(key)) {
+      return null;
+    }
+
+    return rootCache.getElementWithRevision(revision, key);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    if (release != null) {
+      release.run();
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public boolean containsKey(K key) {
+    return keys.contains(key);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Spliterator<K> keySpliterator() {
+    return keys.spliterator();
+  }
+}
@@ -0,0 +1,257 @@
+package com.github.pojomvcc.impl;
+
+import com.github.pojomvcc.CacheElementRevisions;
+import com.github.pojomvcc.CacheRevisionType;
+import com.github.pojomvcc.ObjectCacheException;
+import com.github.pojomvcc.RevisionChange;
+import com.github.pojomvcc.RevisionDiff;
+import com.github.pojomvcc.RevisionKeyList;
+import com.github.pojomvcc.RootObjectCache;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link RevisionDiff} that walks the {@link RevisionKeyList}s of the revisions after the from revision up to and
+ * including the to revision.
+ * <p/>
+ * A {@link K} in the changed keys of a revision is only reported if that revision holds the version of the
+ * {@link K} that is visible at the to revision, which means each {@link K} is reported exactly once without
+ * remembering which {@link K}s have already been seen, and every revision can be processed independently.
+ *
+ * @author Aidan Morgan
+ */
+class RevisionDiffImpl<K, V> implements RevisionDiff<K, V> {
+  private final RootObjectCacheImpl<K, V> rootCache;
+  private final long fromRevision;
+  private final long toRevision;
+
+  /**
+   * The immutable key sets of the from and to revisions.
+   */
+  private final Set<K> fromKeys;
+  private final Set<K> toKeys;
+
+  /**
+   * The {@link RevisionKeyList}s of the revisions in between, oldest first.
+   */
+  private final List<RevisionKeyList<K>> revisions;
+
+  /**
+   * The total number of changed keys in the first {@code i} entries of {@link RevisionDiffImpl#revisions}, used to
+   * estimate the size of a range of revisions.
+   */
+  private final long[] changedBefore;
+
+  /**
+   * Releases the from revision when this {@link RevisionDiffImpl} is closed.
+   */
+  private final Runnable release;
+
+  /**
+   * Set once this {@link RevisionDiffImpl} has been closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Constructor.
+   *
+   * @param rootCache    the {@link RootObjectCacheImpl} that the revisions belong to.
+   * @param fromRevision the revision that the changes are from.
+   * @param toRevision   the revision that the changes are to.
+   * @param fromKeys     the key set of the from revision.
+   * @param toKeys       the key set of the to revision.
+   * @param revisions    the {@link RevisionKeyList}s of the revisions in between, oldest first.
+   * @param release      run when this {@link RevisionDiffImpl} is closed, to say that the from revision is no
+   *                     longer needed.
+   */
+  RevisionDiffImpl(RootObjectCacheImpl<K, V> rootCache, long fromRevision, long toRevision, Set<K> fromKeys, Set<K> toKeys, List<RevisionKeyList<K>> revisions, Runnable release) {
+    this.rootCache = rootCache;
+    this.fromRevision = fromRevision;
+    this.toRevision = toRevision;
+    this.fromKeys = fromKeys;
+    this.toKeys = toKeys;
+    this.revisions = revisions;
+    this.release = release;
+
+    changedBefore = new long[revisions.size() + 1];
+    for (int i = 0; i < revisions.size(); i++) {
+      changedBefore[i + 1] = changedBefore[i] + revisions.get(i).getChangedKeys().size();
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public RootObjectCache<K, V> getParentCache() {
+    return rootCache;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public long getFromRevision() {
+    return fromRevision;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public long getToRevision() {
+    return toRevision;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Iterator<RevisionChange<K, V>> iterator() {
+    return Spliterators.iterator(spliterator());
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Spliterator<RevisionChange<K, V>> spliterator() {
+    return new ChangeSpliterator(0, revisions.size());
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Stream<RevisionChange<K, V>> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    release.run();
+  }
+
+  /**
+   * Returns the {@link RevisionChange} for the provided {@link K} from the changed keys of the provided revision, or
+   * {@code null} if a later revision changed it again or there is no difference between the from and to revisions.
+   */
+  private RevisionChange<K, V> createChange(K key, long revision) {
+    if (closed) {
+      throw new ObjectCacheException("Cannot read from a RevisionDiff that has been closed.");
+    }
+
+    CacheElementRevisions<K, V> revs = rootCache.getElementRevisions(key);
+
+    if (revs == null || revs.getRevisionAt(toRevision) != revision) {
+      return null;
+    }
+
+    boolean before = fromKeys.contains(key);
+    boolean after = toKeys.contains(key);
+
+    if (!before && !after) {
+      return null;
+    }
+
+    CacheRevisionType type = !before ? CacheRevisionType.ADDED : (after ? CacheRevisionType.MODIFIED : CacheRevisionType.DELETED);
+    return new RevisionChange<K, V>(this, key, type);
+  }
+
+  /**
+   * {@code java.util.Spliterator} over a range of {@link RevisionDiffImpl#revisions}. Splitting divides the range in
+   * two, once only a single revision is left its changed keys are split instead.
+   */
+  private final class ChangeSpliterator implements Spliterator<RevisionChange<K, V>> {
+    /**
+     * The range of revisions that have not been started.
+     */
+    private int index;
+    private final int end;
+
+    /**
+     * The remaining changed keys of the revision that has been started, or {@code null}.
+     */
+    private Spliterator<K> keys;
+    private long keysRevision;
+    private K current;
+
+    private final Consumer<K> capture = new Consumer<K>() {
+      public void accept(K key) {
+        current = key;
+      }
+    };
+
+    ChangeSpliterator(int index, int end) {
+      this.index = index;
+      this.end = end;
+    }
+
+    ChangeSpliterator(Spliterator<K> keys, long keysRevision) {
+      this(0, 0);
+      this.keys = keys;
+      this.keysRevision = keysRevision;
+    }
+
+    public boolean tryAdvance(Consumer<? super RevisionChange<K, V>> action) {
+      while (true) {
+        if (keys != null) {
+          while (keys.tryAdvance(capture)) {
+            RevisionChange<K, V> change = createChange(current, keysRevision);
+
+            if (change != null) {
+              action.accept(change);
+              return true;
+            }
+          }
+
+          keys = null;
+        }
+
+        if (index >= end) {
+          return false;
+        }
+
+        start();
+      }
+    }
+
+    private void start() {
+      RevisionKeyList<K> next = revisions.get(index++);
+      keys = next.getChangedKeys().spliterator();
+      keysRevision = next.getRevision();
+    }
+
+    public Spliterator<RevisionChange<K, V>> trySplit() {
+      if (end - index > 1 || (end - index == 1 && keys != null)) {
+        int middle = keys != null ? end : (index + end) >>> 1;
+        Spliterator<RevisionChange<K, V>> prefix = new ChangeSpliterator(index, middle);
+        index = middle;
+        return prefix;
+      }
+
+      if (keys == null && index < end) {
+        start();
+      }
+
+      Spliterator<K> split = keys != null ? keys.trySplit() : null;
+      return split != null ? new ChangeSpliterator(split, keysRevision) : null;
+    }
+
+    public long estimateSize() {
+      return (keys != null ? keys.estimateSize() : 0) + changedBefore[end] - changedBefore[index];
+    }
+
+    public int characteristics() {
+      return DISTINCT | NONNULL;
+    }
+  }
+}
@@ -1,12 +1,17 @@
 package com.github.pojomvcc.impl;
 
+import com.github.pojomvcc.CacheElementFactory;
 import com.github.pojomvcc.ObjectCacheException;
 import com.github.pojomvcc.RefreshOptions;
 import com.github.pojomvcc.RevisionObjectCache;
 import com.github.pojomvcc.RootObjectCache;
 import com.github.pojomvcc.util.RevisionObjectList;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
 
 /**
  * Default implementation of the {@link com.github.pojomvcc.RevisionObjectCache} implementation.
@@ -105,6 +110,16 @@ public class RevisionObjectCacheImpl<K,V> implements RevisionObjectCache<K,V> {
     return revisionList.getKeys();
   }
 
+  /**
+   * @inheritDoc
+   * <p/>
+   * The {@link K}s can be processed in parallel, but {@link RevisionObjectCacheImpl#getElement(Object)} clones
+   * {@link V}s into this working copy and must not be called from more than one thread.
+   */
+  public Spliterator<K> keySpliterator() {
+    return revisionList.keySpliterator();
+  }
+
   /**
    * @inheritDoc
    */
@@ -115,46 +130,84 @@ public class RevisionObjectCacheImpl<K,V> implements RevisionObjectCache<K,V> {
 
   /**
    * @inheritDoc
+   * <p/>
+   * Only the {@link K}s changed by the revisions committed since this {@link RevisionObjectCacheImpl}'s revision
+   * are visited, so the cost of an update is proportional to the number of concurrent changes rather than the size
+   * of the {@link com.github.pojomvcc.RootObjectCache}. All conflicts are checked before anything is changed, so
+   * an update that fails leaves this {@link RevisionObjectCacheImpl} at its original revision.
    */
   public void update(RefreshOptions options) {
-    
     if (!options.isValid()) {
       throw new ObjectCacheException("Invalid RefreshOptions provided. Must have one of replaceOnUpdate(), mergeOnUpdate() or ignoreOnUpdate() set.");
     }
 
-    RevisionObjectList newList = new RevisionObjectList<K,V>(rootCache, rootCache.getRevision());
+    // our revision is pinned, so none of the revisions after it can be expired whilst we read them.
+    long target = rootCache.getRevision();
 
-    // TODO: [MF] I still think that the way conflict resolution is handled is messy. Can this not be simplified somehow?
+    if (target == revision) {
+      return;
+    }
 
-    for (K ce : rootCache.getKeys()) {
-      if (revisionList.containsKey(ce)) {
-        if (revisionList.isAdded(ce)) {
-          if (options.failOnUpdateAdd()) {
-            throw new ObjectCacheException("Error while refreshing: RootObjectCache has modified key " + ce + " but it is marked as added.");
-          }
-        }                                                                                                   
+    Set<K> targetKeys = rootCache.getKeySetForRevision(target);
+    Set<K> changed = rootCache.getChangedKeys(revision, target);
 
-        if (revisionList.isModified(ce)) {
-          if (options.failOnUpdateModify()) {
-            throw new ObjectCacheException("Error while refreshing: RootObjectCache has modified key " + ce + " but it has also been modified.");
-          }
+    // the added and modified values for the changed keys, read before the list moves to the new revision.
+    Map<K, V> local = new HashMap<K, V>();
 
-          if (options.mergeOnUpdate()) {
-            V fromRoot = rootCache.getElement(ce);
-            V fromLocal = revisionList.get(ce);
+    for (K key : changed) {
+      if (revisionList.isAdded(key)) {
+        if (targetKeys.contains(key) && options.failOnUpdateAdd()) {
+          throw new ObjectCacheException("Error while refreshing: RootObjectCache has added key " + key + " but it is marked as added.");
+        }
 
-            V merged = rootCache.getElementFactory().merge(fromRoot, fromLocal);
-            newList.replace(ce, merged);
-          } else if (options.replaceOnUpdate()) {
-            newList.replace(ce, revisionList.get(ce));
-          }
+        local.put(key, revisionList.get(key));
+      } else if (revisionList.isModified(key)) {
+        if (options.failOnUpdateModify()) {
+          throw new ObjectCacheException("Error while refreshing: RootObjectCache has modified key " + key + " but it has also been modified.");
         }
 
-        if (revisionList.isRemoved(ce)) {
-          if (options.failOnUpdateRemoved()) {
-            throw new ObjectCacheException("Error while refreshing: RootObjectCache has modified key " + ce + " but it has been removed.");
-          }
+        local.put(key, revisionList.get(key));
+      } else if (revisionList.isRemoved(key) && targetKeys.contains(key) && options.failOnUpdateRemoved()) {
+        throw new ObjectCacheException("Error while refreshing: RootObjectCache has modified key " + key + " but it has been removed.");
+      }
+    }
+
+    rootCache.rebase(this, target);
+    revision = target;
+    revisionList.rebase(target);
+
+    CacheElementFactory<V> factory = rootCache.getElementFactory();
+
+    for (K key : changed) {
+      boolean added = revisionList.isAdded(key);
+      boolean removed = revisionList.isRemoved(key);
+      V element = local.get(key);
+
+      revisionList.discard(key);
+
+      if (added && !targetKeys.contains(key)) {
+        // the key was added and removed again by other commits, so our add doesn't conflict with anything.
+        revisionList.add(key, element);
+        continue;
+      }
+
+      if (options.replaceOnUpdate()) {
+        // the version in the RootObjectCache replaces ours.
+        continue;
+      }
+
+      if (element != null) {
+        if (!targetKeys.contains(key)) {
+          // removed from the RootObjectCache, so keep our version by adding it again.
+          revisionList.add(key, element);
+        } else if (options.mergeOnUpdate()) {
+          V fromRoot = factory.createClone(rootCache.getElementWithRevision(target, key));
+          revisionList.replace(key, factory.merge(fromRoot, element));
+        } else {
+          revisionList.replace(key, element);
         }
+      } else if (removed && targetKeys.contains(key)) {
+        revisionList.remove(key);
       }
     }
   }
@@ -0,0 +1,168 @@
+package com.github.pojomvcc.impl;
+
+import com.github.pojomvcc.ObjectCacheException;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Counts the number of users (for example open {@code com.github.pojomvcc.RevisionObjectCache}s) of each revision of
+ * a {@link RootObjectCacheImpl}, so that the oldest revision still in use can be found without visiting every user.
+ * <p/>
+ * Pinning and unpinning a revision is {@code O(log r)}, where {@code r} is the number of distinct pinned revisions,
+ * and finding the oldest pinned revision is {@code O(1)}. All methods are thread-safe and do not lock.
+ * <p/>
+ * A revision can also be pinned for as long as an object is reachable, for users (such as the {@code java.util.Map}
+ * returned by {@code com.github.pojomvcc.RootObjectCache#asMap()}) that may never say they are finished with it.
+ * The pin is released when the user says it is finished, or otherwise the next time the oldest pinned revision is
+ * looked up after the object is collected.
+ *
+ * @author Aidan Morgan
+ */
+class RevisionPins {
+  /**
+   * The number of pins on each pinned revision. A revision is removed once its count drops to zero, so the first
+   * key is always the oldest pinned revision.
+   */
+  private final ConcurrentNavigableMap<Long, Integer> counts = new ConcurrentSkipListMap<Long, Integer>();
+
+  /**
+   * The queue that the {@link RevisionPins.PinReference}s of collected objects are added to.
+   */
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+  /**
+   * The {@link RevisionPins.PinReference}s that haven't been released, which must be strongly reachable to be
+   * queued when their object is collected.
+   */
+  private final Set<PinReference> references = Collections.newSetFromMap(new ConcurrentHashMap<PinReference, Boolean>());
+
+  /**
+   * Adds a pin to the provided revision.
+   *
+   * @param revision
+   */
+  void pin(long revision) {
+    while (true) {
+      Integer count = counts.get(revision);
+
+      if (count == null) {
+        if (counts.putIfAbsent(revision, 1) == null) {
+          return;
+        }
+      } else if (counts.replace(revision, count, count + 1)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes a pin from the provided revision, which must have been pinned.
+   *
+   * @param revision
+   */
+  void unpin(long revision) {
+    while (true) {
+      Integer count = counts.get(revision);
+
+      if (count == null) {
+        throw new ObjectCacheException("Cannot unpin revision " + revision + ", it is not pinned.");
+      }
+
+      if (count == 1) {
+        if (counts.remove(revision, count)) {
+          return;
+        }
+      } else if (counts.replace(revision, count, count - 1)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds a pin to the provided revision that is removed once the provided object has been garbage collected, or
+   * when the returned {@code java.lang.Runnable} is run if that is sooner. Running the {@code java.lang.Runnable}
+   * more than once has no further effect.
+   * <p/>
+   * The {@code java.lang.Runnable} doesn't refer to the object, so the object can hold it without stopping itself
+   * from being collected.
+   *
+   * @param owner    the object that uses the revision.
+   * @param revision
+   * @return a {@code java.lang.Runnable} that removes the pin.
+   */
+  Runnable pinWhileReachable(Object owner, long revision) {
+    pin(revision);
+
+    final PinReference reference = new PinReference(owner, revision, collected);
+    references.add(reference);
+
+    return new Runnable() {
+      public void run() {
+        release(reference);
+      }
+    };
+  }
+
+  /**
+   * Returns the oldest pinned revision, or {@code Long.MAX_VALUE} if no revision is pinned.
+   *
+   * @return
+   */
+  long getOldestPinned() {
+    releaseCollected();
+
+    Map.Entry<Long, Integer> oldest = counts.firstEntry();
+    return oldest == null ? Long.MAX_VALUE : oldest.getKey();
+  }
+
+  /**
+   * Returns {@code true} if the provided revision is pinned.
+   *
+   * @param revision
+   * @return
+   */
+  boolean isPinned(long revision) {
+    releaseCollected();
+    return counts.containsKey(revision);
+  }
+
+  /**
+   * Removes the pins of the objects that have been garbage collected.
+   */
+  private void releaseCollected() {
+    PinReference reference;
+
+    while ((reference = (PinReference) collected.poll()) != null) {
+      release(reference);
+    }
+  }
+
+  /**
+   * Removes the pin of the provided {@link RevisionPins.PinReference}, unless it has already been removed.
+   */
+  private void release(PinReference reference) {
+    if (references.remove(reference)) {
+      reference.clear();
+      unpin(reference.revision);
+    }
+  }
+
+  /**
+   * A pin on a revision that lasts until an object is garbage collected.
+   */
+  private static final class PinReference extends PhantomReference<Object> {
+    final long revision;
+
+    PinReference(Object owner, long revision, ReferenceQueue<Object> queue) {
+      super(owner, queue);
+      this.revision = revision;
+    }
+  }
+}
@@ -1,10 +1,21 @@
 package com.github.pojomvcc.impl;
 
 import com.github.pojomvcc.*;
+import com.github.pojomvcc.util.OffHeapArena;
+import com.github.pojomvcc.util.PersistentHashSet;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -12,42 +23,149 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <p/>
  * A {@code RootObjectCache} is not modifyable directly, a {@code RevisionObjectCache} must be created
  * (using the {@link RootObjectCacheImpl#checkout()} method) and the changes made to that.
+ * <p/>
+ * Reads of the cache ({@link RootObjectCacheImpl#getElement(Object)}, {@link RootObjectCacheImpl#getKeySet()} etc.)
+ * never acquire a lock. They read the {@link RevisionKeyList} of the head revision, which is immutable and is
+ * published through a {@code volatile} field as the last step of a {@link RootObjectCacheImpl#commit(RevisionObjectCache)},
+ * and then resolve {@link V}s from the {@link CacheElementRevisions} version chains, which can be read safely whilst
+ * a commit is appending to them.
+ * <p/>
+ * The version chains are partitioned by the hash of their {@link K} into one or more shards, each with its own lock.
+ * A commit locks only the shards of the keys it changes, takes the next revision number, installs its versions and
+ * releases the shard locks. It then publishes its revision, waiting for any commit that was given an earlier revision
+ * to publish first, so that revisions always become visible in order. This class uses a single shard, see
+ * {@link ShardedRootObjectCacheImpl} to allow commits to disjoint keys to proceed in parallel.
+ * <p/>
+ * If group commit is enabled in the {@link CommitOptions} concurrent commits are queued and applied together by
+ * one of the committing threads, under a single acquisition of the shard locks and a single revision.
  *
  * @author Aidan Morgan
  */
 public class RootObjectCacheImpl<K, V> implements RootObjectCache<K, V> {
   /**
-   * The current revision number of this store.
+   * The {@link RevisionKeyList} of the current (head) revision of this store. This is the snapshot that all
+   * lock-free reads are performed against, it is replaced (never modified) when a commit completes.
+   */
+  private volatile RevisionKeyList<K> head;
+
+  /**
+   * The number of times a commit will merge modified {@link V}s outside of the commit lock before it gives up
+   * and merges whilst holding it.
+   */
+  private static final int MAX_OPTIMISTIC_ATTEMPTS = 3;
+
+  /**
+   * The smallest number of {@link V}s that a {@link PrepareTask} will hand to a single thread.
+   */
+  private static final int PREPARE_CHUNK_SIZE = 256;
+
+  /**
+   * The last revision number that has been handed out to a commit. This can be ahead of the revision of
+   * {@link RootObjectCacheImpl#head} whilst commits are waiting to be published.
+   */
+  private final AtomicLong allocatedRevision = new AtomicLong(0);
+
+  /**
+   * Monitor used by commits to wait for the commits with earlier revisions to be published.
+   */
+  private final Object publishMonitor = new Object();
+
+  /**
+   * The {@link CommitLog} that every revision is recorded in before it is published, or {@code null}.
+   */
+  private volatile CommitLog<K, V> commitLog;
+
+  /**
+   * The {@link CommitListener}s that are told about every revision as it is published.
+   */
+  private final List<CommitListener<K, V>> commitListeners = new CopyOnWriteArrayList<CommitListener<K, V>>();
+
+  /**
+   * The reason this cache stopped accepting commits, set if the {@link CommitLog} fails to record a revision.
+   */
+  private volatile ObjectCacheException failure;
+
+  /**
+   * The {@link CommitOptions} that determine how commits are applied.
+   */
+  private volatile CommitOptions commitOptions = CommitOptions.DEFAULT();
+
+  /**
+   * Guards {@link RootObjectCacheImpl#pendingCommits} and {@link RootObjectCacheImpl#groupLeaderActive}.
+   */
+  private final ReentrantLock groupLock = new ReentrantLock();
+
+  /**
+   * Signalled when a commit joins the queue or a group of commits has been applied.
+   */
+  private final Condition groupChanged = groupLock.newCondition();
+
+  /**
+   * The commits waiting to be applied as part of a group, in the order they arrived.
    */
-  private final AtomicLong CURRENT_REVISION = new AtomicLong(0);
+  private final LinkedList<PendingCommit<K, V>> pendingCommits = new LinkedList<PendingCommit<K, V>>();
 
   /**
-   * The {@code java.util.concurrent.locks.ReadWriteLock} that ensures safe access to this cache from
-   * multiple threads.
+   * {@code true} whilst a committing thread is collecting and applying a group of commits.
+   */
+  private boolean groupLeaderActive;
+
+  /**
+   * The {@code java.util.concurrent.locks.ReadWriteLock} that serialises expiry and the tracking of
+   * {@link RevisionObjectCache}s. Reads of the cache and commits do not use this lock.
    */
   private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 
   /**
-   * A {@code List} of currently active {@code com.github.pojomvcc.RevisionObjectCache}s.
+   * The {@code Set} of currently active {@code com.github.pojomvcc.RevisionObjectCache}s.
+   */
+  private final Set<RevisionObjectCache<K, V>> openRevisionCaches;
+
+  /**
+   * The revisions of the currently active {@code com.github.pojomvcc.RevisionObjectCache}s, used to find the oldest
+   * revision that is still in use without visiting every {@code com.github.pojomvcc.RevisionObjectCache}.
    */
-  private List<RevisionObjectCache<K, V>> openRevisionCaches;
+  private final RevisionPins activeRevisionPins = new RevisionPins();
+
   /**
-   * A {@code java.util.Map} that stores a {@code K} with the {@code com.github.pojomvcc.impl.ObjectRevisions}
-   * that track the history of the objects.
+   * The {@link Shard}s that store a {@code K} with the {@link CacheElementRevisions} that track the history of the
+   * objects, a {@code K} is always stored in the {@link Shard} at {@link RootObjectCacheImpl#shardIndex(Object)}.
    */
-  private Map<K, CacheElementRevisions<K, V>> revisions;
+  private final Shard<K, V>[] shards;
 
   /**
-   * A {@code java.util.Map} of revision to a {@code java.util.List} of {@link K} that are the keys
-   * in the {@code com.github.pojomvcc.RootObjectCache} for that revision.
+   * A {@code java.util.Map} of revision to the {@link RevisionKeyList} of {@link K} that are the keys
+   * in the {@code com.github.pojomvcc.RootObjectCache} for that revision. Each {@link RevisionKeyList}
+   * shares the unchanged parts of its key set with the revision before it.
    */
-  private Map<Long, RevisionKeyList<K>> keysPerRevisionMap;
+  private ConcurrentNavigableMap<Long, RevisionKeyList<K>> keysPerRevisionMap;
 
   /**
    * The {@link CacheElementFactory<V>} that is used for creating clones and merging {@link V}s.
    */
   private CacheElementFactory<V> factory;
 
+  /**
+   * The {@link VacuumOptions} that determine when expired history is reclaimed.
+   */
+  private volatile VacuumOptions vacuumOptions = VacuumOptions.SYNCHRONOUS();
+
+  /**
+   * The {@link HistoryVacuum} that reclaims expired history in the background, or {@code null} if it is
+   * reclaimed synchronously.
+   */
+  private volatile HistoryVacuum vacuum;
+
+  /**
+   * The {@link StorageOptions} that determine where superseded versions are kept.
+   */
+  private volatile StorageOptions<K, V> storageOptions = StorageOptions.ON_HEAP();
+
+  /**
+   * The {@link OffHeapArena} that superseded versions are moved into, or {@code null} if they are kept on the heap.
+   */
+  private volatile OffHeapArena<K, V> arena;
+
   /**
    * The {@link com.github.pojomvcc.CacheExpiry} that determines how long historical information about
    * {@link V}s should be retained. It also can provide a mechanism for
@@ -62,71 +180,136 @@ public class RootObjectCacheImpl<K, V> implements RootObjectCache<K, V> {
    *                merging {@link V}s.
    */
   public RootObjectCacheImpl(CacheElementFactory<V> factory) {
-    this.openRevisionCaches = new ArrayList<RevisionObjectCache<K, V>>();
-    this.revisions = new HashMap<K, CacheElementRevisions<K, V>>();
-    this.keysPerRevisionMap = new HashMap<Long, RevisionKeyList<K>>();
-    this.keysPerRevisionMap.put(0L, new RevisionKeyList<K>(0L));
+    this(factory, 1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param factory    the {@link CacheElementFactory<V>} that is used for creating clones and
+   *                   merging {@link V}s.
+   * @param shardCount the number of {@link Shard}s to partition the {@link V}s into.
+   */
+  protected RootObjectCacheImpl(CacheElementFactory<V> factory, int shardCount) {
+    if (shardCount < 1) {
+      throw new ObjectCacheException("A RootObjectCache must have at least one shard, " + shardCount + " provided.");
+    }
+
+    this.shards = createShards(shardCount);
+
+    this.openRevisionCaches = Collections.newSetFromMap(new ConcurrentHashMap<RevisionObjectCache<K, V>, Boolean>());
+    this.keysPerRevisionMap = new ConcurrentSkipListMap<Long, RevisionKeyList<K>>();
+
+    this.head = new RevisionKeyList<K>(0L);
+    this.keysPerRevisionMap.put(0L, head);
 
     this.factory = factory;
   }
 
   /**
-   * @inheritDoc
+   * Creates the provided number of empty {@link Shard}s.
+   *
+   * @param shardCount the number of {@link Shard}s to create.
+   * @return
    */
-  public List<K> getKeysForRevision(long revision) {
-    try {
-      readWriteLock.readLock().lock();
+  private static <K, V> Shard<K, V>[] createShards(int shardCount) {
+    // a generic array can't be created directly, but every element is a Shard<K, V> so the cast is safe.
+    @SuppressWarnings({"unchecked"})
+    Shard<K, V>[] created = (Shard<K, V>[]) new Shard<?, ?>[shardCount];
 
-      if (revision > CURRENT_REVISION.get()) {
-        throw new ObjectCacheException("Attempting to access revision " + revision + " which is > current head " + CURRENT_REVISION.get());
-      }
+    for (int i = 0; i < shardCount; i++) {
+      created[i] = new Shard<K, V>();
+    }
 
-      if (!keysPerRevisionMap.containsKey(revision)) {
-        throw new ObjectCacheException("Cannot get keys for revision " + revision + ". Current revision is " + CURRENT_REVISION.get() + ".");
-      }
+    return created;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Set<K> getKeySetForRevision(long revision) {
+    RevisionKeyList<K> current = head;
 
-      return Collections.unmodifiableList(keysPerRevisionMap.get(revision).getKeys());
+    if (revision > current.getRevision()) {
+      throw new ObjectCacheException("Attempting to access revision " + revision + " which is > current head " + current.getRevision());
     }
-    finally {
-      readWriteLock.readLock().unlock();
+
+    if (revision == current.getRevision()) {
+      return current.getKeys();
+    }
+
+    RevisionKeyList<K> rkl = keysPerRevisionMap.get(revision);
+
+    if (rkl == null) {
+      throw new ObjectCacheException("Cannot get keys for revision " + revision + ". Current revision is " + current.getRevision() + ".");
     }
+
+    return rkl.getKeys();
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Set<K> getKeySet() {
+    return head.getKeys();
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Deprecated
+  public List<K> getKeysForRevision(long revision) {
+    return Collections.unmodifiableList(new ArrayList<K>(getKeySetForRevision(revision)));
   }
 
   /**
    * @inheritDoc
    */
+  @Deprecated
   public List<K> getKeys() {
-    try {
-      readWriteLock.readLock().lock();
-      return getKeysForRevision(CURRENT_REVISION.get());
-    }
-    finally {
-      readWriteLock.readLock().unlock();
-    }
+    return Collections.unmodifiableList(new ArrayList<K>(getKeySet()));
   }
 
   /**
    * @inheritDoc
    */
   public V getElementWithRevision(long revision, K key) {
-    try {
-      readWriteLock.readLock().lock();
+    long current = head.getRevision();
 
-      if (revision > CURRENT_REVISION.get()) {
-        throw new ObjectCacheException("Attempting to access revision " + revision + " which is > current head " + CURRENT_REVISION.get());
-      }
+    if (revision > current) {
+      throw new ObjectCacheException("Attempting to access revision " + revision + " which is > current head " + current);
+    }
 
-      CacheElementRevisions<K, V> revs = revisions.get(key);
+    return getElementAt(revision, key);
+  }
 
-      if (revs != null) {
-        return revs.get(revision);
-      }
+  /**
+   * Returns the {@link V} with the provided {@link K} at the provided revision, which is known to be
+   * no later than the head revision.
+   *
+   * @param revision
+   * @param key
+   * @return
+   */
+  private V getElementAt(long revision, K key) {
+    CacheElementRevisions<K, V> revs = getElementRevisions(key);
 
-      return null;
+    if (revs != null) {
+      return revs.get(revision);
     }
-    finally {
-      readWriteLock.readLock().unlock();
+
+    // the whole history of a removed key is dropped once it has expired, but the expiration handler may have kept it.
+    Map.Entry<Long, RevisionKeyList<K>> oldest = keysPerRevisionMap.firstEntry();
+
+    if (oldest != null && revision < oldest.getKey()) {
+      CacheElementRevision<K, V> rev = cacheExpiryPolicy.getHandler().retrieve(key, revision);
+
+      if (rev != null && rev.getState() != CacheRevisionType.DELETED) {
+        return rev.getElement();
+      }
     }
+
+    return null;
   }
 
   /**
@@ -140,20 +323,14 @@ public class RootObjectCacheImpl<K, V> implements RootObjectCache<K, V> {
    * @inheritDoc
    */
   public long getRevision() {
-    try {
-      readWriteLock.readLock().lock();
-      return CURRENT_REVISION.get();
-    }
-    finally {
-      readWriteLock.readLock().unlock();
-    }
+    return head.getRevision();
   }
 
   /**
    * @inheritDoc
    */
   public V getElement(K key) {
-    return getElementWithRevision(CURRENT_REVISION.get(), key);
+    return getElementAt(head.getRevision(), key);
   }
 
   /**
@@ -161,9 +338,13 @@ public class RootObjectCacheImpl<K, V> implements RootObjectCache<K, V> {
    */
   public RevisionObjectCache<K, V> checkout() {
     try {
+      // expiry holds the write lock, so the revision can't be expired between reading it and pinning it.
       readWriteLock.readLock().lock();
 
-      RevisionObjectCache<K, V> impl = new RevisionObjectCacheImpl<K, V>(this, CURRENT_REVISION.get());
+      long revision = head.getRevision();
+      activeRevisionPins.pin(revision);
+
+      RevisionObjectCache<K, V> impl = new RevisionObjectCacheImpl<K, V>(this, revision);
       openRevisionCaches.add(impl);
       return impl;
     }
@@ -174,12 +355,21 @@ public class RootObjectCacheImpl<K, V> implements RootObjectCache<K, V> {
 
   /**
    * @inheritDoc
+   * <p/>
+   * The exported revision is pinned until the {@link ReadOnlyRevisionObjectCache} is closed, or is garbage collected
+   * if it is never closed, the same as the {@code java.util.Map} returned by {@link RootObjectCacheImpl#asMap()}, so
+   * the versions it reads are not expired from under it.
    */
   public ReadOnlyRevisionObjectCache<K, V> export() {
     try {
+      // expiry holds the write lock, so the revision can't be expired between reading it and pinning it.
       readWriteLock.readLock().lock();
 
-      return new RevisionObjectCacheImpl<K, V>(this, CURRENT_REVISION.get());
+      RevisionKeyList<K> current = head;
+      PinRelease release = new PinRelease();
+      ReadOnlyRevisionObjectCacheImpl<K, V> export = new ReadOnlyRevisionObjectCacheImpl<K, V>(this, current.getRevision(), current.getKeys(), release);
+      release.pin = activeRevisionPins.pinWhileReachable(export, current.getRevision());
+      return export;
     }
     finally {
       readWriteLock.readLock().unlock();
@@ -190,202 +380,1515 @@ public class RootObjectCacheImpl<K, V> implements RootObjectCache<K, V> {
    * @inheritDoc
    */
   public int size() {
-    return keysPerRevisionMap.get(CURRENT_REVISION.get()).size();
+    return head.size();
   }
 
   /**
    * @inheritDoc
+   * <p/>
+   * The {@code java.util.Spliterator} is over the immutable key set of the head revision at the time of the call, so
+   * it is not affected by later commits. Use {@link RootObjectCacheImpl#asMap()} to stream the {@link V}s as well.
    */
-  public void commit(RevisionObjectCache<K, V> cache) {
-    try {
-      readWriteLock.writeLock().lock();
-      long revision = CURRENT_REVISION.incrementAndGet();
+  public Spliterator<K> keySpliterator() {
+    return head.getKeys().spliterator();
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The clones and merges of the changed {@link V}s are created before any lock is taken, merging against the
+   * leading version of each modified {@link V} at the time. Whilst the shards of the changed keys are locked the
+   * commit only checks that those leading versions are still leading and installs the prepared versions. Any
+   * {@link V} whose leading version was changed by another commit in the meantime is merged again, outside of the
+   * lock for up to {@link RootObjectCacheImpl#MAX_OPTIMISTIC_ATTEMPTS} attempts and then whilst holding it.
+   */
+  public long commit(RevisionObjectCache<K, V> cache) {
+    checkNotFailed();
+
+    CommitOptions options = commitOptions;
+    PreparedCommit<K, V> prepared = prepare(cache, options);
 
-      // this is the set of keys associated with a revision.
-      List<K> keysForRevision = keysPerRevisionMap.get(revision - 1).getKeys();
-      List<K> cache_keys = new ArrayList<K>(keysForRevision.size() + cache.getAddedElements().size());
-      cache_keys.addAll(keysForRevision);
+    if (options.isGroupCommit()) {
+      return commitInGroup(prepared, options);
+    }
 
+    List<PreparedCommit<K, V>> commits = Collections.singletonList(prepared);
+    long revision = -1;
+    RuntimeException installFailure = null;
 
-      for (K key : cache.getAddedElements()) {
-        assert !revisions.containsKey(key);
+    for (int attempt = 1; revision < 0; attempt++) {
+      List<Integer> moved;
+      boolean[] locked = lockShards(commits);
 
-        CacheElementRevisions<K, V> revs = new CacheElementRevisions<K, V>(this, key);
-        V added = cache.getElement(key);
+      try {
+        moved = validate(prepared);
 
-        if (added == null) {
-          throw new ObjectCacheException("Added CacheElement is null.");
+        if (!moved.isEmpty() && attempt >= MAX_OPTIMISTIC_ATTEMPTS) {
+          // we've lost the race too many times, merge whilst holding the lock so this commit can't lose again.
+          remerge(prepared, moved);
+          moved = Collections.emptyList();
         }
 
-        V addedClone = factory.createClone(added);
-        revs.addElement(revision, key, addedClone);
-
-        // new item, so update the cache keys.
-        cache_keys.add(key);
+        if (moved.isEmpty()) {
+          // the revision is taken whilst the shards are locked, so commits to the same key are always given
+          // increasing revisions in the order they are installed.
+          revision = allocatedRevision.incrementAndGet();
+          installFailure = installOrUndo(revision, prepared);
+        }
+      }
+      finally {
+        unlockShards(locked);
+      }
 
-        // new item so need to create an CacheElementRevisions object for it.
-        revisions.put(key, revs);
+      if (revision < 0) {
+        remerge(prepared, moved);
       }
+    }
 
-      for (K key : cache.getModifiedElements()) {
-        V element = cache.getElement(key);
-        CacheElementRevisions<K, V> revs = revisions.get(key);
+    if (installFailure != null) {
+      // the revision has been handed out, so it has to be published for the commits after it to be published.
+      publish(revision, new PreparedCommit<K, V>());
+      throw installFailure;
+    }
 
-        assert revs != null;
+    publish(revision, prepared);
+    return revision;
+  }
 
-        V merged = factory.createClone(factory.merge(revs.getLeading(), element));
-        revs.addModification(revision, key, merged);
-      }
+  /**
+   * Queues the provided {@link PreparedCommit} to be applied as part of a group and waits for it to be applied.
+   * <p/>
+   * The first committing thread to find no group in progress becomes the leader, it waits for the group commit
+   * window (or until enough commits are queued), applies the queued commits under a single revision and then
+   * wakes the commits it applied. A waiting commit that finds the previous leader has finished becomes the next
+   * leader.
+   *
+   * @param prepared the {@link PreparedCommit} to apply.
+   * @param options  the {@link CommitOptions} to use.
+   * @return the revision that the commit was applied in.
+   */
+  private long commitInGroup(PreparedCommit<K, V> prepared, CommitOptions options) {
+    PendingCommit<K, V> pending = new PendingCommit<K, V>(prepared);
+    boolean interrupted = false;
+
+    try {
+      groupLock.lock();
 
-      for (K key : cache.getRemovedElements()) {
-        CacheElementRevisions<K, V> revs = revisions.get(key);
+      pendingCommits.add(pending);
+      groupChanged.signalAll();
 
-        assert revs != null;
+      while (!pending.done) {
+        if (!groupLeaderActive) {
+          groupLeaderActive = true;
+          List<PendingCommit<K, V>> group;
 
-        revs.removeElement(revision, key);
+          try {
+            interrupted |= awaitGroup(options);
+            group = drainGroup(options.getMaxGroupSize());
 
-        cache_keys.remove(key);
-        revisions.put(key, revs);
+            groupLock.unlock();
+            try {
+              applyGroup(group);
+            }
+            finally {
+              groupLock.lock();
+            }
+          }
+          finally {
+            groupLeaderActive = false;
+            groupChanged.signalAll();
+          }
+        } else {
+          try {
+            groupChanged.await();
+          } catch (InterruptedException e) {
+            // the commit can't be withdrawn once it has been queued, so keep waiting for it to be applied.
+            interrupted = true;
+          }
+        }
       }
-
-      keysPerRevisionMap.put(revision, new RevisionKeyList<K>(revision, cache_keys));
     }
     finally {
-      readWriteLock.writeLock().unlock();
+      groupLock.unlock();
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (pending.failure != null) {
+      throw pending.failure;
     }
+
+    return pending.revision;
   }
 
   /**
-   * Handles the expiry of {@link com.github.pojomvcc.RevisionKeyList}s from this {@link com.github.pojomvcc.RootObjectCache}.
-   * Will use the {@link com.github.pojomvcc.CacheExpiry} registered to check which revisions should be evicted
-   * from memory.
+   * Waits until the group commit window has passed or enough commits are queued to fill a group. Must be called
+   * whilst holding {@link RootObjectCacheImpl#groupLock}.
+   *
+   * @param options the {@link CommitOptions} to use.
+   * @return {@code true} if the thread was interrupted whilst waiting.
    */
-  private void expire() {
+  private boolean awaitGroup(CommitOptions options) {
+    boolean interrupted = false;
+    long remaining = options.getGroupWindowNanos();
+
+    while (remaining > 0 && pendingCommits.size() < options.getMaxGroupSize()) {
+      try {
+        remaining = groupChanged.awaitNanos(remaining);
+      } catch (InterruptedException e) {
+        // stop waiting for more commits, but still apply the commits that have already joined.
+        interrupted = true;
+        remaining = 0;
+      }
+    }
+
+    return interrupted;
+  }
+
+  /**
+   * Removes up to the provided number of commits from the front of {@link RootObjectCacheImpl#pendingCommits}.
+   * Must be called whilst holding {@link RootObjectCacheImpl#groupLock}.
+   *
+   * @param maxGroupSize the maximum number of commits to remove.
+   * @return the commits to apply as a group.
+   */
+  private List<PendingCommit<K, V>> drainGroup(int maxGroupSize) {
+    List<PendingCommit<K, V>> group = new ArrayList<PendingCommit<K, V>>();
+
+    while (!pendingCommits.isEmpty() && group.size() < maxGroupSize) {
+      group.add(pendingCommits.removeFirst());
+    }
+
+    return group;
+  }
+
+  /**
+   * Applies the provided commits under a single revision. Each commit is validated in turn against the
+   * {@link RootObjectCache} and the commits before it in the group, a commit that fails validation is marked as
+   * failed and its changes are left out of the revision. Modified {@link V}s are merged again with the leading
+   * version if it has changed since they were prepared.
+   * <p/>
+   * The {@link PendingCommit}s are updated with the result and marked as done, the caller must wake the threads
+   * waiting for them.
+   *
+   * @param group the commits to apply.
+   */
+  private void applyGroup(List<PendingCommit<K, V>> group) {
+    List<PreparedCommit<K, V>> commits = new ArrayList<PreparedCommit<K, V>>(group.size());
+    for (PendingCommit<K, V> pending : group) {
+      commits.add(pending.prepared);
+    }
+
+    PreparedCommit<K, V> combined = new PreparedCommit<K, V>();
+    long revision = -1;
+    RuntimeException installFailure = null;
+
     try {
-      readWriteLock.writeLock().lock();
+      boolean[] locked = lockShards(commits);
 
-      if (cacheExpiryPolicy != null) {
-        if (!cacheExpiryPolicy.getPolicy().shouldRun(this)) {
-          return;
+      try {
+        // the latest element for each key changed by the group so far, a null element is a removal.
+        Map<K, V> staged = new LinkedHashMap<K, V>();
+
+        for (PendingCommit<K, V> pending : group) {
+          try {
+            staged.putAll(stage(pending.prepared, staged));
+          } catch (RuntimeException e) {
+            pending.failure = e;
+          }
         }
 
-        List<RevisionKeyList<K>> keysToKill = new ArrayList<RevisionKeyList<K>>();
-        for (RevisionKeyList<K> rkl : keysPerRevisionMap.values()) {
-          // make sure we don't somehow drop the current revision
-          if (rkl.getRevision() != CURRENT_REVISION.get()) {
-            if (cacheExpiryPolicy.getPolicy().shouldExpire(this, rkl)) {
-              keysToKill.add(rkl);
+        for (Map.Entry<K, V> entry : staged.entrySet()) {
+          K key = entry.getKey();
+          CacheElementRevisions<K, V> revs = getElementRevisions(key);
+          boolean exists = revs != null && !revs.isDeleted();
+
+          if (entry.getValue() == null) {
+            // a key that was added and then removed within the group never existed as far as readers are concerned.
+            if (exists) {
+              combined.removed(key);
             }
+          } else if (exists) {
+            combined.modified(key, entry.getValue(), entry.getValue(), revs.getLeadingRevision());
+          } else {
+            combined.added(key, entry.getValue());
           }
         }
 
-        // we now have a set of RevisionKeyList(s) that should be evicted from the cache.
-        // go through and evict them from memory.
-        for (RevisionKeyList<K> rkl : keysToKill) {
-          for (K ck : rkl.getKeys()) {
-            CacheElementRevisions<K, V> revs = revisions.get(ck);
-            // the CacheElementRevision won't necessarily remove the revision when we call this
-            // there are cases in which the revision can't be removed.
-            // @see CacheElementRevisions#remove(long) for more information
-            revs.removeRevision(rkl.getRevision());
-          }
+        if (!staged.isEmpty() || hasSuccess(group)) {
+          revision = allocatedRevision.incrementAndGet();
+          installFailure = installOrUndo(revision, combined);
+        }
+      }
+      finally {
+        unlockShards(locked);
+      }
 
-          // remove all traces of the revision from the store
-          keysPerRevisionMap.remove(rkl.getRevision());
+      if (revision > 0) {
+        // a revision that couldn't be installed is still published (without any changes), otherwise the commits
+        // given the revisions after it would wait for it forever.
+        publish(revision, installFailure == null ? combined : new PreparedCommit<K, V>());
+      }
 
-          // optionally provide some mechanism for handling the expired revisions, probably by writing
-          // them to disk, or a database, or something.
-          cacheExpiryPolicy.getHandler().expired(rkl);
+      if (installFailure != null) {
+        throw installFailure;
+      }
+    } catch (RuntimeException e) {
+      // the group could not be applied, so every commit in it that hadn't already failed has failed with it.
+      for (PendingCommit<K, V> pending : group) {
+        if (pending.failure == null) {
+          pending.failure = e;
         }
       }
     }
-    finally {
-      readWriteLock.writeLock().unlock();
+
+    for (PendingCommit<K, V> pending : group) {
+      if (pending.failure == null) {
+        pending.revision = revision;
+      }
+
+      pending.done = true;
     }
   }
 
   /**
-   * @inheritDoc
+   * Validates the provided {@link PreparedCommit} against the {@link RootObjectCache} and the changes staged by the
+   * commits before it in the same group. Must be called with the {@link Shard}s of all of the changed keys locked.
+   *
+   * @param prepared the {@link PreparedCommit} to validate.
+   * @param staged   the latest element for each key changed by the group so far, a {@code null} element is a removal.
+   * @return the changes of the provided {@link PreparedCommit}, in the same form as {@code staged}.
+   * @throws ObjectCacheException if the {@link PreparedCommit} conflicts.
    */
-  public void close(RevisionObjectCache<K, V> cache) {
-    try {
-      readWriteLock.writeLock().lock();
-      this.openRevisionCaches.remove(cache);
+  private Map<K, V> stage(PreparedCommit<K, V> prepared, Map<K, V> staged) {
+    Map<K, V> changes = new LinkedHashMap<K, V>();
 
-      // a dependent cache has been closed, so lets check for any values that can be removed from the
-      // cache.
-      expire();
+    for (int i = 0; i < prepared.addedKeys.size(); i++) {
+      K key = prepared.addedKeys.get(i);
+
+      if (isStagedOrStored(key, staged)) {
+        throw new ObjectCacheException("Cannot add CacheElement with key " + key + ", it has already been added by another commit.");
+      }
+
+      changes.put(key, prepared.addedElements.get(i));
     }
-    finally {
-      readWriteLock.writeLock().unlock();
+
+    for (int i = 0; i < prepared.modifiedKeys.size(); i++) {
+      K key = prepared.modifiedKeys.get(i);
+
+      if (!isStagedOrStored(key, staged)) {
+        throw new ObjectCacheException("Cannot modify CacheElement with key " + key + ", it has been removed by another commit.");
+      }
+
+      if (staged.containsKey(key)) {
+        changes.put(key, createStoredClone(factory.merge(staged.get(key), prepared.modifiedSources.get(i))));
+      } else {
+        CacheElementRevision<K, V> leading = getElementRevisions(key).getLeadingVersion();
+
+        if (leading.getRevision() == prepared.mergedRevisions.get(i)) {
+          changes.put(key, prepared.modifiedElements.get(i));
+        } else {
+          changes.put(key, createStoredClone(factory.merge(leading.getElement(), prepared.modifiedSources.get(i))));
+        }
+      }
     }
-  }
 
-  /**
-   * @inheritDoc
-   */
-  public List<RevisionObjectCache<K, V>> getActiveRevisions() {
-    try {
-      readWriteLock.readLock().lock();
-      return Collections.unmodifiableList(openRevisionCaches);
+    // a null element is staged as a removal, so a factory that created a null clone has to fail the commit here.
+    for (Map.Entry<K, V> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        throw new ObjectCacheException("Element cannot be null.");
+      }
     }
-    finally {
-      readWriteLock.readLock().unlock();
+
+    for (K key : prepared.removedKeys) {
+      // the element may already have been removed by another commit.
+      if (isStagedOrStored(key, staged)) {
+        changes.put(key, null);
+      }
     }
+
+    return changes;
   }
 
   /**
-   * @inheritDoc
+   * Returns {@code true} if the provided {@link K} has been added (and not removed) by an earlier commit in the
+   * group, or is in the {@link RootObjectCache} and hasn't been removed by an earlier commit in the group.
+   *
+   * @param key
+   * @param staged
+   * @return
    */
-  public void setCacheExpiry(CacheExpiry<K, V> pol) {
-    this.cacheExpiryPolicy = pol;
+  private boolean isStagedOrStored(K key, Map<K, V> staged) {
+    if (staged.containsKey(key)) {
+      return staged.get(key) != null;
+    }
+
+    CacheElementRevisions<K, V> revs = getElementRevisions(key);
+    return revs != null && !revs.isDeleted();
   }
 
   /**
-   * @inheritDoc
+   * Returns {@code true} if any of the provided {@link PendingCommit}s has not failed.
+   *
+   * @param group
+   * @return
    */
-  public CacheExpiry<K, V> getCacheExpiry() {
-    return cacheExpiryPolicy;
+  private boolean hasSuccess(List<PendingCommit<K, V>> group) {
+    for (PendingCommit<K, V> pending : group) {
+      if (pending.failure == null) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Creates the clones (and merges) of the {@link V}s in the provided {@link RevisionObjectCache} that will be
+   * stored if the commit succeeds. No locks are held whilst this is performed, modified {@link V}s are merged
+   * with the leading version at the time.
+   * <p/>
+   * The {@link V}s are read from the {@link RevisionObjectCache} on the calling thread, as a working copy is not
+   * thread safe. If the {@link CommitOptions} enable parallel prepare for a commit of this size the clones and
+   * merges are then created by a {@link PrepareTask}.
+   *
+   * @param cache   the {@link RevisionObjectCache} being committed.
+   * @param options the {@link CommitOptions} to use.
+   * @return the {@link PreparedCommit}.
+   */
+  private PreparedCommit<K, V> prepare(RevisionObjectCache<K, V> cache, CommitOptions options) {
+    List<K> addedKeys = cache.getAddedElements();
+    List<K> modifiedKeys = cache.getModifiedElements();
+
+    int changed = addedKeys.size() + modifiedKeys.size();
+    List<V> sources = new ArrayList<V>(changed);
+    List<CacheElementRevision<K, V>> leading = new ArrayList<CacheElementRevision<K, V>>(modifiedKeys.size());
+
+    for (K key : addedKeys) {
+      V added = cache.getElement(key);
+
+      if (added == null) {
+        throw new ObjectCacheException("Added CacheElement is null.");
+      }
+
+      sources.add(added);
+    }
+
+    for (K key : modifiedKeys) {
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      if (revs == null || revs.isDeleted()) {
+        throw new ObjectCacheException("Cannot modify CacheElement with key " + key + ", it has been removed by another commit.");
+      }
+
+      sources.add(cache.getElement(key));
+      leading.add(revs.getLeadingVersion());
+    }
+
+    List<V> stored = new ArrayList<V>(Collections.<V>nCopies(changed, null));
+
+    if (options.isParallelPrepare(changed)) {
+      // aim for a few tasks per thread, so that a thread that finishes early can steal work from the others.
+      int chunkSize = Math.max(PREPARE_CHUNK_SIZE, changed / (4 * options.getPool().getParallelism()));
+      options.getPool().invoke(new PrepareTask(sources, leading, addedKeys.size(), stored, 0, changed, chunkSize));
+    } else {
+      new PrepareTask(sources, leading, addedKeys.size(), stored, 0, changed, changed).compute();
+    }
+
+    PreparedCommit<K, V> prepared = new PreparedCommit<K, V>();
+
+    for (int i = 0; i < addedKeys.size(); i++) {
+      prepared.added(addedKeys.get(i), stored.get(i));
+    }
+
+    for (int i = 0; i < modifiedKeys.size(); i++) {
+      int index = addedKeys.size() + i;
+      prepared.modified(modifiedKeys.get(i), sources.get(index), stored.get(index), leading.get(i).getRevision());
+    }
+
+    for (K key : cache.getRemovedElements()) {
+      prepared.removed(key);
+    }
+
+    return prepared;
+  }
+
+  /**
+   * Creates the clone of the provided {@link V} that will be stored in this {@link RootObjectCacheImpl}, frozen if
+   * the {@link CacheElementFactory} is a {@link FreezingCacheElementFactory}.
+   *
+   * @param element the {@link V} to clone.
+   * @return the clone to store.
+   */
+  private V createStoredClone(V element) {
+    V clone = factory.createClone(element);
+
+    if (factory instanceof FreezingCacheElementFactory) {
+      return ((FreezingCacheElementFactory<V>) factory).freeze(clone);
+    }
+
+    return clone;
+  }
+
+  /**
+   * Validates the provided {@link PreparedCommit} against the current leading versions. Must be called with the
+   * {@link Shard}s of all of the changed keys locked.
+   *
+   * @param prepared the {@link PreparedCommit} to validate.
+   * @return the indexes of the modified {@link V}s that were merged with a version that is no longer leading.
+   */
+  private List<Integer> validate(PreparedCommit<K, V> prepared) {
+    for (K key : prepared.addedKeys) {
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      if (revs != null && !revs.isDeleted()) {
+        throw new ObjectCacheException("Cannot add CacheElement with key " + key + ", it has already been added by another commit.");
+      }
+    }
+
+    List<Integer> moved = new ArrayList<Integer>();
+
+    for (int i = 0; i < prepared.modifiedKeys.size(); i++) {
+      K key = prepared.modifiedKeys.get(i);
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      // once another commit has removed the key, expiry may have dropped its whole history.
+      if (revs == null || revs.isDeleted()) {
+        throw new ObjectCacheException("Cannot modify CacheElement with key " + key + ", it has been removed by another commit.");
+      }
+
+      if (revs.getLeadingRevision() != prepared.mergedRevisions.get(i)) {
+        moved.add(i);
+      }
+    }
+
+    // the element may already have been removed by another commit.
+    for (Iterator<K> it = prepared.removedKeys.iterator(); it.hasNext(); ) {
+      CacheElementRevisions<K, V> revs = getElementRevisions(it.next());
+
+      if (revs == null || revs.isDeleted()) {
+        it.remove();
+      }
+    }
+
+    return moved;
+  }
+
+  /**
+   * Repeats the merge of each of the modified {@link V}s at the provided indexes against their current leading
+   * version.
+   *
+   * @param prepared the {@link PreparedCommit} to update.
+   * @param moved    the indexes of the modified {@link V}s to merge again.
+   */
+  private void remerge(PreparedCommit<K, V> prepared, List<Integer> moved) {
+    for (int i : moved) {
+      K key = prepared.modifiedKeys.get(i);
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      // once another commit has removed the key, expiry may have dropped its whole history.
+      if (revs == null || revs.isDeleted()) {
+        throw new ObjectCacheException("Cannot modify CacheElement with key " + key + ", it has been removed by another commit.");
+      }
+
+      CacheElementRevision<K, V> leading = revs.getLeadingVersion();
+      V merged = createStoredClone(factory.merge(leading.getElement(), prepared.modifiedSources.get(i)));
+
+      prepared.remerged(i, merged, leading.getRevision());
+    }
+  }
+
+  /**
+   * Records the versions in the provided {@link PreparedCommit} in the {@link CacheElementRevisions} of each key at the
+   * provided revision. Must be called with the {@link Shard}s of all of the changed keys locked.
+   * <p/>
+   * The versions are not visible to readers until the revision is published.
+   *
+   * @param revision the revision of the commit.
+   * @param prepared the {@link PreparedCommit} to install.
+   */
+  private void install(long revision, PreparedCommit<K, V> prepared) {
+    for (int i = 0; i < prepared.addedKeys.size(); i++) {
+      K key = prepared.addedKeys.get(i);
+      Shard<K, V> shard = shards[shardIndex(key)];
+      CacheElementRevisions<K, V> revs = shard.revisions.get(key);
+
+      // a key that was removed and is now being added again continues its existing history, so that readers
+      // of older revisions can still see the original.
+      if (revs == null) {
+        revs = new CacheElementRevisions<K, V>(this, key);
+        shard.revisions.put(key, revs);
+      }
+
+      revs.addElement(revision, key, prepared.addedElements.get(i));
+    }
+
+    for (int i = 0; i < prepared.modifiedKeys.size(); i++) {
+      K key = prepared.modifiedKeys.get(i);
+      getElementRevisions(key).addModification(revision, key, prepared.modifiedElements.get(i));
+    }
+
+    for (K key : prepared.removedKeys) {
+      getElementRevisions(key).removeElement(revision, key);
+    }
+  }
+
+  /**
+   * Installs the provided {@link PreparedCommit} at the provided revision. If the install fails the versions that
+   * were already installed at the revision are removed again, so that the revision can be published without any
+   * changes. Must be called with the {@link Shard}s of all of the changed keys locked.
+   *
+   * @param revision the revision of the commit.
+   * @param prepared the {@link PreparedCommit} to install.
+   * @return the reason the install failed, or {@code null} if it succeeded.
+   */
+  private RuntimeException installOrUndo(long revision, PreparedCommit<K, V> prepared) {
+    try {
+      install(revision, prepared);
+      return null;
+    } catch (RuntimeException e) {
+      uninstall(revision, prepared.addedKeys);
+      uninstall(revision, prepared.modifiedKeys);
+      uninstall(revision, prepared.removedKeys);
+      return e;
+    }
+  }
+
+  /**
+   * Removes the version recorded at the provided revision from the {@link CacheElementRevisions} of each of the
+   * provided keys, if there is one. Must be called with the {@link Shard}s of the keys locked.
+   *
+   * @param revision the revision to remove.
+   * @param keys     the keys to remove the revision from.
+   */
+  private void uninstall(long revision, List<K> keys) {
+    for (K key : keys) {
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      if (revs == null) {
+        continue;
+      }
+
+      revs.removeRevisions(Collections.singletonList(new CacheElementRevision<K, V>(key, null, revision, CacheRevisionType.MODIFIED)));
+
+      // a key that was being added for the first time has no history left.
+      if (revs.size() == 0) {
+        removeIfEmpty(key, revs);
+      }
+    }
+  }
+
+  /**
+   * Publishes the provided revision as the new head, making it visible to readers. If commits with earlier
+   * revisions have not yet been published this waits for them, so revisions are always published in order.
+   * <p/>
+   * If there is a {@link CommitLog} the revision is recorded in it first, so the log is also written in revision
+   * order. If the log fails this cache stops accepting commits.
+   *
+   * @param revision the revision of the commit.
+   * @param prepared the {@link PreparedCommit} that was installed at the revision.
+   */
+  private void publish(long revision, PreparedCommit<K, V> prepared) {
+    boolean interrupted = false;
+
+    // the record only depends on the prepared commit, so it is built before waiting for the earlier revisions. A
+    // listener that is added whilst waiting still needs it, so it is built under the monitor if it was missed.
+    CommitLog<K, V> log = commitLog;
+    CommitRecord<K, V> record = log != null || !commitListeners.isEmpty() ? createCommitRecord(revision, prepared) : null;
+
+    try {
+      synchronized (publishMonitor) {
+        // the commits before this one are guaranteed to publish as they have already been installed, so this
+        // can't give up waiting without stalling every commit after it (unless the log has failed, in which
+        // case nothing will be published again).
+        while (head.getRevision() != revision - 1) {
+          checkNotFailed();
+
+          try {
+            publishMonitor.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+
+        checkNotFailed();
+
+        if (log != null) {
+          try {
+            log.append(record);
+          } catch (RuntimeException e) {
+            // the log no longer matches this cache, so stop before anything that isn't in the log is visible.
+            failure = new ObjectCacheException("Failed to record revision " + revision + " in the commit log, no further commits will be accepted.", e);
+            publishMonitor.notifyAll();
+            throw failure;
+          }
+        }
+
+        advanceHead(revision, prepared);
+
+        if (record == null && !commitListeners.isEmpty()) {
+          record = createCommitRecord(revision, prepared);
+        }
+
+        notifyCommitListeners(record);
+      }
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    compactHistory(prepared);
+  }
+
+  /**
+   * Makes the provided revision, which must be the revision after the current head, the new head. Must be called
+   * whilst holding {@link RootObjectCacheImpl#publishMonitor}.
+   *
+   * @param revision the revision of the commit.
+   * @param prepared the {@link PreparedCommit} that was installed at the revision.
+   */
+  private void advanceHead(long revision, PreparedCommit<K, V> prepared) {
+    // this is the set of keys associated with a revision, it is immutable so "modifying" it only
+    // copies the path to each changed key rather than the whole set.
+    PersistentHashSet<K> cache_keys = head.getKeys();
+
+    for (K key : prepared.addedKeys) {
+      cache_keys = cache_keys.plus(key);
+    }
+
+    for (K key : prepared.removedKeys) {
+      cache_keys = cache_keys.minus(key);
+    }
+
+    List<K> changed = new ArrayList<K>(prepared.addedKeys.size() + prepared.modifiedKeys.size() + prepared.removedKeys.size());
+    changed.addAll(prepared.addedKeys);
+    changed.addAll(prepared.modifiedKeys);
+    changed.addAll(prepared.removedKeys);
+
+    RevisionKeyList<K> committed = new RevisionKeyList<K>(revision, cache_keys, changed);
+    keysPerRevisionMap.put(revision, committed);
+
+    // publishing the new head is what makes the commit visible to readers, the versions that were installed
+    // have a revision greater than the previous head so readers could not see them until now.
+    head = committed;
+    publishMonitor.notifyAll();
+  }
+
+  /**
+   * Gives the provided {@link CommitRecord} to each of the {@link CommitListener}s. Must be called whilst holding
+   * {@link RootObjectCacheImpl#publishMonitor}, so that the {@link CommitListener}s see revisions in order.
+   *
+   * @param record the {@link CommitRecord} of the revision that was published, {@code null} if there were no
+   *               {@link CommitListener}s when the revision was published.
+   */
+  private void notifyCommitListeners(CommitRecord<K, V> record) {
+    if (record == null) {
+      return;
+    }
+
+    for (CommitListener<K, V> listener : commitListeners) {
+      try {
+        listener.committed(record);
+      } catch (RuntimeException e) {
+        // the revision is already visible, so the listener can't fail the commit. It has missed the revision though,
+        // so it is removed rather than being given the revisions after it.
+        commitListeners.remove(listener);
+
+        try {
+          listener.failed(record, e);
+        } catch (RuntimeException ignored) {
+          // the listener has already been removed, there is nothing more that can be done.
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link CommitRecord} of the provided {@link PreparedCommit}.
+   */
+  private CommitRecord<K, V> createCommitRecord(long revision, PreparedCommit<K, V> prepared) {
+    Map<K, V> added = new LinkedHashMap<K, V>();
+    for (int i = 0; i < prepared.addedKeys.size(); i++) {
+      added.put(prepared.addedKeys.get(i), prepared.addedElements.get(i));
+    }
+
+    Map<K, V> modified = new LinkedHashMap<K, V>();
+    for (int i = 0; i < prepared.modifiedKeys.size(); i++) {
+      modified.put(prepared.modifiedKeys.get(i), prepared.modifiedElements.get(i));
+    }
+
+    return new CommitRecord<K, V>(revision, added, modified, new LinkedHashSet<K>(prepared.removedKeys));
+  }
+
+  /**
+   * Throws the failure that stopped this cache from accepting commits, if there was one.
+   */
+  private void checkNotFailed() {
+    ObjectCacheException e = failure;
+
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void replay(CommitRecord<K, V> record) {
+    try {
+      readWriteLock.writeLock().lock();
+
+      long revision = record.getRevision();
+
+      if (revision <= head.getRevision()) {
+        return;
+      }
+
+      PreparedCommit<K, V> prepared = new PreparedCommit<K, V>();
+
+      for (Map.Entry<K, V> entry : record.getAdded().entrySet()) {
+        prepared.added(entry.getKey(), createStored(entry.getValue()));
+      }
+
+      for (Map.Entry<K, V> entry : record.getModified().entrySet()) {
+        V element = createStored(entry.getValue());
+
+        if (getElementRevisions(entry.getKey()) == null) {
+          prepared.added(entry.getKey(), element);
+        } else {
+          prepared.modified(entry.getKey(), element, element, revision);
+        }
+      }
+
+      for (K key : record.getRemoved()) {
+        if (getElementRevisions(key) != null) {
+          prepared.removed(key);
+        }
+      }
+
+      boolean[] locked = lockShards(Collections.singletonList(prepared));
+
+      try {
+        install(revision, prepared);
+        allocatedRevision.set(revision);
+      }
+      finally {
+        unlockShards(locked);
+      }
+
+      synchronized (publishMonitor) {
+        advanceHead(revision, prepared);
+        notifyCommitListeners(record);
+      }
+
+      compactHistory(prepared);
+    }
+    finally {
+      readWriteLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * Each partition's {@link CacheElementRevisions} are created and added to their {@link Shard}s by a
+   * {@link LoadTask}, and the key set of the revision is built with
+   * {@link PersistentHashSet#of(Collection, ForkJoinPool)}, so no part of the load is done key by key on the calling
+   * thread.
+   */
+  public void load(long revision, List<Map<K, V>> partitions, ForkJoinPool pool) {
+    try {
+      readWriteLock.writeLock().lock();
+
+      if (head.getRevision() != 0L || allocatedRevision.get() != 0L) {
+        throw new ObjectCacheException("Cannot load revision " + revision + ", the RootObjectCache is not empty.");
+      }
+
+      if (revision <= 0L) {
+        throw new ObjectCacheException("Cannot load revision " + revision + ", it must be after revision 0.");
+      }
+
+      pool.invoke(new LoadTask(partitions, revision, 0, partitions.size()));
+
+      int size = 0;
+      for (Map<K, V> partition : partitions) {
+        size += partition.size();
+      }
+
+      List<K> keys = new ArrayList<K>(size);
+      for (Map<K, V> partition : partitions) {
+        keys.addAll(partition.keySet());
+      }
+
+      RevisionKeyList<K> loaded = new RevisionKeyList<K>(revision, PersistentHashSet.of(keys, pool), keys);
+      allocatedRevision.set(revision);
+
+      synchronized (publishMonitor) {
+        keysPerRevisionMap.put(revision, loaded);
+        head = loaded;
+        publishMonitor.notifyAll();
+
+        if (!commitListeners.isEmpty()) {
+          Map<K, V> added = new LinkedHashMap<K, V>(size * 4 / 3 + 1);
+          for (Map<K, V> partition : partitions) {
+            added.putAll(partition);
+          }
+
+          notifyCommitListeners(new CommitRecord<K, V>(revision, added, Collections.<K, V>emptyMap(), Collections.<K>emptySet()));
+        }
+      }
+    }
+    finally {
+      readWriteLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the provided {@link V}, which is already owned by this cache, frozen if the {@link CacheElementFactory}
+   * is a {@link FreezingCacheElementFactory}.
+   */
+  private V createStored(V element) {
+    if (factory instanceof FreezingCacheElementFactory) {
+      return ((FreezingCacheElementFactory<V>) factory).freeze(element);
+    }
+
+    return element;
+  }
+
+  /**
+   * Compacts the versions superseded by the provided {@link PreparedCommit}, storing them as deltas if the
+   * {@link CacheElementFactory} is a {@link DeltaCacheElementFactory} and moving them into the
+   * {@link OffHeapArena} if there is one. This is done after the commit is published, so it doesn't hold up other
+   * commits.
+   *
+   * @param prepared the {@link PreparedCommit} that was published.
+   */
+  private void compactHistory(PreparedCommit<K, V> prepared) {
+    OffHeapArena<K, V> current = arena;
+
+    if (current == null && !(factory instanceof DeltaCacheElementFactory)) {
+      return;
+    }
+
+    // added keys only supersede a removal, which has nothing to compact.
+    for (K key : prepared.modifiedKeys) {
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      if (revs != null) {
+        revs.compactHistory(current);
+      }
+    }
+
+    for (K key : prepared.removedKeys) {
+      CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+      if (revs != null) {
+        revs.compactHistory(current);
+      }
+    }
+  }
+
+  /**
+   * Locks the {@link Shard}s of all of the keys changed in the provided {@link PreparedCommit}s, always in
+   * ascending order so that concurrent commits can't deadlock.
+   *
+   * @param commits the {@link PreparedCommit}s being committed.
+   * @return the {@link Shard}s that were locked, to pass to {@link RootObjectCacheImpl#unlockShards(boolean[])}.
+   */
+  private boolean[] lockShards(List<PreparedCommit<K, V>> commits) {
+    boolean[] locked = new boolean[shards.length];
+
+    for (PreparedCommit<K, V> prepared : commits) {
+      for (K key : prepared.addedKeys) {
+        locked[shardIndex(key)] = true;
+      }
+
+      for (K key : prepared.modifiedKeys) {
+        locked[shardIndex(key)] = true;
+      }
+
+      for (K key : prepared.removedKeys) {
+        locked[shardIndex(key)] = true;
+      }
+    }
+
+    for (int i = 0; i < locked.length; i++) {
+      if (locked[i]) {
+        shards[i].lock.lock();
+      }
+    }
+
+    return locked;
+  }
+
+  /**
+   * Unlocks the {@link Shard}s locked by {@link RootObjectCacheImpl#lockShards(List)}.
+   *
+   * @param locked the {@link Shard}s to unlock.
+   */
+  private void unlockShards(boolean[] locked) {
+    for (int i = locked.length - 1; i >= 0; i--) {
+      if (locked[i]) {
+        shards[i].lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the {@link Shard} that stores the provided {@link K}.
+   *
+   * @param key
+   * @return
+   */
+  private int shardIndex(Object key) {
+    if (shards.length == 1) {
+      return 0;
+    }
+
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return (h & Integer.MAX_VALUE) % shards.length;
+  }
+
+  /**
+   * Returns the {@link CacheElementRevisions} for the provided {@link K}, or {@code null} if the
+   * {@link K} has never been added.
+   *
+   * @param key
+   * @return
+   */
+  CacheElementRevisions<K, V> getElementRevisions(K key) {
+    return shards[shardIndex(key)].revisions.get(key);
+  }
+
+  /**
+   * Returns the number of {@link Shard}s that this {@link RootObjectCacheImpl} is partitioned into.
+   *
+   * @return
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Handles the expiry of {@link com.github.pojomvcc.RevisionKeyList}s from this {@link com.github.pojomvcc.RootObjectCache}.
+   * Will use the {@link com.github.pojomvcc.CacheExpiry} registered to check which revisions should be evicted
+   * from memory.
+   */
+  private void expire() {
+    try {
+      readWriteLock.writeLock().lock();
+
+      if (cacheExpiryPolicy != null) {
+        if (!cacheExpiryPolicy.getPolicy().shouldRun(this)) {
+          return;
+        }
+
+        expireRevisions(Long.MAX_VALUE);
+      }
+    }
+    finally {
+      readWriteLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Evicts the revisions that the {@link com.github.pojomvcc.CacheExpiry} says should be expired, oldest first,
+   * until the oldest revision should be retained or the provided deadline has passed. Must be called whilst holding
+   * the write lock.
+   * <p/>
+   * Revisions are only ever expired from the oldest end, so once a revision is expired the only versions that are
+   * no longer needed are the versions replaced by the changes of the next revision, which is now the oldest. Only
+   * the keys in the change set of that revision are visited, rather than every key in the expired revision.
+   *
+   * @param deadline the {@code System.nanoTime()} to stop at, or {@code Long.MAX_VALUE} to expire every revision.
+   * @return {@code true} if the deadline passed before all of the revisions were checked.
+   */
+  private boolean expireRevisions(long deadline) {
+    for (RevisionKeyList<K> rkl : keysPerRevisionMap.values()) {
+      if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+        return true;
+      }
+
+      // make sure we don't somehow drop the current revision
+      if (rkl.getRevision() == head.getRevision() || !cacheExpiryPolicy.getPolicy().shouldExpire(this, rkl)) {
+        return false;
+      }
+
+      // remove all traces of the revision from the store
+      keysPerRevisionMap.remove(rkl.getRevision());
+
+      // the head is never expired, so there is always a newer revision.
+      RevisionKeyList<K> oldest = keysPerRevisionMap.higherEntry(rkl.getRevision()).getValue();
+
+      for (K key : oldest.getChangedKeys()) {
+        CacheElementRevisions<K, V> revs = getElementRevisions(key);
+
+        if (revs == null) {
+          continue;
+        }
+
+        List<CacheElementRevision<K, V>> expired = revs.expireBefore(oldest.getRevision());
+
+        if (!expired.isEmpty()) {
+          if (cacheExpiryPolicy.getHandler() instanceof CacheVersionExpirationHandler) {
+            ((CacheVersionExpirationHandler<K, V>) cacheExpiryPolicy.getHandler()).versionsExpired(key, expired);
+          }
+
+          if (revs.size() == 0) {
+            removeIfEmpty(key, revs);
+          }
+        }
+      }
+
+      // optionally provide some mechanism for handling the expired revisions, probably by writing
+      // them to disk, or a database, or something.
+      cacheExpiryPolicy.getHandler().expired(rkl);
+    }
+
+    return false;
+  }
+
+  /**
+   * Removes the provided {@link CacheElementRevisions} from its {@link Shard} if it has no versions left, so that
+   * a {@link K} that has been removed and whose history has expired doesn't use any memory.
+   *
+   * @param key  the {@link K} of the {@link CacheElementRevisions}.
+   * @param revs the {@link CacheElementRevisions} to remove.
+   */
+  private void removeIfEmpty(K key, CacheElementRevisions<K, V> revs) {
+    Shard<K, V> shard = shards[shardIndex(key)];
+
+    try {
+      // a commit adding the key again would install into the existing history whilst holding the shard lock.
+      shard.lock.lock();
+
+      if (revs.size() == 0) {
+        shard.revisions.remove(key, revs);
+      }
+    }
+    finally {
+      shard.lock.unlock();
+    }
+  }
+
+  /**
+   * Called by the {@link HistoryVacuum} at the start of a pass.
+   *
+   * @return {@code true} if the {@link com.github.pojomvcc.CacheExpiryPolicy} wants to run.
+   */
+  boolean startVacuum() {
+    try {
+      readWriteLock.writeLock().lock();
+      return cacheExpiryPolicy != null && cacheExpiryPolicy.getPolicy().shouldRun(this);
+    }
+    finally {
+      readWriteLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Called by the {@link HistoryVacuum} to expire revisions for a single slice of a pass.
+   *
+   * @param deadline the {@code System.nanoTime()} at which the slice should end.
+   * @return {@code true} if there may be more revisions to expire.
+   */
+  boolean vacuum(long deadline) {
+    try {
+      readWriteLock.writeLock().lock();
+      return cacheExpiryPolicy != null && expireRevisions(deadline);
+    }
+    finally {
+      readWriteLock.writeLock().unlock();
+    }
   }
 
   /**
    * @inheritDoc
    */
-  public boolean containsKey(long revision, K keyForIndex) {
+  public void close(RevisionObjectCache<K, V> cache) {
+    HistoryVacuum currentVacuum = vacuum;
+
+    if (currentVacuum != null) {
+      // the open caches and their pins are thread-safe, the write lock is only needed to expire the history
+      // which the vacuum will do.
+      if (this.openRevisionCaches.remove(cache)) {
+        activeRevisionPins.unpin(cache.getRevision());
+      }
+
+      currentVacuum.signal();
+      return;
+    }
+
     try {
-      readWriteLock.readLock().lock();
-      return revisions.get(keyForIndex).containsRevision(revision);
+      readWriteLock.writeLock().lock();
+
+      if (this.openRevisionCaches.remove(cache)) {
+        activeRevisionPins.unpin(cache.getRevision());
+      }
+
+      // a dependent cache has been closed, so lets check for any values that can be removed from the
+      // cache.
+      expire();
     }
     finally {
-      readWriteLock.readLock().unlock();
+      readWriteLock.writeLock().unlock();
     }
   }
 
   /**
    * @inheritDoc
    */
-  public boolean containsKey(K key) {
+  public void rebase(RevisionObjectCache<K, V> cache, long revision) {
+    if (revision < cache.getRevision() || revision > head.getRevision()) {
+      throw new ObjectCacheException("Cannot move RevisionObjectCache from revision " + cache.getRevision() + " to revision " + revision + ".");
+    }
+
+    if (!openRevisionCaches.contains(cache)) {
+      throw new ObjectCacheException("Cannot move a RevisionObjectCache that has been closed.");
+    }
+
+    // the new revision is pinned before the old one is released, and history newer than the old revision can't be
+    // expired whilst it is pinned, so there is no point at which the new revision could be expired.
+    activeRevisionPins.pin(revision);
+    activeRevisionPins.unpin(cache.getRevision());
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public Set<K> getChangedKeys(long fromRevision, long toRevision) {
+    if (fromRevision > toRevision || toRevision > head.getRevision()) {
+      throw new ObjectCacheException("Cannot get the keys changed between revision " + fromRevision + " and revision " + toRevision + ".");
+    }
+
+    if (keysPerRevisionMap.firstKey() > fromRevision) {
+      throw new ObjectCacheException("Cannot get the keys changed since revision " + fromRevision + ", it has been expired.");
+    }
+
+    Set<K> changed = new LinkedHashSet<K>();
+
+    for (RevisionKeyList<K> rkl : keysPerRevisionMap.subMap(fromRevision, false, toRevision, true).values()) {
+      changed.addAll(rkl.getChangedKeys());
+    }
+
+    return changed;
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The from revision is pinned until the {@link RevisionDiff} is closed, or is garbage collected if it is never
+   * closed, the same as the {@code java.util.Map} returned by {@link RootObjectCacheImpl#asMap()}.
+   */
+  public RevisionDiff<K, V> diff(long fromRevision, long toRevision) {
     try {
+      // expiry holds the write lock, so the revisions can't be expired between checking them and pinning them.
       readWriteLock.readLock().lock();
-      return revisions.containsKey(key);
+
+      if (fromRevision > toRevision || toRevision > head.getRevision()) {
+        throw new ObjectCacheException("Cannot diff revision " + fromRevision + " with revision " + toRevision + ".");
+      }
+
+      if (keysPerRevisionMap.firstKey() > fromRevision) {
+        throw new ObjectCacheException("Cannot diff revision " + fromRevision + ", it has been expired.");
+      }
+
+      List<RevisionKeyList<K>> revisions = new ArrayList<RevisionKeyList<K>>(keysPerRevisionMap.subMap(fromRevision, false, toRevision, true).values());
+      PinRelease release = new PinRelease();
+      RevisionDiffImpl<K, V> diff = new RevisionDiffImpl<K, V>(this, fromRevision, toRevision, getKeySetForRevision(fromRevision), getKeySetForRevision(toRevision), revisions, release);
+
+      release.pin = activeRevisionPins.pinWhileReachable(diff, fromRevision);
+      return diff;
     }
     finally {
       readWriteLock.readLock().unlock();
     }
   }
 
+  /**
+   * @inheritDoc
+   */
+  public List<RevisionObjectCache<K, V>> getActiveRevisions() {
+    return Collections.unmodifiableList(new ArrayList<RevisionObjectCache<K, V>>(openRevisionCaches));
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public long getOldestActiveRevision() {
+    return Math.min(activeRevisionPins.getOldestPinned(), head.getRevision());
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void setCacheExpiry(CacheExpiry<K, V> pol) {
+    this.cacheExpiryPolicy = pol;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public CacheExpiry<K, V> getCacheExpiry() {
+    return cacheExpiryPolicy;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void setCommitOptions(CommitOptions options) {
+    this.commitOptions = options;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public CommitOptions getCommitOptions() {
+    return commitOptions;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public synchronized void setVacuumOptions(VacuumOptions options) {
+    if (vacuum != null) {
+      vacuum.shutdown();
+    }
+
+    this.vacuumOptions = options;
+    this.vacuum = options.isBackground() ? new HistoryVacuum(this, options) : null;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public VacuumOptions getVacuumOptions() {
+    return vacuumOptions;
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * Versions that were already moved off the heap stay in the {@link OffHeapArena} they were moved into.
+   */
+  public synchronized void setStorageOptions(StorageOptions<K, V> options) {
+    this.storageOptions = options;
+    this.arena = options.isOffHeap() ? new OffHeapArena<K, V>(options.getCodec(), options.getChunkSize()) : null;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public StorageOptions<K, V> getStorageOptions() {
+    return storageOptions;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void setCommitLog(CommitLog<K, V> log) {
+    this.commitLog = log;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public CommitLog<K, V> getCommitLog() {
+    return commitLog;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void addCommitListener(CommitListener<K, V> listener) {
+    if (listener == null) {
+      throw new ObjectCacheException("Cannot add a null CommitListener.");
+    }
+
+    // revisions are published whilst holding the monitor, so the listener is told about every revision after the
+    // current head and no others.
+    synchronized (publishMonitor) {
+      commitListeners.add(listener);
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void removeCommitListener(CommitListener<K, V> listener) {
+    commitListeners.remove(listener);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public boolean containsKey(long revision, K keyForIndex) {
+    CacheElementRevisions<K, V> revs = getElementRevisions(keyForIndex);
+    return revs != null && revs.containsRevision(revision);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public boolean containsKey(K key) {
+    return head.contains(key);
+  }
+
   /**
    * Returns a {@code java.util.Map} which is a simple mechanism for getting the current revision.
    * <p/>
    * The returned {@code java.util.Map} is read-only and cannot be modified in any way.
+   * <p/>
+   * The {@code java.util.Map} is a {@link RevisionObjectCacheMap} view of the head revision, which is pinned
+   * (so that its history is not expired) until the {@code java.util.Map} is closed, or is garbage collected if it
+   * is never closed. Nothing is copied and only the read lock is taken, the same as a
+   * {@link RootObjectCacheImpl#checkout()}.
    */
-  public Map<K, V> asMap() {
+  public RevisionObjectCacheMap<K, V> asMap() {
     try {
-      readWriteLock.writeLock().lock();
-      return new RevisionObjectCacheMap<K, V>(this);
+      readWriteLock.readLock().lock();
+
+      RevisionKeyList<K> current = head;
+      PinRelease release = new PinRelease();
+      RevisionObjectCacheMap<K, V> map = new RevisionObjectCacheMap<K, V>(this, current.getRevision(), current.getKeys(), release);
+      release.pin = activeRevisionPins.pinWhileReachable(map, current.getRevision());
+      return map;
     }
     finally {
-      readWriteLock.writeLock().unlock();
+      readWriteLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Creates the {@link V}s to store for a range of the changed {@link V}s of a commit, dividing the range between the
+   * threads of a {@code java.util.concurrent.ForkJoinPool} until it is no larger than the chunk size. The first
+   * {@code addedCount} sources are added {@link V}s which are cloned, the rest are modified {@link V}s which are
+   * merged with their leading version.
+   */
+  private final class PrepareTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<V> sources;
+    private final List<CacheElementRevision<K, V>> leading;
+    private final int addedCount;
+    private final List<V> stored;
+    private final int from;
+    private final int to;
+    private final int chunkSize;
+
+    PrepareTask(List<V> sources, List<CacheElementRevision<K, V>> leading, int addedCount, List<V> stored, int from, int to, int chunkSize) {
+      this.sources = sources;
+      this.leading = leading;
+      this.addedCount = addedCount;
+      this.stored = stored;
+      this.from = from;
+      this.to = to;
+      this.chunkSize = chunkSize;
+    }
+
+    protected void compute() {
+      if (to - from > chunkSize) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new PrepareTask(sources, leading, addedCount, stored, from, middle, chunkSize),
+            new PrepareTask(sources, leading, addedCount, stored, middle, to, chunkSize));
+        return;
+      }
+
+      for (int i = from; i < to; i++) {
+        V source = sources.get(i);
+
+        if (i < addedCount) {
+          stored.set(i, createStoredClone(source));
+        } else {
+          stored.set(i, createStoredClone(factory.merge(leading.get(i - addedCount).getElement(), source)));
+        }
+      }
     }
   }
+
+  /**
+   * Creates the {@link CacheElementRevisions} for a range of the partitions being loaded by
+   * {@link RootObjectCacheImpl#load(long, List, ForkJoinPool)}, dividing the range between the threads of a
+   * {@code java.util.concurrent.ForkJoinPool} until each thread has a single partition. The {@link Shard}s are not
+   * locked, as nothing else can change this {@link RootObjectCacheImpl} whilst it is being loaded.
+   */
+  private final class LoadTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Map<K, V>> partitions;
+    private final long revision;
+    private final int from;
+    private final int to;
+
+    LoadTask(List<Map<K, V>> partitions, long revision, int from, int to) {
+      this.partitions = partitions;
+      this.revision = revision;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new LoadTask(partitions, revision, from, middle), new LoadTask(partitions, revision, middle, to));
+        return;
+      }
+
+      if (from == to) {
+        return;
+      }
+
+      for (Map.Entry<K, V> entry : partitions.get(from).entrySet()) {
+        K key = entry.getKey();
+        CacheElementRevisions<K, V> revs = new CacheElementRevisions<K, V>(RootObjectCacheImpl.this, key);
+        revs.addElement(revision, key, createStored(entry.getValue()));
+
+        if (shards[shardIndex(key)].revisions.putIfAbsent(key, revs) != null) {
+          throw new ObjectCacheException("Cannot load CacheElement with key " + key + ", it is in more than one partition.");
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the pin of a view when the view is closed. A view can only be pinned whilst reachable once it has been
+   * created, so the view is given this and the pin is set on it afterwards, before the view is returned.
+   */
+  private static final class PinRelease implements Runnable {
+    private Runnable pin;
+
+    public void run() {
+      pin.run();
+    }
+  }
+
+  /**
+   * A commit that is waiting to be applied as part of a group. The result is set by the leader that applied it
+   * and is read by the waiting thread after the leader has released and re-acquired
+   * {@link RootObjectCacheImpl#groupLock}.
+   */
+  private static final class PendingCommit<K, V> {
+    final PreparedCommit<K, V> prepared;
+    long revision = -1;
+    RuntimeException failure;
+    boolean done;
+
+    PendingCommit(PreparedCommit<K, V> prepared) {
+      this.prepared = prepared;
+    }
+  }
+
+  /**
+   * A partition of the {@link CacheElementRevisions} of a {@link RootObjectCacheImpl}, with the lock that
+   * commits changing the {@link CacheElementRevisions} in it must hold.
+   */
+  private static final class Shard<K, V> {
+    final ReentrantLock lock = new ReentrantLock();
+    final ConcurrentMap<K, CacheElementRevisions<K, V>> revisions = new ConcurrentHashMap<K, CacheElementRevisions<K, V>>();
+  }
 }
@@ -0,0 +1,42 @@
+package com.github.pojomvcc.impl;
+
+import com.github.pojomvcc.CacheElementFactory;
+
+/**
+ * A {@link RootObjectCacheImpl} that partitions its {@code V}s by the hash of their {@code K} into a number
+ * of shards, each with an independent lock.
+ * <p/>
+ * Commits only lock the shards of the keys that they change, so commits that change disjoint sets of keys can
+ * clone, merge and install their changes in parallel. Every commit is still given a single, globally increasing
+ * revision number and revisions are published to readers in order, so the cache behaves exactly as a
+ * {@link RootObjectCacheImpl} does.
+ *
+ * @author Aidan Morgan
+ */
+public class ShardedRootObjectCacheImpl<K, V> extends RootObjectCacheImpl<K, V> {
+  /**
+   * The default number of shards, enough that commits from every core are unlikely to contend.
+   */
+  public static final int DEFAULT_SHARD_COUNT = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+  /**
+   * Constructor, creates a cache with {@link ShardedRootObjectCacheImpl#DEFAULT_SHARD_COUNT} shards.
+   *
+   * @param factory the {@link CacheElementFactory} that is used for creating clones and
+   *                merging {@code V}s.
+   */
+  public ShardedRootObjectCacheImpl(CacheElementFactory<V> factory) {
+    this(factory, DEFAULT_SHARD_COUNT);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param factory    the {@link CacheElementFactory} that is used for creating clones and
+   *                   merging {@code V}s.
+   * @param shardCount the number of shards to partition the {@code V}s into.
+   */
+  public ShardedRootObjectCacheImpl(CacheElementFactory<V> factory, int shardCount) {
+    super(factory, shardCount);
+  }
+}
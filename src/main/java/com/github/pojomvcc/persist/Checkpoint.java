@@ -0,0 +1,453 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a checkpoint of a revision of a {@link RootObjectCache} to a file, and restores a new
+ * {@link RootObjectCache} from one. Restoring a checkpoint and then replaying the revisions after it from a
+ * {@link WriteAheadLog} is much faster than replaying the whole log.
+ * <p/>
+ * A checkpoint is written from the head revision at the time, which is pinned (as if it had been checked out) so
+ * that it can't be expired whilst it is being written. Commits carry on as normal whilst the checkpoint is
+ * written.
+ * <p/>
+ * The file is a sequence of partitions, each of which holds a run of the {@code (key, element)} pairs encoded with
+ * a {@link CacheElementCodec}, followed by a table of the offset, length, number of pairs and CRC32 of each
+ * partition and then the revision of the checkpoint, with a CRC32 of the table and revision. A checkpoint is
+ * restored by memory-mapping each partition and decoding the partitions in parallel, before loading the decoded
+ * partitions into the {@link RootObjectCache} in parallel as a single revision.
+ *
+ * @author Aidan Morgan
+ */
+public class Checkpoint<K, V> {
+  /**
+   * Identifies a checkpoint file.
+   */
+  private static final int MAGIC = 0x504d4350;
+
+  /**
+   * The size of the revision, partition count, CRC32 and magic number at the end of the file.
+   */
+  private static final int FOOTER_SIZE = 20;
+
+  /**
+   * The size of the revision and partition count, which are covered by the CRC32 in the footer.
+   */
+  private static final int FOOTER_CHECKED_SIZE = 12;
+
+  /**
+   * The size of each entry in the partition table.
+   */
+  private static final int TABLE_ENTRY_SIZE = 24;
+
+  /**
+   * The largest partition that is written, so that each partition can be mapped with a single
+   * {@code java.nio.MappedByteBuffer}.
+   */
+  private static final long MAX_PARTITION_SIZE = 1024L * 1024L * 1024L;
+
+  /**
+   * The size of the buffer that pairs are encoded into before they are written.
+   */
+  private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * The {@link CacheElementCodec} used to write the keys and elements.
+   */
+  private final CacheElementCodec<K, V> codec;
+
+  /**
+   * Constructor.
+   *
+   * @param codec the {@link CacheElementCodec} used to write the keys and elements.
+   */
+  public Checkpoint(CacheElementCodec<K, V> codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Writes a checkpoint of the head revision of the provided {@link RootObjectCache}, with a partition for each
+   * available processor.
+   *
+   * @param rootCache the {@link RootObjectCache} to checkpoint.
+   * @param file      the file to write the checkpoint to, replacing any checkpoint already there.
+   * @return the revision that was written.
+   */
+  public long write(RootObjectCache<K, V> rootCache, File file) {
+    return write(rootCache, file, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Writes a checkpoint of the head revision of the provided {@link RootObjectCache}.
+   * <p/>
+   * The checkpoint is written to a temporary file which atomically replaces the provided file once it is
+   * complete, so a failure never leaves a partial checkpoint behind or loses the checkpoint that was there. The
+   * directory is forced to disk after the move, so that the new checkpoint survives a crash.
+   *
+   * @param rootCache  the {@link RootObjectCache} to checkpoint.
+   * @param file       the file to write the checkpoint to, replacing any checkpoint already there.
+   * @param partitions the number of partitions to split the checkpoint into, the most that it can be restored
+   *                   in parallel with.
+   * @return the revision that was written.
+   */
+  public long write(RootObjectCache<K, V> rootCache, File file, int partitions) {
+    if (partitions < 1) {
+      throw new ObjectCacheException("A checkpoint must have at least one partition, " + partitions + " provided.");
+    }
+
+    // the checkout pins the revision so that the versions in it can't be expired before they are written.
+    RevisionObjectCache<K, V> pin = rootCache.checkout();
+    File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+    try {
+      long revision = pin.getRevision();
+      Set<K> keys = rootCache.getKeySetForRevision(revision);
+      int perPartition = Math.max(1, (keys.size() + partitions - 1) / partitions);
+
+      RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+
+      try {
+        raf.setLength(0);
+        FileChannel channel = raf.getChannel();
+        PartitionWriter writer = new PartitionWriter(channel);
+
+        for (K key : keys) {
+          if (writer.count >= perPartition || writer.length >= MAX_PARTITION_SIZE) {
+            writer.finishPartition();
+          }
+
+          writer.write(key, rootCache.getElementWithRevision(revision, key));
+        }
+
+        writer.finishPartition();
+        writer.finish(revision);
+        channel.force(true);
+      }
+      finally {
+        raf.close();
+      }
+
+      // the move is atomic, so a crash leaves either the previous checkpoint or the new one and never neither.
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      forceDirectory(temp.getAbsoluteFile().getParentFile());
+      return revision;
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot write checkpoint " + file + ".", e);
+    }
+    finally {
+      // the temporary file is only left behind if the checkpoint failed, whatever it failed with.
+      temp.delete();
+      pin.close();
+    }
+  }
+
+  /**
+   * Forces the provided directory to disk, so that a file that has just been moved into it is not lost in a crash.
+   * Some platforms can't open a directory, there is nothing more that can be done on those.
+   */
+  private static void forceDirectory(File directory) {
+    FileChannel channel;
+
+    try {
+      channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+
+    try {
+      channel.force(true);
+    } catch (IOException e) {
+      // as above, not all platforms can force a directory.
+    }
+    finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing has been written through the channel, so there is nothing to lose.
+      }
+    }
+  }
+
+  /**
+   * Restores the provided checkpoint into the provided (empty) {@link RootObjectCache}, decoding with a thread
+   * for each available processor.
+   *
+   * @param rootCache the empty {@link RootObjectCache} to restore the checkpoint into.
+   * @param file      the checkpoint file.
+   * @return the revision of the checkpoint, which is now the revision of the {@link RootObjectCache}.
+   */
+  public long restore(RootObjectCache<K, V> rootCache, File file) {
+    return restore(rootCache, file, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Restores the provided checkpoint into the provided (empty) {@link RootObjectCache}. The partitions of the
+   * checkpoint are decoded in parallel and then loaded into the {@link RootObjectCache} in parallel as a single
+   * revision using {@link RootObjectCache#load(long, List, ForkJoinPool)}.
+   *
+   * @param rootCache   the empty {@link RootObjectCache} to restore the checkpoint into.
+   * @param file        the checkpoint file.
+   * @param parallelism the number of threads to decode and load the partitions with.
+   * @return the revision of the checkpoint, which is now the revision of the {@link RootObjectCache}.
+   */
+  public long restore(RootObjectCache<K, V> rootCache, File file, int parallelism) {
+    if (rootCache.getRevision() != 0L) {
+      throw new ObjectCacheException("A checkpoint can only be restored into an empty RootObjectCache.");
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("pojo-mvcc-checkpoint-restore-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }, null, false);
+
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+      try {
+        final FileChannel channel = raf.getChannel();
+        long size = channel.size();
+
+        if (size < FOOTER_SIZE) {
+          throw new ObjectCacheException("The checkpoint " + file + " is incomplete.");
+        }
+
+        ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+        long revision = footer.getLong();
+        int partitions = footer.getInt();
+        int tableChecksum = footer.getInt();
+
+        if (footer.getInt() != MAGIC) {
+          throw new ObjectCacheException("The file " + file + " is not a checkpoint.");
+        }
+
+        long tableSize = (long) partitions * TABLE_ENTRY_SIZE;
+
+        if (partitions < 0 || tableSize > size - FOOTER_SIZE) {
+          throw new ObjectCacheException("The partition table of checkpoint " + file + " is corrupt.");
+        }
+
+        // the CRC32 covers the table and the revision and partition count in the footer.
+        ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE - tableSize, tableSize + FOOTER_CHECKED_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(table.duplicate());
+
+        if ((int) crc.getValue() != tableChecksum) {
+          throw new ObjectCacheException("The partition table of checkpoint " + file + " is corrupt.");
+        }
+
+        table.limit((int) tableSize);
+        List<Future<Map<K, V>>> decoded = new ArrayList<Future<Map<K, V>>>(partitions);
+
+        for (int i = 0; i < partitions; i++) {
+          final long offset = table.getLong();
+          final long length = table.getLong();
+          final int count = table.getInt();
+          final int checksum = table.getInt();
+
+          decoded.add(pool.submit(new Callable<Map<K, V>>() {
+            public Map<K, V> call() throws Exception {
+              return readPartition(channel, offset, length, count, checksum);
+            }
+          }));
+        }
+
+        List<Map<K, V>> loaded = new ArrayList<Map<K, V>>(partitions);
+
+        for (Future<Map<K, V>> partition : decoded) {
+          loaded.add(partition.get());
+        }
+
+        rootCache.load(revision, loaded, pool);
+        return revision;
+      }
+      finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot read checkpoint " + file + ".", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ObjectCacheException("Interrupted whilst restoring checkpoint " + file + ".", e);
+    } catch (ExecutionException e) {
+      throw new ObjectCacheException("Cannot restore checkpoint " + file + ".", e.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Maps and decodes a single partition.
+   */
+  private Map<K, V> readPartition(FileChannel channel, long offset, long length, int count, int checksum) throws IOException {
+    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+
+    CRC32 crc = new CRC32();
+    crc.update(data.duplicate());
+
+    if ((int) crc.getValue() != checksum) {
+      throw new ObjectCacheException("The checkpoint partition at offset " + offset + " is corrupt.");
+    }
+
+    Map<K, V> elements = new LinkedHashMap<K, V>(count * 4 / 3 + 1);
+
+    for (int i = 0; i < count; i++) {
+      K key = codec.decodeKey(next(data));
+      elements.put(key, codec.decode(next(data)));
+    }
+
+    return elements;
+  }
+
+  /**
+   * Returns the next length prefixed value in the provided {@code java.nio.ByteBuffer}, moving past it.
+   */
+  private static ByteBuffer next(ByteBuffer data) {
+    int length = data.getInt();
+
+    ByteBuffer value = data.duplicate();
+    value.limit(value.position() + length);
+    data.position(data.position() + length);
+    return value.slice();
+  }
+
+  /**
+   * Writes the pairs of a checkpoint, keeping track of the partitions.
+   */
+  private class PartitionWriter {
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The offset, length, count and CRC32 of each finished partition.
+     */
+    private ByteBuffer table = ByteBuffer.allocate(TABLE_ENTRY_SIZE * 16);
+    private int partitions;
+
+    /**
+     * The offset of the current partition in the file.
+     */
+    private long start;
+
+    /**
+     * The number of bytes written to the current partition.
+     */
+    long length;
+
+    /**
+     * The number of pairs written to the current partition.
+     */
+    int count;
+
+    PartitionWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    void write(K key, V element) throws IOException {
+      for (; ; ) {
+        int mark = buffer.position();
+
+        try {
+          put(key, element);
+          length += buffer.position() - mark;
+          count++;
+          return;
+        } catch (BufferOverflowException e) {
+          buffer.position(mark);
+
+          if (mark > 0) {
+            flush();
+          } else {
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+          }
+        }
+      }
+    }
+
+    void finishPartition() throws IOException {
+      if (count == 0) {
+        return;
+      }
+
+      flush();
+
+      ensureTableCapacity(TABLE_ENTRY_SIZE);
+      table.putLong(start);
+      table.putLong(length);
+      table.putInt(count);
+      table.putInt((int) crc.getValue());
+      partitions++;
+
+      start += length;
+      length = 0;
+      count = 0;
+      crc.reset();
+    }
+
+    void finish(long revision) throws IOException {
+      ensureTableCapacity(FOOTER_SIZE);
+      table.putLong(revision);
+      table.putInt(partitions);
+
+      crc.reset();
+      crc.update(table.array(), 0, table.position());
+      table.putInt((int) crc.getValue());
+      table.putInt(MAGIC);
+      table.flip();
+
+      while (table.hasRemaining()) {
+        channel.write(table);
+      }
+    }
+
+    private void ensureTableCapacity(int required) {
+      if (table.remaining() < required) {
+        ByteBuffer grown = ByteBuffer.allocate(table.capacity() * 2);
+        table.flip();
+        grown.put(table);
+        table = grown;
+      }
+    }
+
+    private void put(K key, V element) {
+      int keyStart = buffer.position();
+      buffer.putInt(0);
+      codec.encodeKey(key, buffer);
+      buffer.putInt(keyStart, buffer.position() - keyStart - 4);
+
+      int elementStart = buffer.position();
+      buffer.putInt(0);
+      codec.encode(element, buffer);
+      buffer.putInt(elementStart, buffer.position() - elementStart - 4);
+    }
+
+    private void flush() throws IOException {
+      crc.update(buffer.array(), 0, buffer.position());
+      buffer.flip();
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      buffer.clear();
+    }
+  }
+}
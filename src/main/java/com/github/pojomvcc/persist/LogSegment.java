@@ -0,0 +1,556 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.ObjectCacheException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A single memory-mapped file of a {@link MappedLogExpirationHandler}'s history log.
+ * <p/>
+ * Records are appended to the {@code .log} file until it is full, each record is:
+ * <pre>
+ *   int    length of the rest of the record
+ *   int    hash of the encoded key
+ *   long   revision
+ *   byte   ordinal of the com.github.pojomvcc.CacheRevisionType
+ *   int    length of the key, followed by the key bytes
+ *   int    length of the element (-1 for no element), followed by the element bytes
+ * </pre>
+ * A record length of zero marks the end of the records. Whilst a segment is being appended to it is indexed in
+ * memory, once it is full it is sealed and the index is written to a {@code .idx} file next to it: an array of
+ * {@code (int hash, int offset, long revision)} entries sorted by hash and then revision, which is memory-mapped
+ * and binary searched, so sealed segments don't use any heap for their index.
+ * <p/>
+ * A {@link LogSegment} is not thread-safe, the {@link MappedLogExpirationHandler} serialises access to it.
+ *
+ * @author Aidan Morgan
+ */
+class LogSegment {
+  /**
+   * The size of a record's fixed length fields, after the length prefix.
+   */
+  private static final int RECORD_HEADER = 4 + 8 + 1 + 4 + 4;
+
+  /**
+   * The size of an entry in the {@code .idx} file.
+   */
+  private static final int INDEX_ENTRY = 4 + 4 + 8;
+
+  /**
+   * The prefix of the names of the files of the segments in the log.
+   */
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  /**
+   * The prefix of the names of the files of a segment that is being compacted.
+   */
+  private static final String COMPACTION_PREFIX = "compact-";
+
+  private final long id;
+  private final File logFile;
+  private final File indexFile;
+
+  /**
+   * The mapped contents of {@link LogSegment#logFile}.
+   */
+  private final MappedByteBuffer data;
+
+  /**
+   * The offset that the next record will be written at.
+   */
+  private int writePosition;
+
+  /**
+   * The in-memory index of the records, from key hash to {@code (revision, offset)} pairs in the order they were
+   * appended, {@code null} once the segment is sealed.
+   */
+  private Map<Integer, Postings> activeIndex;
+
+  /**
+   * The mapped contents of {@link LogSegment#indexFile}, {@code null} until the segment is sealed.
+   */
+  private MappedByteBuffer sealedIndex;
+
+  /**
+   * Constructor, use {@link LogSegment#create(File, long, int)} or {@link LogSegment#open(File, long)}.
+   */
+  private LogSegment(long id, File logFile, File indexFile, MappedByteBuffer data) {
+    this.id = id;
+    this.logFile = logFile;
+    this.indexFile = indexFile;
+    this.data = data;
+  }
+
+  /**
+   * Creates a new, empty, {@link LogSegment}.
+   *
+   * @param directory the directory of the history log.
+   * @param id        the id of the {@link LogSegment}, which determines the name of its files.
+   * @param capacity  the size of the {@code .log} file in bytes.
+   * @return
+   */
+  static LogSegment create(File directory, long id, int capacity) {
+    return create(directory, SEGMENT_PREFIX, id, capacity);
+  }
+
+  /**
+   * Creates a new, empty, {@link LogSegment} to compact the {@link LogSegment} with the provided id into. Its files
+   * are not part of the log until it replaces the original using {@link LogSegment#replace(File, LogSegment)}.
+   *
+   * @param directory the directory of the history log.
+   * @param id        the id of the {@link LogSegment} being compacted.
+   * @param capacity  the size of the {@code .log} file in bytes, see {@link LogSegment#capacityFor(long)}.
+   * @return
+   */
+  static LogSegment createCompaction(File directory, long id, int capacity) {
+    return create(directory, COMPACTION_PREFIX, id, capacity);
+  }
+
+  /**
+   * Returns the size of a {@code .log} file that exactly holds records with the provided total size, as returned
+   * by {@link LogSegment#recordSize(int)}.
+   *
+   * @param recordBytes the total size of the records.
+   * @return
+   */
+  static int capacityFor(long recordBytes) {
+    // the zero length that marks the end of the records.
+    return (int) (recordBytes + 4);
+  }
+
+  private static LogSegment create(File directory, String prefix, long id, int capacity) {
+    File logFile = logFile(directory, prefix, id);
+    File indexFile = indexFile(directory, prefix, id);
+
+    if (logFile.exists() && !logFile.delete()) {
+      throw new ObjectCacheException("Cannot replace existing history log segment " + logFile + ".");
+    }
+
+    if (indexFile.exists() && !indexFile.delete()) {
+      throw new ObjectCacheException("Cannot replace existing history log index " + indexFile + ".");
+    }
+
+    LogSegment segment = new LogSegment(id, logFile, indexFile, map(logFile, capacity));
+    segment.activeIndex = new HashMap<Integer, Postings>();
+    return segment;
+  }
+
+  /**
+   * Opens an existing {@link LogSegment}. If it has not been sealed its in-memory index is rebuilt from the records.
+   *
+   * @param directory the directory of the history log.
+   * @param id        the id of the {@link LogSegment}.
+   * @return
+   */
+  static LogSegment open(File directory, long id) {
+    File logFile = logFile(directory, SEGMENT_PREFIX, id);
+    File indexFile = indexFile(directory, SEGMENT_PREFIX, id);
+
+    LogSegment segment = new LogSegment(id, logFile, indexFile, map(logFile, (int) logFile.length()));
+
+    if (indexFile.exists()) {
+      segment.sealedIndex = map(indexFile, (int) indexFile.length());
+      segment.writePosition = segment.data.capacity();
+    } else {
+      segment.activeIndex = new HashMap<Integer, Postings>();
+
+      int position = 0;
+      while (position + 4 <= segment.data.capacity()) {
+        int length = segment.data.getInt(position);
+
+        if (length <= 0 || position + 4 + length > segment.data.capacity()) {
+          break;
+        }
+
+        segment.indexRecord(position);
+        position += 4 + length;
+      }
+
+      segment.writePosition = position;
+    }
+
+    return segment;
+  }
+
+  /**
+   * Returns the ids of the {@link LogSegment}s in the provided directory, in ascending order.
+   *
+   * @param directory
+   * @return
+   */
+  static List<Long> list(File directory) {
+    List<Long> ids = new ArrayList<Long>();
+    String[] names = directory.list();
+
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(".log")) {
+          ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - ".log".length())));
+        } else if (name.startsWith(COMPACTION_PREFIX)) {
+          // left behind by a compaction that didn't complete, the original segment is still intact.
+          new File(directory, name).delete();
+        }
+      }
+    }
+
+    Collections.sort(ids);
+    return ids;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  boolean isSealed() {
+    return sealedIndex != null;
+  }
+
+  /**
+   * Returns {@code true} if there are no records in this {@link LogSegment}.
+   *
+   * @return
+   */
+  boolean isEmpty() {
+    return isSealed() ? sealedIndex.capacity() == 0 : writePosition == 0;
+  }
+
+  /**
+   * Appends a record to this {@link LogSegment}.
+   *
+   * @return {@code false} if there isn't room for the record.
+   */
+  boolean append(int hash, long revision, byte state, byte[] key, byte[] element) {
+    if (isSealed()) {
+      throw new ObjectCacheException("Cannot append to sealed history log segment " + logFile + ".");
+    }
+
+    int length = RECORD_HEADER + key.length + (element == null ? 0 : element.length);
+
+    // always leave room for the zero length that marks the end of the records.
+    if ((long) writePosition + 4 + length + 4 > data.capacity()) {
+      return false;
+    }
+
+    int position = writePosition;
+    data.putInt(position + 4, hash);
+    data.putLong(position + 8, revision);
+    data.put(position + 16, state);
+    data.putInt(position + 17, key.length);
+    put(position + 21, key);
+    data.putInt(position + 21 + key.length, element == null ? -1 : element.length);
+
+    if (element != null) {
+      put(position + 25 + key.length, element);
+    }
+
+    // the length is written last so that a partially written record is never read back.
+    data.putInt(position, length);
+
+    writePosition = position + 4 + length;
+    indexRecord(position);
+    return true;
+  }
+
+  /**
+   * Writes the in-memory index to the {@code .idx} file, after which no more records can be appended.
+   */
+  void seal() {
+    if (isSealed()) {
+      return;
+    }
+
+    List<long[]> entries = new ArrayList<long[]>();
+    for (Map.Entry<Integer, Postings> entry : activeIndex.entrySet()) {
+      Postings postings = entry.getValue();
+
+      for (int i = 0; i < postings.size; i++) {
+        entries.add(new long[]{entry.getKey(), postings.revisions[i], postings.offsets[i]});
+      }
+    }
+
+    Collections.sort(entries, new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        if (a[0] != b[0]) {
+          return a[0] < b[0] ? -1 : 1;
+        }
+
+        return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+      }
+    });
+
+    data.force();
+
+    MappedByteBuffer index = map(indexFile, entries.size() * INDEX_ENTRY);
+    for (int i = 0; i < entries.size(); i++) {
+      long[] entry = entries.get(i);
+      index.putInt(i * INDEX_ENTRY, (int) entry[0]);
+      index.putInt(i * INDEX_ENTRY + 4, (int) entry[2]);
+      index.putLong(i * INDEX_ENTRY + 8, entry[1]);
+    }
+    index.force();
+
+    sealedIndex = index;
+    activeIndex = null;
+  }
+
+  /**
+   * Returns the offset of the record for the provided key with the highest revision that is less than or equal to
+   * the provided revision, or {@code -1} if there isn't one in this {@link LogSegment}.
+   *
+   * @param hash     the hash of the key.
+   * @param key      the bytes of the key.
+   * @param revision the revision to find the floor of.
+   * @return
+   */
+  int floor(int hash, byte[] key, long revision) {
+    int best = -1;
+    long bestRevision = Long.MIN_VALUE;
+
+    if (isSealed()) {
+      int entries = sealedIndex.capacity() / INDEX_ENTRY;
+      int i = firstIndexEntry(hash, entries);
+
+      for (; i < entries && sealedIndex.getInt(i * INDEX_ENTRY) == hash; i++) {
+        long candidate = sealedIndex.getLong(i * INDEX_ENTRY + 8);
+
+        // the entries for a hash are sorted by revision, so nothing after this can match.
+        if (candidate > revision) {
+          break;
+        }
+
+        int offset = sealedIndex.getInt(i * INDEX_ENTRY + 4);
+        if (candidate >= bestRevision && keyEquals(offset, key)) {
+          best = offset;
+          bestRevision = candidate;
+        }
+      }
+    } else {
+      Postings postings = activeIndex.get(hash);
+
+      if (postings != null) {
+        for (int i = 0; i < postings.size; i++) {
+          long candidate = postings.revisions[i];
+
+          if (candidate <= revision && candidate >= bestRevision && keyEquals(postings.offsets[i], key)) {
+            best = postings.offsets[i];
+            bestRevision = candidate;
+          }
+        }
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * Returns the offset of the first record in this {@link LogSegment}, or {@code -1} if it is empty. Used with
+   * {@link LogSegment#next(int)} to walk every record.
+   *
+   * @return
+   */
+  int first() {
+    return data.capacity() >= 4 && data.getInt(0) > 0 ? 0 : -1;
+  }
+
+  /**
+   * Returns the offset of the record after the record at the provided offset, or {@code -1} if it is the last.
+   *
+   * @param offset
+   * @return
+   */
+  int next(int offset) {
+    int next = offset + 4 + data.getInt(offset);
+    return next + 4 <= data.capacity() && data.getInt(next) > 0 ? next : -1;
+  }
+
+  /**
+   * Returns the number of bytes the record at the provided offset takes up, including its length prefix.
+   *
+   * @param offset
+   * @return
+   */
+  int recordSize(int offset) {
+    return 4 + data.getInt(offset);
+  }
+
+  int hashAt(int offset) {
+    return data.getInt(offset + 4);
+  }
+
+  long revisionAt(int offset) {
+    return data.getLong(offset + 8);
+  }
+
+  byte stateAt(int offset) {
+    return data.get(offset + 16);
+  }
+
+  byte[] keyAt(int offset) {
+    return get(offset + 21, data.getInt(offset + 17));
+  }
+
+  /**
+   * Returns the element bytes of the record at the provided offset, or {@code null} if it has no element.
+   *
+   * @param offset
+   * @return
+   */
+  byte[] elementAt(int offset) {
+    int keyLength = data.getInt(offset + 17);
+    int length = data.getInt(offset + 21 + keyLength);
+
+    return length < 0 ? null : get(offset + 25 + keyLength, length);
+  }
+
+  /**
+   * Replaces the provided {@link LogSegment} with this sealed compaction of it, returning the {@link LogSegment}
+   * that is now stored in the original's files.
+   * <p/>
+   * The original's index is removed first, so if this is interrupted the log is reopened with either the original or
+   * the compacted records, which are then indexed again from the records themselves.
+   *
+   * @param directory the directory of the history log.
+   * @param original  the {@link LogSegment} that was compacted.
+   * @return
+   */
+  LogSegment replace(File directory, LogSegment original) {
+    if (!isSealed()) {
+      throw new ObjectCacheException("Cannot replace history log segment " + original.logFile + " with an unsealed compaction.");
+    }
+
+    if (!original.indexFile.delete() && original.indexFile.exists()) {
+      throw new ObjectCacheException("Cannot delete history log index " + original.indexFile + ".");
+    }
+
+    if (!logFile.renameTo(original.logFile) || !indexFile.renameTo(original.indexFile)) {
+      throw new ObjectCacheException("Cannot replace history log segment " + original.logFile + " with " + logFile + ".");
+    }
+
+    return open(directory, original.id);
+  }
+
+  /**
+   * Deletes the files of this {@link LogSegment}. The mapped memory is released when this {@link LogSegment} is
+   * garbage collected.
+   */
+  void delete() {
+    if (!logFile.delete() && logFile.exists()) {
+      throw new ObjectCacheException("Cannot delete history log segment " + logFile + ".");
+    }
+
+    if (!indexFile.delete() && indexFile.exists()) {
+      throw new ObjectCacheException("Cannot delete history log index " + indexFile + ".");
+    }
+  }
+
+  /**
+   * Returns the index of the first entry in {@link LogSegment#sealedIndex} with the provided hash, or the index the
+   * entry would be at.
+   */
+  private int firstIndexEntry(int hash, int entries) {
+    int low = 0;
+    int high = entries;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+
+      if (sealedIndex.getInt(mid * INDEX_ENTRY) < hash) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  private void indexRecord(int offset) {
+    int hash = hashAt(offset);
+    Postings postings = activeIndex.get(hash);
+
+    if (postings == null) {
+      postings = new Postings();
+      activeIndex.put(hash, postings);
+    }
+
+    postings.add(revisionAt(offset), offset);
+  }
+
+  private boolean keyEquals(int offset, byte[] key) {
+    if (data.getInt(offset + 17) != key.length) {
+      return false;
+    }
+
+    for (int i = 0; i < key.length; i++) {
+      if (data.get(offset + 21 + i) != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void put(int position, byte[] bytes) {
+    ByteBuffer view = data.duplicate();
+    view.position(position);
+    view.put(bytes);
+  }
+
+  private byte[] get(int position, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer view = data.duplicate();
+    view.position(position);
+    view.get(bytes);
+    return bytes;
+  }
+
+  private static File logFile(File directory, String prefix, long id) {
+    return new File(directory, String.format("%s%016d.log", prefix, id));
+  }
+
+  private static File indexFile(File directory, String prefix, long id) {
+    return new File(directory, String.format("%s%016d.idx", prefix, id));
+  }
+
+  private static MappedByteBuffer map(File file, int size) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try {
+        // the mapping remains valid after the channel is closed.
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+      finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot map history log file " + file + ".", e);
+    }
+  }
+
+  /**
+   * The {@code (revision, offset)} pairs of the records with the same key hash in an unsealed {@link LogSegment}.
+   */
+  private static final class Postings {
+    long[] revisions = new long[2];
+    int[] offsets = new int[2];
+    int size;
+
+    void add(long revision, int offset) {
+      if (size == revisions.length) {
+        revisions = Arrays.copyOf(revisions, size * 2);
+        offsets = Arrays.copyOf(offsets, size * 2);
+      }
+
+      revisions[size] = revision;
+      offsets[size] = offset;
+      size++;
+    }
+  }
+}
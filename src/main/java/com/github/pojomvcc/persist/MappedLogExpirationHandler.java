@@ -0,0 +1,400 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.*;
+import com.github.pojomvcc.codec.CacheElementCodecs;
+import com.github.pojomvcc.codec.SerializableCodec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link CacheVersionExpirationHandler} that appends the expired versions of {@link V}s to an append-only history
+ * log on disk, so that old revisions can still be read through {@link RootObjectCache#getElementWithRevision(long, Object)}
+ * without being kept on the heap.
+ * <p/>
+ * The log is a directory of fixed size, memory-mapped segment files. Versions are appended to the newest segment
+ * until it is full, at which point it is sealed (its index of {@code (key hash, revision)} is written to disk next
+ * to it) and a new segment is started. {@link MappedLogExpirationHandler#retrieve(Object, long)} searches the
+ * segments from newest to oldest for the version of the key with the highest revision that is less than or equal
+ * to the requested revision.
+ * <p/>
+ * Keys and elements are stored using a {@link CacheElementCodec}. If none is provided a {@link SerializableCodec} is
+ * used, in which case they must be {@code java.io.Serializable} and equal keys must serialize to the same bytes.
+ * The key hash in the index is the hash of the encoded key rather than {@code Object#hashCode()}, which for enums
+ * and identity hashed keys is different every time the JVM is started.
+ * <p/>
+ * Sealed segments can be compacted to remove the versions that are not visible at or after a horizon revision,
+ * either by calling {@link MappedLogExpirationHandler#compact(long)} or in the background using
+ * {@link MappedLogExpirationHandler#startCompaction(long, TimeUnit, long)}.
+ *
+ * @author Aidan Morgan
+ */
+public class MappedLogExpirationHandler<K, V> implements CacheVersionExpirationHandler<K, V> {
+  /**
+   * The default size of a segment file.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The directory that the segment files are stored in.
+   */
+  private final File directory;
+
+  /**
+   * The size of each segment file in bytes.
+   */
+  private final int segmentSize;
+
+  /**
+   * The {@link CacheElementCodec} used to store keys and elements in the log.
+   */
+  private final CacheElementCodec<K, V> codec;
+
+  /**
+   * The segments of the log, oldest first. The last segment is the only one that is not sealed.
+   */
+  private final List<LogSegment> segments = new ArrayList<LogSegment>();
+
+  /**
+   * Guards {@link MappedLogExpirationHandler#segments}, appends and compaction take the write lock.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Held whilst compacting, so that {@link MappedLogExpirationHandler#compact(long)} and the background compactor
+   * never compact the same segment (into the same compaction files) at the same time.
+   */
+  private final Object compactionLock = new Object();
+
+  /**
+   * The highest revision of any version that has been appended to the log.
+   */
+  private volatile long lastRevision = Long.MIN_VALUE;
+
+  /**
+   * The executor that compacts the log in the background, {@code null} unless
+   * {@link MappedLogExpirationHandler#startCompaction(long, TimeUnit, long)} has been called.
+   */
+  private ScheduledExecutorService compactor;
+
+  /**
+   * Constructor, using segments of {@link MappedLogExpirationHandler#DEFAULT_SEGMENT_SIZE} and a
+   * {@link SerializableCodec}.
+   *
+   * @param directory the directory to store the log in, any existing log in it is reopened.
+   */
+  public MappedLogExpirationHandler(File directory) {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructor, using a {@link SerializableCodec}.
+   *
+   * @param directory   the directory to store the log in, any existing log in it is reopened.
+   * @param segmentSize the size of each segment file in bytes.
+   */
+  public MappedLogExpirationHandler(File directory, int segmentSize) {
+    this(directory, segmentSize, new SerializableCodec<K, V>());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param directory   the directory to store the log in, any existing log in it is reopened.
+   * @param segmentSize the size of each segment file in bytes.
+   * @param codec       the {@link CacheElementCodec} to store keys and elements with, it must be the same
+   *                    {@link CacheElementCodec} that wrote any existing log in the directory.
+   */
+  public MappedLogExpirationHandler(File directory, int segmentSize, CacheElementCodec<K, V> codec) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new ObjectCacheException("Cannot create history log directory " + directory + ".");
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.codec = codec;
+
+    for (long id : LogSegment.list(directory)) {
+      LogSegment segment = LogSegment.open(directory, id);
+
+      // only the newest segment can still be appended to, a crash may have left an older one unsealed.
+      if (!segments.isEmpty()) {
+        segments.get(segments.size() - 1).seal();
+      }
+
+      segments.add(segment);
+    }
+
+    if (segments.isEmpty() || segments.get(segments.size() - 1).isSealed()) {
+      long id = segments.isEmpty() ? 0L : segments.get(segments.size() - 1).getId() + 1;
+      segments.add(LogSegment.create(directory, id, segmentSize));
+    }
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The versions of the revision have already been appended by
+   * {@link MappedLogExpirationHandler#versionsExpired(Object, List)}, so there is nothing to do.
+   */
+  public void expired(RevisionKeyList<K> rev) {
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public void versionsExpired(K key, List<CacheElementRevision<K, V>> versions) {
+    byte[] keyBytes = CacheElementCodecs.encodeKey(codec, key);
+    int hash = hash(keyBytes);
+
+    try {
+      lock.writeLock().lock();
+
+      for (CacheElementRevision<K, V> version : versions) {
+        byte[] element = version.getElement() == null ? null : CacheElementCodecs.encode(codec, version.getElement());
+        byte state = (byte) version.getRevisionType().ordinal();
+
+        LogSegment active = segments.get(segments.size() - 1);
+
+        if (!active.append(hash, version.getRevision(), state, keyBytes, element)) {
+          if (active.isEmpty()) {
+            throw new ObjectCacheException("Version " + version.getRevision() + " of " + key + " is too large for a history log segment of " + segmentSize + " bytes.");
+          }
+
+          active.seal();
+          active = LogSegment.create(directory, active.getId() + 1, segmentSize);
+          segments.add(active);
+
+          if (!active.append(hash, version.getRevision(), state, keyBytes, element)) {
+            throw new ObjectCacheException("Version " + version.getRevision() + " of " + key + " is too large for a history log segment of " + segmentSize + " bytes.");
+          }
+        }
+
+        lastRevision = Math.max(lastRevision, version.getRevision());
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public CacheElementRevision<K, V> retrieve(K key, long revision) {
+    byte[] keyBytes = CacheElementCodecs.encodeKey(codec, key);
+    int hash = hash(keyBytes);
+
+    try {
+      lock.readLock().lock();
+
+      // the versions of a key are appended in revision order, so the newest segment with a match has the floor.
+      for (int i = segments.size() - 1; i >= 0; i--) {
+        LogSegment segment = segments.get(i);
+        int offset = segment.floor(hash, keyBytes, revision);
+
+        if (offset >= 0) {
+          byte[] element = segment.elementAt(offset);
+          CacheRevisionType state = CacheRevisionType.values()[segment.stateAt(offset)];
+
+          return new CacheElementRevision<K, V>(key, element == null ? null : CacheElementCodecs.decode(codec, element), segment.revisionAt(offset), state);
+        }
+      }
+
+      return null;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrites the sealed segments without the versions that are not visible at any revision at or after the
+   * provided horizon, that is versions older than the horizon that have a newer version that is also no newer than
+   * the horizon. Each compacted segment is rewritten to a file of only the size of the records that survive, and
+   * segments that are left empty are deleted.
+   * <p/>
+   * Only one compaction runs at a time, a call whilst the background compactor is running waits for it to finish.
+   *
+   * @param horizon the oldest revision that must still be retrievable.
+   */
+  public void compact(long horizon) {
+    synchronized (compactionLock) {
+      List<LogSegment> sealed;
+
+      try {
+        lock.readLock().lock();
+
+        if (segments.isEmpty()) {
+          return;
+        }
+
+        sealed = new ArrayList<LogSegment>(segments.subList(0, segments.size() - 1));
+      }
+      finally {
+        lock.readLock().unlock();
+      }
+
+      for (LogSegment segment : sealed) {
+        compact(segment, horizon);
+      }
+    }
+  }
+
+  /**
+   * Starts compacting the log in the background, keeping the versions visible in the last
+   * {@code retainedRevisions} revisions that have been appended to the log.
+   *
+   * @param period            the time between compactions.
+   * @param unit              the {@code java.util.concurrent.TimeUnit} of {@code period}.
+   * @param retainedRevisions the number of revisions before the newest appended revision that must still be
+   *                          retrievable.
+   */
+  public synchronized void startCompaction(long period, TimeUnit unit, final long retainedRevisions) {
+    if (compactor != null) {
+      compactor.shutdown();
+    }
+
+    compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "pojo-mvcc-history-compactor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    compactor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        long last = lastRevision;
+
+        if (last != Long.MIN_VALUE) {
+          compact(last - retainedRevisions);
+        }
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * Stops any background compaction, after which this {@link MappedLogExpirationHandler} must not be used. The
+   * segment files are left on disk to be reopened later.
+   */
+  public synchronized void close() {
+    if (compactor != null) {
+      compactor.shutdown();
+      compactor = null;
+    }
+
+    // waits for a compaction that is already running to finish.
+    synchronized (compactionLock) {
+      try {
+        lock.writeLock().lock();
+        segments.clear();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Compacts a single sealed segment, must be called whilst holding
+   * {@link MappedLogExpirationHandler#compactionLock}. The surviving records are found and then copied to a new
+   * segment of exactly their size under the read lock, which is then swapped in under the write lock.
+   */
+  private void compact(LogSegment segment, long horizon) {
+    LogSegment compacted = null;
+
+    try {
+      lock.readLock().lock();
+
+      if (!segments.contains(segment)) {
+        return;
+      }
+
+      List<Integer> surviving = new ArrayList<Integer>();
+      long survivingBytes = 0;
+      boolean dropped = false;
+
+      for (int offset = segment.first(); offset >= 0; offset = segment.next(offset)) {
+        long revision = segment.revisionAt(offset);
+
+        if (revision < horizon && isSuperseded(segment.hashAt(offset), segment.keyAt(offset), revision, horizon)) {
+          dropped = true;
+        } else {
+          surviving.add(offset);
+          survivingBytes += segment.recordSize(offset);
+        }
+      }
+
+      if (!dropped) {
+        return;
+      }
+
+      if (!surviving.isEmpty()) {
+        compacted = LogSegment.createCompaction(directory, segment.getId(), LogSegment.capacityFor(survivingBytes));
+
+        for (int offset : surviving) {
+          compacted.append(segment.hashAt(offset), segment.revisionAt(offset), segment.stateAt(offset), segment.keyAt(offset), segment.elementAt(offset));
+        }
+      }
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+
+    try {
+      lock.writeLock().lock();
+
+      int index = segments.indexOf(segment);
+
+      if (index < 0) {
+        // the log was closed whilst the segment was being compacted.
+        if (compacted != null) {
+          compacted.delete();
+        }
+      } else if (compacted == null) {
+        segment.delete();
+        segments.remove(index);
+      } else {
+        compacted.seal();
+        segments.set(index, compacted.replace(directory, segment));
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the hash of an encoded key that is stored in the segment indexes. It only depends on the bytes, so it is
+   * the same every time the log is opened.
+   */
+  private static int hash(byte[] keyBytes) {
+    return Arrays.hashCode(keyBytes);
+  }
+
+  /**
+   * Returns {@code true} if the key has a version in the log that is newer than the provided revision but no newer
+   * than the horizon, in which case the version at the provided revision isn't visible at the horizon.
+   */
+  private boolean isSuperseded(int hash, byte[] key, long revision, long horizon) {
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      LogSegment segment = segments.get(i);
+      int offset = segment.floor(hash, key, horizon);
+
+      if (offset >= 0) {
+        return segment.revisionAt(offset) > revision;
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,102 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.ObjectCacheException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code SyncPolicy} defines when a {@link WriteAheadLog} forces the revisions it has written to disk.
+ * <p/>
+ * Forcing every revision means no committed revision is ever lost, but every commit waits for the disk. Forcing
+ * after a batch of revisions, or periodically, bounds how many of the most recent revisions can be lost if the
+ * machine (rather than just the process) fails in exchange for much cheaper commits.
+ *
+ * @author Aidan Morgan
+ */
+public class SyncPolicy {
+  /**
+   * Creates a {@link SyncPolicy} that forces every revision to disk before it is visible.
+   *
+   * @return
+   */
+  public static SyncPolicy EVERY_COMMIT() {
+    return new SyncPolicy(1, 0L);
+  }
+
+  /**
+   * Creates a {@link SyncPolicy} that forces the log to disk after every {@code commits} revisions.
+   *
+   * @param commits the number of revisions to write between each force.
+   * @return
+   */
+  public static SyncPolicy BATCH(int commits) {
+    if (commits < 1) {
+      throw new ObjectCacheException("The batch size must be at least one, " + commits + " provided.");
+    }
+
+    return new SyncPolicy(commits, 0L);
+  }
+
+  /**
+   * Creates a {@link SyncPolicy} that forces the log to disk from a background thread at a fixed interval.
+   *
+   * @param interval the time between each force.
+   * @param unit     the {@code java.util.concurrent.TimeUnit} of {@code interval}.
+   * @return
+   */
+  public static SyncPolicy PERIODIC(long interval, TimeUnit unit) {
+    if (interval <= 0) {
+      throw new ObjectCacheException("The sync interval must be positive, " + interval + " provided.");
+    }
+
+    return new SyncPolicy(0, unit.toNanos(interval));
+  }
+
+  /**
+   * The number of revisions written between each force, {@code 0} if the log is forced periodically.
+   */
+  private final int batchSize;
+
+  /**
+   * The time, in nanoseconds, between each periodic force, {@code 0} if the log is forced after a batch.
+   */
+  private final long intervalNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param batchSize     the number of revisions written between each force.
+   * @param intervalNanos the time, in nanoseconds, between each periodic force.
+   */
+  private SyncPolicy(int batchSize, long intervalNanos) {
+    this.batchSize = batchSize;
+    this.intervalNanos = intervalNanos;
+  }
+
+  /**
+   * Returns {@code true} if the log is forced periodically rather than after a number of revisions.
+   *
+   * @return
+   */
+  public boolean isPeriodic() {
+    return intervalNanos > 0;
+  }
+
+  /**
+   * Returns the number of revisions written between each force.
+   *
+   * @return
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Returns the time, in nanoseconds, between each periodic force.
+   *
+   * @return
+   */
+  public long getIntervalNanos() {
+    return intervalNanos;
+  }
+}
@@ -0,0 +1,515 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link CommitLog} that appends the {@link CommitRecord} of every revision to a log on disk, so that a
+ * {@link RootObjectCache} can be rebuilt at the same revision after a restart using
+ * {@link WriteAheadLog#recover(RootObjectCache)}.
+ * <p/>
+ * The log is a directory of segment files, each named after the first revision it contains. A segment is closed
+ * and a new one started once it reaches the segment size. Each record is written as its length, a CRC32 of its
+ * contents and the contents themselves: the revision followed by the added, modified and removed entries, with
+ * each key and element encoded by a {@link CacheElementCodec} and prefixed by its length. A record that was only
+ * partly written when the process stopped fails its CRC and is discarded when the log is reopened.
+ * <p/>
+ * When the log is forced to disk is determined by its {@link SyncPolicy}.
+ * <p/>
+ * To use a {@link WriteAheadLog}, create the {@link RootObjectCache}, call
+ * {@link WriteAheadLog#recover(RootObjectCache)} and only then set it as the {@link CommitLog} of the
+ * {@link RootObjectCache}.
+ *
+ * @author Aidan Morgan
+ */
+public class WriteAheadLog<K, V> implements CommitLog<K, V> {
+  /**
+   * The default size of a segment file.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * The length and CRC32 written before each record.
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * The directory that the segment files are stored in.
+   */
+  private final File directory;
+
+  /**
+   * The {@link CacheElementCodec} used to write the keys and elements.
+   */
+  private final CacheElementCodec<K, V> codec;
+
+  /**
+   * Determines when the log is forced to disk.
+   */
+  private final SyncPolicy policy;
+
+  /**
+   * The size at which a segment is closed and a new one started.
+   */
+  private final int segmentSize;
+
+  /**
+   * The segment files of the log by the first revision they contain, guarded by {@code this}.
+   */
+  private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+  /**
+   * The channel of the newest segment, which records are appended to. {@code null} until the first record is
+   * appended to an empty log.
+   */
+  private FileChannel channel;
+
+  /**
+   * The highest revision in the log.
+   */
+  private long lastRevision;
+
+  /**
+   * The number of records appended since the log was last forced to disk.
+   */
+  private int unsynced;
+
+  /**
+   * Buffer that each record is encoded into before it is written, grown as required.
+   */
+  private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+  /**
+   * The checksum of the records being appended.
+   */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * The executor that forces the log to disk for a {@link SyncPolicy#PERIODIC(long, TimeUnit)} policy.
+   */
+  private ScheduledExecutorService syncer;
+
+  /**
+   * Constructor, forcing every revision to disk and using segments of {@link WriteAheadLog#DEFAULT_SEGMENT_SIZE}.
+   *
+   * @param directory the directory to store the log in, any existing log in it is reopened.
+   * @param codec     the {@link CacheElementCodec} to write the keys and elements with.
+   */
+  public WriteAheadLog(File directory, CacheElementCodec<K, V> codec) {
+    this(directory, codec, SyncPolicy.EVERY_COMMIT());
+  }
+
+  /**
+   * Constructor, using segments of {@link WriteAheadLog#DEFAULT_SEGMENT_SIZE}.
+   *
+   * @param directory the directory to store the log in, any existing log in it is reopened.
+   * @param codec     the {@link CacheElementCodec} to write the keys and elements with.
+   * @param policy    the {@link SyncPolicy} that determines when the log is forced to disk.
+   */
+  public WriteAheadLog(File directory, CacheElementCodec<K, V> codec, SyncPolicy policy) {
+    this(directory, codec, policy, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param directory   the directory to store the log in, any existing log in it is reopened.
+   * @param codec       the {@link CacheElementCodec} to write the keys and elements with, it must be the same
+   *                    {@link CacheElementCodec} that wrote any existing log in the directory.
+   * @param policy      the {@link SyncPolicy} that determines when the log is forced to disk.
+   * @param segmentSize the size at which a segment is closed and a new one started.
+   */
+  public WriteAheadLog(File directory, CacheElementCodec<K, V> codec, SyncPolicy policy, int segmentSize) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new ObjectCacheException("Cannot create write-ahead log directory " + directory + ".");
+    }
+
+    this.directory = directory;
+    this.codec = codec;
+    this.policy = policy;
+    this.segmentSize = segmentSize;
+
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), f);
+        }
+      }
+    }
+
+    if (!segments.isEmpty()) {
+      openActive(segments.lastEntry().getKey(), segments.lastEntry().getValue());
+    }
+
+    if (policy.isPeriodic()) {
+      syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "pojo-mvcc-wal-sync");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+      syncer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          sync();
+        }
+      }, policy.getIntervalNanos(), policy.getIntervalNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  public synchronized void append(CommitRecord<K, V> record) {
+    if (record.getRevision() <= lastRevision) {
+      throw new ObjectCacheException("Revision " + record.getRevision() + " is not after the last logged revision " + lastRevision + ", the RootObjectCache must be recovered from this log before it is used.");
+    }
+
+    encode(record);
+
+    try {
+      if (channel == null || (channel.size() > 0 && channel.size() + buffer.remaining() > segmentSize)) {
+        roll(record.getRevision());
+      }
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      lastRevision = record.getRevision();
+      unsynced++;
+
+      if (!policy.isPeriodic() && unsynced >= policy.getBatchSize()) {
+        channel.force(false);
+        unsynced = 0;
+      }
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot write revision " + record.getRevision() + " to the write-ahead log.", e);
+    }
+  }
+
+  /**
+   * Forces every record appended so far to disk.
+   */
+  public synchronized void sync() {
+    if (channel == null || unsynced == 0) {
+      return;
+    }
+
+    try {
+      channel.force(false);
+      unsynced = 0;
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot sync the write-ahead log.", e);
+    }
+  }
+
+  /**
+   * Returns the highest revision in the log, or {@code 0} if it is empty.
+   *
+   * @return
+   */
+  public synchronized long getLastRevision() {
+    return lastRevision;
+  }
+
+  /**
+   * Replays every revision in the log into the provided {@link RootObjectCache} using
+   * {@link RootObjectCache#replay(CommitRecord)}, after which the {@link RootObjectCache} is at the same revision
+   * as the log. Revisions the {@link RootObjectCache} already has are skipped.
+   *
+   * @param rootCache the {@link RootObjectCache} to rebuild.
+   * @return the revision of the {@link RootObjectCache} after the log has been replayed.
+   */
+  public long recover(RootObjectCache<K, V> rootCache) {
+    List<File> files;
+
+    synchronized (this) {
+      files = new ArrayList<File>(segments.values());
+    }
+
+    long revision = 0L;
+
+    for (File f : files) {
+      ByteBuffer data = map(f);
+
+      while (data.hasRemaining()) {
+        int end = recordEnd(data);
+
+        if (end < 0) {
+          throw new ObjectCacheException("The write-ahead log segment " + f + " is corrupt at offset " + data.position() + ".");
+        }
+
+        ByteBuffer payload = data.duplicate();
+        payload.position(data.position() + HEADER_SIZE);
+        payload.limit(end);
+        data.position(end);
+
+        CommitRecord<K, V> record = decode(payload.slice());
+        rootCache.replay(record);
+        revision = record.getRevision();
+      }
+    }
+
+    return revision;
+  }
+
+  /**
+   * Deletes the segments that only contain revisions at or before the provided revision, for example once a
+   * checkpoint of that revision has been written. The segment being appended to is never deleted.
+   *
+   * @param revision the revision that no longer needs to be recovered from this log.
+   */
+  public synchronized void truncate(long revision) {
+    while (segments.size() > 1) {
+      Map.Entry<Long, File> first = segments.firstEntry();
+
+      // a segment ends where the next one starts, so it is only deletable if the next one starts no later than
+      // the revision after the truncation.
+      if (segments.higherKey(first.getKey()) > revision + 1) {
+        return;
+      }
+
+      if (!first.getValue().delete()) {
+        throw new ObjectCacheException("Cannot delete write-ahead log segment " + first.getValue() + ".");
+      }
+
+      segments.remove(first.getKey());
+    }
+  }
+
+  /**
+   * Forces the log to disk and closes it, after which this {@link WriteAheadLog} must not be used.
+   */
+  public synchronized void close() {
+    if (syncer != null) {
+      syncer.shutdown();
+      syncer = null;
+    }
+
+    if (channel != null) {
+      try {
+        channel.force(false);
+        channel.close();
+      } catch (IOException e) {
+        throw new ObjectCacheException("Cannot close the write-ahead log.", e);
+      }
+      finally {
+        channel = null;
+      }
+    }
+  }
+
+  /**
+   * Opens the newest segment for appending, discarding any record at its end that was not completely written.
+   */
+  private void openActive(long firstRevision, File f) {
+    ByteBuffer data = map(f);
+    long last = firstRevision - 1;
+
+    while (data.hasRemaining()) {
+      int end = recordEnd(data);
+
+      if (end < 0) {
+        break;
+      }
+
+      last = data.getLong(data.position() + HEADER_SIZE);
+      data.position(end);
+    }
+
+    try {
+      channel = new RandomAccessFile(f, "rw").getChannel();
+      channel.truncate(data.position());
+      channel.position(data.position());
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot open write-ahead log segment " + f + ".", e);
+    }
+
+    lastRevision = last;
+  }
+
+  /**
+   * Closes the segment being appended to and starts a new one, named after the provided revision.
+   */
+  private void roll(long firstRevision) throws IOException {
+    if (channel != null) {
+      channel.force(false);
+      channel.close();
+      unsynced = 0;
+    }
+
+    File f = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, firstRevision, SEGMENT_SUFFIX));
+    channel = new RandomAccessFile(f, "rw").getChannel();
+    segments.put(firstRevision, f);
+
+    // the new file has to be in the directory before anything in it can be relied upon.
+    channel.force(true);
+  }
+
+  /**
+   * Encodes the provided {@link CommitRecord} into {@link WriteAheadLog#buffer}, which is left ready to be written.
+   */
+  private void encode(CommitRecord<K, V> record) {
+    for (; ; ) {
+      buffer.clear();
+
+      try {
+        buffer.position(HEADER_SIZE);
+        buffer.putLong(record.getRevision());
+
+        buffer.putInt(record.getAdded().size());
+        for (Map.Entry<K, V> entry : record.getAdded().entrySet()) {
+          putKey(entry.getKey());
+          putElement(entry.getValue());
+        }
+
+        buffer.putInt(record.getModified().size());
+        for (Map.Entry<K, V> entry : record.getModified().entrySet()) {
+          putKey(entry.getKey());
+          putElement(entry.getValue());
+        }
+
+        buffer.putInt(record.getRemoved().size());
+        for (K key : record.getRemoved()) {
+          putKey(key);
+        }
+
+        int length = buffer.position() - HEADER_SIZE;
+
+        crc.reset();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+
+        buffer.putInt(0, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return;
+      } catch (BufferOverflowException e) {
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+      }
+    }
+  }
+
+  private void putKey(K key) {
+    int start = buffer.position();
+    buffer.putInt(0);
+    codec.encodeKey(key, buffer);
+    buffer.putInt(start, buffer.position() - start - 4);
+  }
+
+  private void putElement(V element) {
+    int start = buffer.position();
+    buffer.putInt(0);
+    codec.encode(element, buffer);
+    buffer.putInt(start, buffer.position() - start - 4);
+  }
+
+  /**
+   * Decodes the contents of a record.
+   */
+  private CommitRecord<K, V> decode(ByteBuffer payload) {
+    long revision = payload.getLong();
+
+    Map<K, V> added = new LinkedHashMap<K, V>();
+    for (int i = payload.getInt(); i > 0; i--) {
+      K key = codec.decodeKey(next(payload));
+      added.put(key, codec.decode(next(payload)));
+    }
+
+    Map<K, V> modified = new LinkedHashMap<K, V>();
+    for (int i = payload.getInt(); i > 0; i--) {
+      K key = codec.decodeKey(next(payload));
+      modified.put(key, codec.decode(next(payload)));
+    }
+
+    Set<K> removed = new LinkedHashSet<K>();
+    for (int i = payload.getInt(); i > 0; i--) {
+      removed.add(codec.decodeKey(next(payload)));
+    }
+
+    return new CommitRecord<K, V>(revision, added, modified, removed);
+  }
+
+  /**
+   * Returns the next length prefixed value in the provided {@code java.nio.ByteBuffer}, moving past it.
+   */
+  private static ByteBuffer next(ByteBuffer payload) {
+    int length = payload.getInt();
+
+    ByteBuffer value = payload.duplicate();
+    value.limit(value.position() + length);
+    payload.position(payload.position() + length);
+    return value.slice();
+  }
+
+  /**
+   * Returns the position after the record at the position of the provided {@code java.nio.ByteBuffer}, or
+   * {@code -1} if the record is incomplete or its CRC doesn't match.
+   */
+  private static int recordEnd(ByteBuffer data) {
+    int start = data.position();
+
+    if (data.remaining() < HEADER_SIZE) {
+      return -1;
+    }
+
+    int length = data.getInt(start);
+
+    if (length < 8 || length > data.remaining() - HEADER_SIZE) {
+      return -1;
+    }
+
+    ByteBuffer payload = data.duplicate();
+    payload.position(start + HEADER_SIZE);
+    payload.limit(start + HEADER_SIZE + length);
+
+    // recovery runs without holding the lock, so this can't use the CRC32 that appends use.
+    CRC32 check = new CRC32();
+    check.update(payload);
+
+    if ((int) check.getValue() != data.getInt(start + 4)) {
+      return -1;
+    }
+
+    return start + HEADER_SIZE + length;
+  }
+
+  /**
+   * Maps the provided segment file read-only.
+   */
+  private static MappedByteBuffer map(File f) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+
+      try {
+        return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      }
+      finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new ObjectCacheException("Cannot read write-ahead log segment " + f + ".", e);
+    }
+  }
+}
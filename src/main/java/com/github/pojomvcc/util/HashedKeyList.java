@@ -0,0 +1,210 @@
+package com.github.pojomvcc.util;
+
+import java.util.*;
+
+/**
+ * A {@code java.util.List} of unique keys that keeps insertion order but answers {@code contains}
+ * using a hash index rather than a linear scan.
+ * <p/>
+ * Used by the {@link RevisionObjectList} to track the added, removed and modified keys of a working copy,
+ * where the number of changed keys is small compared to the size of the {@code com.github.pojomvcc.RootObjectCache}
+ * but the membership checks are performed on every read.
+ * <p/>
+ * Adding, removing and finding a key are all constant time. A removed key leaves a tombstone in its slot rather
+ * than shifting the keys after it, the tombstones are squeezed out the next time a key is looked up by index (or
+ * when they outnumber the keys), so indexed access is amortised constant time as well.
+ *
+ * @author Aidan Morgan
+ */
+class HashedKeyList<K> extends AbstractList<K> {
+  /**
+   * Marks the slot of a key that has been removed.
+   */
+  private static final Object REMOVED = new Object();
+
+  /**
+   * The keys in the order they were added, with {@link HashedKeyList#REMOVED} in the slots of removed keys.
+   */
+  private final ArrayList<Object> slots = new ArrayList<Object>();
+
+  /**
+   * The slot of each key in {@link HashedKeyList#slots}.
+   */
+  private final Map<K, Integer> index = new HashMap<K, Integer>();
+
+  /**
+   * Adds the provided {@link K} to the end of this list if it is not already present.
+   *
+   * @param key the key to add.
+   * @return {@code true} if the key was added, {@code false} if it was already present.
+   */
+  @Override
+  public boolean add(K key) {
+    if (index.containsKey(key)) {
+      return false;
+    }
+
+    if (slots.size() - index.size() > index.size()) {
+      compact();
+    }
+
+    index.put(key, slots.size());
+    slots.add(key);
+    return true;
+  }
+
+  /**
+   * Removes the provided key from this list in constant time, leaving a tombstone in its slot.
+   *
+   * @param key the key to remove.
+   * @return {@code true} if the key was removed.
+   */
+  @Override
+  public boolean remove(Object key) {
+    Integer slot = index.remove(key);
+
+    if (slot == null) {
+      return false;
+    }
+
+    slots.set(slot, REMOVED);
+    return true;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public boolean contains(Object key) {
+    return index.containsKey(key);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public int indexOf(Object key) {
+    if (!index.containsKey(key)) {
+      return -1;
+    }
+
+    compact();
+    return index.get(key);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public int lastIndexOf(Object key) {
+    return indexOf(key);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  @SuppressWarnings({"unchecked"})
+  public K get(int i) {
+    compact();
+    return (K) slots.get(i);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public void clear() {
+    slots.clear();
+    index.clear();
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The iterator skips the tombstones, so removing keys whilst iterating never moves the keys still to come.
+   */
+  @Override
+  public Iterator<K> iterator() {
+    return new Iterator<K>() {
+      private int next = skipRemoved(0);
+      private int last = -1;
+
+      public boolean hasNext() {
+        return next < slots.size();
+      }
+
+      @SuppressWarnings({"unchecked"})
+      public K next() {
+        if (next >= slots.size()) {
+          throw new NoSuchElementException();
+        }
+
+        last = next;
+        next = skipRemoved(next + 1);
+        return (K) slots.get(last);
+      }
+
+      public void remove() {
+        if (last < 0 || slots.get(last) == REMOVED) {
+          throw new IllegalStateException();
+        }
+
+        HashedKeyList.this.remove(slots.get(last));
+      }
+    };
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  @SuppressWarnings({"unchecked"})
+  public Spliterator<K> spliterator() {
+    compact();
+    return ((List<K>) (List<?>) slots).spliterator();
+  }
+
+  /**
+   * Returns the first slot at or after the provided slot that holds a key.
+   */
+  private int skipRemoved(int slot) {
+    while (slot < slots.size() && slots.get(slot) == REMOVED) {
+      slot++;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Squeezes the tombstones out of {@link HashedKeyList#slots}, so that the slot of each key is its index.
+   */
+  @SuppressWarnings({"unchecked"})
+  private void compact() {
+    if (slots.size() == index.size()) {
+      return;
+    }
+
+    int to = 0;
+
+    for (int from = 0; from < slots.size(); from++) {
+      Object key = slots.get(from);
+
+      if (key != REMOVED) {
+        slots.set(to, key);
+        index.put((K) key, to);
+        to++;
+      }
+    }
+
+    slots.subList(to, slots.size()).clear();
+  }
+}
@@ -0,0 +1,204 @@
+package com.github.pojomvcc.util;
+
+import com.github.pojomvcc.CacheElementCodec;
+import com.github.pojomvcc.codec.CacheElementCodecs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores encoded {@link V}s in direct (off-heap) memory, so that they cost the garbage collector nothing until
+ * they are decoded again.
+ * <p/>
+ * Memory is allocated from fixed size direct {@code java.nio.ByteBuffer} chunks by bumping a pointer, space is
+ * never reused. Instead each chunk counts the bytes in it that are still referenced, and a chunk is dropped (so the
+ * direct memory is freed when the {@code java.nio.ByteBuffer} is collected) once everything in it has been
+ * released. History is released roughly in the order it was stored, so whole chunks become free together.
+ * <p/>
+ * A {@link V} that is larger than a chunk is stored in a chunk of its own.
+ *
+ * @author Aidan Morgan
+ */
+public class OffHeapArena<K, V> {
+  /**
+   * The default size of each chunk of direct memory.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+  /**
+   * The {@link CacheElementCodec} used to encode and decode the {@link V}s.
+   */
+  private final CacheElementCodec<K, V> codec;
+
+  /**
+   * The size of each chunk in bytes.
+   */
+  private final int chunkSize;
+
+  /**
+   * The chunk that is currently being allocated from, guarded by {@code this}.
+   */
+  private Chunk current;
+
+  /**
+   * The number of bytes of direct memory in chunks that have not been dropped, guarded by {@code this}.
+   */
+  private long allocatedBytes;
+
+  /**
+   * The number of bytes of direct memory that are still referenced, guarded by {@code this}.
+   */
+  private long liveBytes;
+
+  /**
+   * Constructor.
+   *
+   * @param codec     the {@link CacheElementCodec} to encode the {@link V}s with.
+   * @param chunkSize the size of each chunk of direct memory in bytes.
+   */
+  public OffHeapArena(CacheElementCodec<K, V> codec, int chunkSize) {
+    this.codec = codec;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Encodes the provided {@link V} into direct memory.
+   *
+   * @param element the {@link V} to store.
+   * @return a {@link OffHeapArena.Ref} that decodes a copy of the {@link V}.
+   */
+  public Ref<V> store(V element) {
+    // encoded outside of the lock, only the copy into the chunk is serialised.
+    byte[] bytes = CacheElementCodecs.encode(codec, element);
+
+    Chunk chunk;
+    int offset;
+
+    synchronized (this) {
+      if (bytes.length > chunkSize) {
+        chunk = new Chunk(bytes.length);
+        allocatedBytes += bytes.length;
+      } else {
+        if (current == null || current.remaining() < bytes.length) {
+          if (current != null && current.live == 0) {
+            allocatedBytes -= current.capacity();
+          }
+
+          current = new Chunk(chunkSize);
+          allocatedBytes += chunkSize;
+        }
+
+        chunk = current;
+      }
+
+      offset = chunk.allocate(bytes);
+      liveBytes += bytes.length;
+    }
+
+    return new Ref<V>(this, chunk, offset, bytes.length);
+  }
+
+  /**
+   * Returns the number of bytes of direct memory held by this {@link OffHeapArena}.
+   *
+   * @return
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Returns the number of bytes of direct memory that hold {@link V}s that have not been released.
+   *
+   * @return
+   */
+  public synchronized long getLiveBytes() {
+    return liveBytes;
+  }
+
+  private V decode(Chunk chunk, int offset, int length) {
+    ByteBuffer buffer = chunk.buffer.duplicate();
+    buffer.limit(offset + length);
+    buffer.position(offset);
+    return codec.decode(buffer.slice());
+  }
+
+  private synchronized void release(Chunk chunk, int length) {
+    chunk.live -= length;
+    liveBytes -= length;
+
+    // the current chunk is kept until it is full, so that it can still be allocated from.
+    if (chunk.live == 0 && chunk != current) {
+      allocatedBytes -= chunk.capacity();
+    }
+  }
+
+  /**
+   * A reference to a {@link V} stored in an {@link OffHeapArena}.
+   * <p/>
+   * All of the fields of a {@link OffHeapArena.Ref} are {@code final}, so a {@link OffHeapArena.Ref} can be handed to
+   * another thread without synchronization.
+   */
+  public static final class Ref<V> {
+    private final OffHeapArena<?, V> arena;
+    private final Chunk chunk;
+    private final int offset;
+    private final int length;
+
+    private Ref(OffHeapArena<?, V> arena, Chunk chunk, int offset, int length) {
+      this.arena = arena;
+      this.chunk = chunk;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Returns a newly decoded copy of the stored {@link V}.
+     *
+     * @return
+     */
+    public V get() {
+      return arena.decode(chunk, offset, length);
+    }
+
+    /**
+     * Releases the memory used by the stored {@link V}. The bytes are not overwritten, so a concurrent
+     * {@link OffHeapArena.Ref#get()} still succeeds, but this must only be called once.
+     */
+    public void release() {
+      arena.release(chunk, length);
+    }
+  }
+
+  /**
+   * A direct {@code java.nio.ByteBuffer} that is allocated from front to back.
+   */
+  private static final class Chunk {
+    final ByteBuffer buffer;
+    int used;
+    int live;
+
+    Chunk(int capacity) {
+      this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    int capacity() {
+      return buffer.capacity();
+    }
+
+    int remaining() {
+      return buffer.capacity() - used;
+    }
+
+    int allocate(byte[] bytes) {
+      int offset = used;
+
+      ByteBuffer target = buffer.duplicate();
+      target.position(offset);
+      target.put(bytes);
+
+      used += bytes.length;
+      live += bytes.length;
+      return offset;
+    }
+  }
+}
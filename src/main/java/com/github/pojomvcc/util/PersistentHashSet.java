@@ -0,0 +1,704 @@
+package com.github.pojomvcc.util;
+
+import com.github.pojomvcc.ObjectCacheException;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * An immutable, persistent {@code java.util.Set} implemented as a hash array mapped trie (HAMT).
+ * <p/>
+ * "Modifying" a {@link PersistentHashSet} using {@link PersistentHashSet#plus(Object)} or
+ * {@link PersistentHashSet#minus(Object)} returns a new {@link PersistentHashSet} that shares all but
+ * the modified path of the trie with the original, so both operations are O(log32 n) in time and memory.
+ * This allows the {@code com.github.pojomvcc.RootObjectCache} to keep a complete key set for every
+ * retained revision whilst only paying for the keys that actually changed between revisions.
+ * <p/>
+ * All of the mutating methods inherited from {@code java.util.Set} will throw a
+ * {@code java.lang.UnsupportedOperationException}.
+ *
+ * @author Aidan Morgan
+ */
+public final class PersistentHashSet<K> extends AbstractSet<K> {
+  /**
+   * The number of hash bits consumed by each level of the trie.
+   */
+  private static final int BITS_PER_LEVEL = 5;
+
+  /**
+   * Mask for extracting the hash bits for a single level of the trie.
+   */
+  private static final int LEVEL_MASK = (1 << BITS_PER_LEVEL) - 1;
+
+  /**
+   * The shared empty {@link PersistentHashSet}.
+   */
+  private static final PersistentHashSet<Object> EMPTY = new PersistentHashSet<Object>(BitmapIndexedNode.EMPTY, 0);
+
+  /**
+   * The root of the trie.
+   */
+  private final Node root;
+
+  /**
+   * The number of keys in this {@link PersistentHashSet}.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   *
+   * @param root the root {@link Node} of the trie.
+   * @param size the number of keys in the trie.
+   */
+  private PersistentHashSet(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Returns the empty {@link PersistentHashSet}.
+   *
+   * @return the empty {@link PersistentHashSet}.
+   */
+  @SuppressWarnings({"unchecked"})
+  public static <K> PersistentHashSet<K> empty() {
+    return (PersistentHashSet<K>) EMPTY;
+  }
+
+  /**
+   * Creates a new {@link PersistentHashSet} containing all of the provided {@link K}s.
+   *
+   * @param keys the {@link K}s to add to the new set.
+   * @return a {@link PersistentHashSet} containing the provided {@link K}s.
+   */
+  public static <K> PersistentHashSet<K> of(Collection<? extends K> keys) {
+    PersistentHashSet<K> result = empty();
+
+    for (K key : keys) {
+      result = result.plus(key);
+    }
+
+    return result;
+  }
+
+  /**
+   * Creates a new {@link PersistentHashSet} containing all of the provided {@link K}s, building the branches of the
+   * trie in parallel on the provided {@code java.util.concurrent.ForkJoinPool}.
+   * <p/>
+   * The keys are divided between the 32 branches of the root by their hash, so each branch is built by a single
+   * thread without any copying between threads, and the root is then created from the finished branches.
+   *
+   * @param keys the {@link K}s to add to the new set.
+   * @param pool the {@code java.util.concurrent.ForkJoinPool} to build the branches on.
+   * @return a {@link PersistentHashSet} containing the provided {@link K}s.
+   */
+  public static <K> PersistentHashSet<K> of(Collection<? extends K> keys, ForkJoinPool pool) {
+    List<List<Object>> branches = new ArrayList<List<Object>>(Collections.<List<Object>>nCopies(1 << BITS_PER_LEVEL, null));
+
+    for (K key : keys) {
+      if (key == null) {
+        throw new ObjectCacheException("Cannot add a null key to a PersistentHashSet.");
+      }
+
+      int branch = hash(key) & LEVEL_MASK;
+
+      if (branches.get(branch) == null) {
+        branches.set(branch, new ArrayList<Object>());
+      }
+
+      branches.get(branch).add(key);
+    }
+
+    Object[] entries = new Object[branches.size()];
+    pool.invoke(new BranchTask(branches, entries, 0, entries.length));
+
+    int bitmap = 0;
+    int size = 0;
+    List<Object> array = new ArrayList<Object>(entries.length);
+
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] != null) {
+        bitmap |= 1 << i;
+        size += entries[i] instanceof Node ? ((Node) entries[i]).size() : 1;
+        array.add(entries[i]);
+      }
+    }
+
+    if (size == 0) {
+      return empty();
+    }
+
+    return new PersistentHashSet<K>(new BitmapIndexedNode(bitmap, array.toArray(), size), size);
+  }
+
+  /**
+   * Returns a {@link PersistentHashSet} that contains all of the keys in this set and the provided {@link K}.
+   * If the {@link K} is already present this instance is returned.
+   *
+   * @param key the {@link K} to add.
+   * @return a {@link PersistentHashSet} containing the provided {@link K}.
+   */
+  public PersistentHashSet<K> plus(K key) {
+    if (key == null) {
+      throw new ObjectCacheException("Cannot add a null key to a PersistentHashSet.");
+    }
+
+    Node newRoot = root.plus(0, hash(key), key);
+
+    if (newRoot == root) {
+      return this;
+    }
+
+    return new PersistentHashSet<K>(newRoot, size + 1);
+  }
+
+  /**
+   * Returns a {@link PersistentHashSet} that contains all of the keys in this set except the provided {@link K}.
+   * If the {@link K} is not present this instance is returned.
+   *
+   * @param key the {@link K} to remove.
+   * @return a {@link PersistentHashSet} that does not contain the provided {@link K}.
+   */
+  public PersistentHashSet<K> minus(Object key) {
+    if (key == null) {
+      return this;
+    }
+
+    Node newRoot = root.minus(0, hash(key), key);
+
+    if (newRoot == root) {
+      return this;
+    }
+
+    if (newRoot == null) {
+      return empty();
+    }
+
+    return new PersistentHashSet<K>(newRoot, size - 1);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public boolean contains(Object key) {
+    return key != null && root.contains(0, hash(key), key);
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public Iterator<K> iterator() {
+    return new TrieIterator<K>(root);
+  }
+
+  /**
+   * @inheritDoc
+   * <p/>
+   * The returned {@code java.util.Spliterator} splits the trie by its branches rather than by walking it, and every
+   * {@link Node} knows how many keys are beneath it, so the sizes of both halves of a split are exact and a
+   * parallel {@code java.util.stream.Stream} over a {@link PersistentHashSet} divides the work evenly.
+   */
+  @Override
+  public Spliterator<K> spliterator() {
+    return new TrieSpliterator<K>(root.entries(), 0, root.entries().length, size);
+  }
+
+  /**
+   * Spreads the higher bits of the provided key's hash code downwards so that keys with poor
+   * {@code hashCode()} implementations still distribute across the first levels of the trie.
+   *
+   * @param key the key to hash.
+   * @return the spread hash.
+   */
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the single bit that represents the provided hash at the provided level of the trie.
+   */
+  private static int bitpos(int hash, int shift) {
+    return 1 << ((hash >>> shift) & LEVEL_MASK);
+  }
+
+  /**
+   * Creates a new {@link Node} at the provided level that contains both of the provided keys.
+   */
+  private static Node createNode(int shift, Object one, int oneHash, Object two, int twoHash) {
+    if (oneHash == twoHash) {
+      return new CollisionNode(oneHash, new Object[]{one, two});
+    }
+
+    return BitmapIndexedNode.EMPTY.plus(shift, oneHash, one).plus(shift, twoHash, two);
+  }
+
+  /**
+   * Base-class for the nodes that make up the trie. All {@link Node}s are immutable.
+   */
+  private static abstract class Node {
+    /**
+     * Returns {@code true} if the provided key is in the sub-trie rooted at this {@link Node}.
+     */
+    abstract boolean contains(int shift, int hash, Object key);
+
+    /**
+     * Returns a {@link Node} containing the provided key, or this {@link Node} if it already contains it.
+     */
+    abstract Node plus(int shift, int hash, Object key);
+
+    /**
+     * Returns a {@link Node} without the provided key, this {@link Node} if it did not contain the key, or
+     * {@code null} if removing the key leaves the {@link Node} empty.
+     */
+    abstract Node minus(int shift, int hash, Object key);
+
+    /**
+     * Returns the key if this {@link Node} contains exactly one key and no child {@link Node}s, {@code null}
+     * otherwise. Used to collapse single-key branches back into their parent.
+     */
+    abstract Object singleKey();
+
+    /**
+     * Returns the entries of this {@link Node}, each entry is either a key or a child {@link Node}.
+     */
+    abstract Object[] entries();
+
+    /**
+     * Returns the number of keys in the sub-trie rooted at this {@link Node}.
+     */
+    abstract int size();
+  }
+
+  /**
+   * A {@link Node} that uses a 32-bit bitmap to compress a sparse 32-way branch into a dense array.
+   */
+  private static final class BitmapIndexedNode extends Node {
+    static final BitmapIndexedNode EMPTY = new BitmapIndexedNode(0, new Object[0], 0);
+
+    private final int bitmap;
+    private final Object[] array;
+    private final int size;
+
+    BitmapIndexedNode(int bitmap, Object[] array, int size) {
+      this.bitmap = bitmap;
+      this.array = array;
+      this.size = size;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    boolean contains(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+
+      if ((bitmap & bit) == 0) {
+        return false;
+      }
+
+      Object entry = array[index(bit)];
+
+      if (entry instanceof Node) {
+        return ((Node) entry).contains(shift + BITS_PER_LEVEL, hash, key);
+      }
+
+      return key.equals(entry);
+    }
+
+    Node plus(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      int idx = index(bit);
+
+      if ((bitmap & bit) == 0) {
+        Object[] newArray = new Object[array.length + 1];
+        System.arraycopy(array, 0, newArray, 0, idx);
+        newArray[idx] = key;
+        System.arraycopy(array, idx, newArray, idx + 1, array.length - idx);
+
+        return new BitmapIndexedNode(bitmap | bit, newArray, size + 1);
+      }
+
+      Object entry = array[idx];
+
+      if (entry instanceof Node) {
+        Node child = ((Node) entry).plus(shift + BITS_PER_LEVEL, hash, key);
+
+        if (child == entry) {
+          return this;
+        }
+
+        return new BitmapIndexedNode(bitmap, cloneAndSet(array, idx, child), size + 1);
+      }
+
+      if (key.equals(entry)) {
+        return this;
+      }
+
+      // two different keys share the same hash bits at this level, push both of them down a level.
+      Node child = createNode(shift + BITS_PER_LEVEL, entry, hash(entry), key, hash);
+      return new BitmapIndexedNode(bitmap, cloneAndSet(array, idx, child), size + 1);
+    }
+
+    Node minus(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+
+      int idx = index(bit);
+      Object entry = array[idx];
+
+      if (entry instanceof Node) {
+        Node child = ((Node) entry).minus(shift + BITS_PER_LEVEL, hash, key);
+
+        if (child == entry) {
+          return this;
+        }
+
+        if (child == null) {
+          return removeEntry(bit, idx);
+        }
+
+        Object single = child.singleKey();
+        return new BitmapIndexedNode(bitmap, cloneAndSet(array, idx, single != null ? single : child), size - 1);
+      }
+
+      if (key.equals(entry)) {
+        return removeEntry(bit, idx);
+      }
+
+      return this;
+    }
+
+    private Node removeEntry(int bit, int idx) {
+      if (bitmap == bit) {
+        return null;
+      }
+
+      Object[] newArray = new Object[array.length - 1];
+      System.arraycopy(array, 0, newArray, 0, idx);
+      System.arraycopy(array, idx + 1, newArray, idx, array.length - idx - 1);
+
+      return new BitmapIndexedNode(bitmap ^ bit, newArray, size - 1);
+    }
+
+    Object singleKey() {
+      if (array.length == 1 && !(array[0] instanceof Node)) {
+        return array[0];
+      }
+
+      return null;
+    }
+
+    Object[] entries() {
+      return array;
+    }
+
+    int size() {
+      return size;
+    }
+  }
+
+  /**
+   * A {@link Node} that holds keys whose (spread) hash codes are identical.
+   */
+  private static final class CollisionNode extends Node {
+    private final int hash;
+    private final Object[] keys;
+
+    CollisionNode(int hash, Object[] keys) {
+      this.hash = hash;
+      this.keys = keys;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < keys.length; i++) {
+        if (key.equals(keys[i])) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+
+    boolean contains(int shift, int hash, Object key) {
+      return this.hash == hash && indexOf(key) >= 0;
+    }
+
+    Node plus(int shift, int hash, Object key) {
+      if (this.hash == hash) {
+        if (indexOf(key) >= 0) {
+          return this;
+        }
+
+        Object[] newKeys = new Object[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, keys.length);
+        newKeys[keys.length] = key;
+
+        return new CollisionNode(hash, newKeys);
+      }
+
+      // the new key differs from the colliding keys, so nest this node inside a bitmap node.
+      BitmapIndexedNode parent = new BitmapIndexedNode(bitpos(this.hash, shift), new Object[]{this}, keys.length);
+      return parent.plus(shift, hash, key);
+    }
+
+    Node minus(int shift, int hash, Object key) {
+      if (this.hash != hash) {
+        return this;
+      }
+
+      int idx = indexOf(key);
+
+      if (idx < 0) {
+        return this;
+      }
+
+      if (keys.length == 1) {
+        return null;
+      }
+
+      Object[] newKeys = new Object[keys.length - 1];
+      System.arraycopy(keys, 0, newKeys, 0, idx);
+      System.arraycopy(keys, idx + 1, newKeys, idx, keys.length - idx - 1);
+
+      return new CollisionNode(hash, newKeys);
+    }
+
+    Object singleKey() {
+      return keys.length == 1 ? keys[0] : null;
+    }
+
+    Object[] entries() {
+      return keys;
+    }
+
+    int size() {
+      return keys.length;
+    }
+  }
+
+  /**
+   * Builds the root entries for a range of the branches of a new trie, dividing the range between the threads of a
+   * {@code java.util.concurrent.ForkJoinPool}. A branch with a single key is stored as the key itself, the same as
+   * {@link BitmapIndexedNode#plus(int, int, Object)} would store it.
+   */
+  private static final class BranchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<List<Object>> branches;
+    private final Object[] entries;
+    private final int from;
+    private final int to;
+
+    BranchTask(List<List<Object>> branches, Object[] entries, int from, int to) {
+      this.branches = branches;
+      this.entries = entries;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new BranchTask(branches, entries, from, middle), new BranchTask(branches, entries, middle, to));
+        return;
+      }
+
+      List<Object> keys = branches.get(from);
+
+      if (keys == null) {
+        return;
+      }
+
+      Node branch = BitmapIndexedNode.EMPTY;
+
+      for (Object key : keys) {
+        branch = branch.plus(BITS_PER_LEVEL, hash(key), key);
+      }
+
+      Object single = branch.singleKey();
+      entries[from] = single != null ? single : branch;
+    }
+  }
+
+  private static Object[] cloneAndSet(Object[] array, int idx, Object value) {
+    Object[] clone = array.clone();
+    clone[idx] = value;
+    return clone;
+  }
+
+  /**
+   * Depth-first {@code java.util.Iterator} over the keys in the trie.
+   */
+  private static final class TrieIterator<K> implements Iterator<K> {
+    /**
+     * The maximum depth of the trie: seven levels of bitmap nodes plus a collision node.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    private final Object[][] stack = new Object[MAX_DEPTH][];
+    private final int[] positions = new int[MAX_DEPTH];
+    private int depth = 0;
+    private Object next;
+
+    /**
+     * The index after the last entry of the top level to visit.
+     */
+    private final int limit;
+
+    TrieIterator(Node root) {
+      this(root.entries(), 0, root.entries().length);
+    }
+
+    /**
+     * Iterates the keys under the entries {@code from} (inclusive) to {@code to} (exclusive) of the provided
+     * entries array.
+     */
+    TrieIterator(Object[] entries, int from, int to) {
+      stack[0] = entries;
+      positions[0] = from;
+      limit = to;
+      advance();
+    }
+
+    /**
+     * Moves to the next key in the trie, or sets {@link TrieIterator#next} to {@code null} if there are none.
+     */
+    private void advance() {
+      next = null;
+
+      while (depth >= 0) {
+        Object[] entries = stack[depth];
+
+        if (positions[depth] >= (depth == 0 ? limit : entries.length)) {
+          depth--;
+          continue;
+        }
+
+        Object entry = entries[positions[depth]++];
+
+        if (entry instanceof Node) {
+          depth++;
+          stack[depth] = ((Node) entry).entries();
+          positions[depth] = 0;
+        } else {
+          next = entry;
+          return;
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public K next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+
+      K result = (K) next;
+      advance();
+      return result;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException("Cannot remove from a PersistentHashSet.");
+    }
+  }
+
+  /**
+   * {@code java.util.Spliterator} over a range of the entries of a single {@link Node}. Splitting divides the range
+   * in two, or descends into the child {@link Node} when the range is a single entry. Once traversal has started the
+   * remaining keys are visited with a {@link TrieIterator} and no further splits are made.
+   */
+  private static final class TrieSpliterator<K> implements Spliterator<K> {
+    private Object[] entries;
+    private int from;
+    private int to;
+    private long remaining;
+    private TrieIterator<K> iterator;
+
+    TrieSpliterator(Object[] entries, int from, int to, long remaining) {
+      this.entries = entries;
+      this.from = from;
+      this.to = to;
+      this.remaining = remaining;
+    }
+
+    public boolean tryAdvance(Consumer<? super K> action) {
+      if (iterator == null) {
+        iterator = new TrieIterator<K>(entries, from, to);
+      }
+
+      if (!iterator.hasNext()) {
+        return false;
+      }
+
+      remaining--;
+      action.accept(iterator.next());
+      return true;
+    }
+
+    public Spliterator<K> trySplit() {
+      if (iterator != null) {
+        return null;
+      }
+
+      while (to - from == 1 && entries[from] instanceof Node) {
+        entries = ((Node) entries[from]).entries();
+        from = 0;
+        to = entries.length;
+      }
+
+      if (to - from < 2) {
+        return null;
+      }
+
+      int middle = (from + to) >>> 1;
+      long prefix = 0;
+
+      for (int i = from; i < middle; i++) {
+        prefix += entries[i] instanceof Node ? ((Node) entries[i]).size() : 1;
+      }
+
+      Spliterator<K> split = new TrieSpliterator<K>(entries, from, middle, prefix);
+      from = middle;
+      remaining -= prefix;
+      return split;
+    }
+
+    public long estimateSize() {
+      return remaining;
+    }
+
+    public int characteristics() {
+      return DISTINCT | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+    }
+  }
+}
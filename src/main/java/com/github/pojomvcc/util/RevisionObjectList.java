@@ -1,9 +1,12 @@
 package com.github.pojomvcc.util;
 
+import com.github.pojomvcc.CacheElementFactory;
+import com.github.pojomvcc.ModificationAwareCacheElementFactory;
 import com.github.pojomvcc.ObjectCacheException;
 import com.github.pojomvcc.RootObjectCache;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * A {@code com.github.pojomvcc.util.RevisionObjectList} allows the presentation of a set of changes to
@@ -27,31 +30,45 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
   private long internalListVersion = 0;
 
   /**
-   * A {@link java.util.List} of {@link K}s that have been copied from the
-   * {@code com.github.pojomvcc.RootObjectCache}. This is a direct {@link java.util.List} copy as seperate {@code java.util.List}s
-   * are maintained for each revision in the {@code com.github.pojomvcc.RootObjectCache} and therefore there is no need
-   * to worry about external modification.
+   * The {@code java.util.Set} of {@link K}s for the revision in the {@code com.github.pojomvcc.RootObjectCache}.
+   * This is a reference to the immutable key set that the {@code com.github.pojomvcc.RootObjectCache} keeps for the
+   * revision, not a copy, so there is no need to worry about external modification and creating a
+   * {@link RevisionObjectList} does not depend on the size of the cache. All changes made to this
+   * {@link RevisionObjectList} are tracked as an overlay in the added and removed key lists.
    */
-  private List<K> coreKeys;
+  private Set<K> coreKeys;
 
   /**
    * A {@code java.util.List} of {@code K}s for all {@code V}s that
    * have been added to this {@code com.github.pojomvcc.RevisionObjectCache}. The order of this is important.
    */
-  private List<K> addedElementKeys;
+  private HashedKeyList<K> addedElementKeys;
 
   /**
    * A {@code java.util.List} of {@code K}s for all {@code V}s that
    * have been removed from this {@code com.github.pojomvcc.RevisionObjectCache}.
    */
-  private List<K> removedElementKeys;
+  private HashedKeyList<K> removedElementKeys;
 
   /**
    * A {@code java.util.List} of {@code K}s for all {@code V}s that
    * have been retrieved from this {@code com.github.pojomvcc.RevisionObjectCache}. Although they have been retrieved does not
-   * necessarily mean that the {@code V} has been modified, this is the best we can do.
+   * necessarily mean that the {@code V} has been modified, see {@link RevisionObjectList#isModified(Object)}.
    */
-  private List<K> clonedElementKeys;
+  private HashedKeyList<K> clonedElementKeys;
+
+  /**
+   * A {@code java.util.List} of {@code K}s for all {@code V}s that have been explicitly replaced using
+   * {@link RevisionObjectList#replace(Object, Object)}, these are always considered modified.
+   */
+  private HashedKeyList<K> replacedElementKeys;
+
+  /**
+   * A {@link java.util.Map} of {@code K} to the {@code V} in the {@code com.github.pojomvcc.RootObjectCache} that
+   * each cloned {@code V} was created from. Only populated if the {@code com.github.pojomvcc.CacheElementFactory}
+   * is a {@link ModificationAwareCacheElementFactory}, which needs the original to tell if the clone has changed.
+   */
+  private Map<K, V> originalElements;
 
   /**
    * A {@link java.util.Map} of {@code K} to {@code V} that contains
@@ -81,13 +98,14 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
     this.rootCache = cache;
     this.revision = revision;
 
-    // CacheKey's are immutable so we don't need to worry about cloning their individual values
-    // just the list itself.
-    this.coreKeys = new ArrayList<K>(cache.getKeysForRevision(revision));
+    // the key set for a revision is immutable, so we can hold a reference to it rather than copying it.
+    this.coreKeys = cache.getKeySetForRevision(revision);
 
-    this.addedElementKeys = new ArrayList<K>();
-    this.removedElementKeys = new ArrayList<K>();
-    this.clonedElementKeys = new ArrayList<K>();
+    this.addedElementKeys = new HashedKeyList<K>();
+    this.removedElementKeys = new HashedKeyList<K>();
+    this.clonedElementKeys = new HashedKeyList<K>();
+    this.replacedElementKeys = new HashedKeyList<K>();
+    this.originalElements = new HashMap<K, V>();
     this.internalMap = new HashMap<K, V>();
   }
 
@@ -130,6 +148,31 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
     return new RevisionObjectListIterator<V>(this);
   }
 
+  /**
+   * Returns a {@code java.util.Iterator} over the {@link K}s that are in this {@link RevisionObjectList}, that is
+   * the keys of the original revision that have not been removed followed by the added keys in the order they were
+   * added.
+   *
+   * @return
+   */
+  public Iterator<K> keyIterator() {
+    return new KeyIterator();
+  }
+
+  /**
+   * Returns a {@code java.util.Spliterator} over the same {@link K}s as {@link RevisionObjectList#keyIterator()}.
+   * <p/>
+   * The keys of the original revision are split using the immutable key set of the revision and the removed keys
+   * are skipped with a hash lookup, so traversal is linear and can be divided between threads. The sizes are only
+   * exact if no keys have been removed. This {@link RevisionObjectList} must not be modified whilst the
+   * {@code java.util.Spliterator} is in use.
+   *
+   * @return
+   */
+  public Spliterator<K> keySpliterator() {
+    return new KeySpliterator(coreKeys.spliterator(), addedElementKeys.spliterator(), removedElementKeys.isEmpty());
+  }
+
   /**
    * Adds the provided {@link V} to this {@link RevisionObjectList}.
    *
@@ -154,22 +197,24 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
    * @return
    */
   public boolean remove(K cacheKey) {
-    if (addedElementKeys.contains(cacheKey)) {
-      addedElementKeys.remove(cacheKey);
+    if (addedElementKeys.remove(cacheKey)) {
       internalMap.remove(cacheKey);
 
       internalListVersion++;
       return true;
     }
 
-    if (removedElementKeys.contains(cacheKey)) {
+    // only keys in the original revision need to be recorded as removed, otherwise the size of this
+    // list would be wrong and the RootObjectCache would be asked to remove a key it doesn't have.
+    if (!coreKeys.contains(cacheKey)) {
       return false;
     }
 
     if (removedElementKeys.add(cacheKey)) {
-      if (clonedElementKeys.contains(cacheKey)) {
-        clonedElementKeys.remove(cacheKey);
-      }
+      clonedElementKeys.remove(cacheKey);
+      replacedElementKeys.remove(cacheKey);
+      originalElements.remove(cacheKey);
+      internalMap.remove(cacheKey);
 
       internalListVersion++;
       return true;
@@ -185,33 +230,35 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
     addedElementKeys.clear();
     removedElementKeys.clear();
     clonedElementKeys.clear();
+    replacedElementKeys.clear();
+    originalElements.clear();
     internalMap.clear();
 
     internalListVersion++;
   }
 
   /**
-   * Returns the {@link V} at the provided index in this {@link RevisionObjectList}.
+   * Returns the {@link V} at the provided index in this {@link RevisionObjectList}, the index is the position
+   * of the {@link V} in the order returned by {@link RevisionObjectList#iterator()}.
+   * <p/>
+   * The original revision's keys are not indexed, so this method has to walk the keys up to the provided index.
    *
    * @param index
    * @return
+   * @deprecated walks the keys on every call, use {@link RevisionObjectList#iterator()} or
+   *             {@link RevisionObjectList#get(Object)} instead.
    */
+  @Deprecated
   public V get(int index) {
-    K keyForIndex;
-
-    if (index < coreKeys.size()) {
-      keyForIndex = coreKeys.get(index);
-
-      while (removedElementKeys.contains(keyForIndex)) {
-        index++;
-        keyForIndex = coreKeys.get(index);
-      }
-    } else {
-      keyForIndex = addedElementKeys.get(index - coreKeys.size());
+    if (index < 0 || index >= size()) {
+      throw new ObjectCacheException("Cannot find CacheElement at index " + index + ".");
     }
 
-    if (keyForIndex == null) {
-      throw new ObjectCacheException("Cannot find CacheElement at index " + index + ".");
+    Iterator<K> keys = keyIterator();
+    K keyForIndex = keys.next();
+
+    for (int i = 0; i < index; i++) {
+      keyForIndex = keys.next();
     }
 
     return getOrClone(keyForIndex);
@@ -254,8 +301,14 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
 
       // clone the element here to prevent caller's modifying the instance that is in the core
       // object cache.
-      V clone = rootCache.getElementFactory().createClone(originalElement);
+      CacheElementFactory<V> factory = rootCache.getElementFactory();
+      V clone = factory.createClone(originalElement);
 
+      // the original is immutable once it is in the root cache, so holding a reference is enough to compare
+      // the clone against it later.
+      if (factory instanceof ModificationAwareCacheElementFactory) {
+        originalElements.put(keyForIndex, originalElement);
+      }
 
       // store the clone in an internal map to ensure that repeated calls to this method will
       // return the same instance.
@@ -267,13 +320,18 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
   }
 
   /**
-   * Returns the index of the {@link V} with the provided {@link K}.
+   * Returns the index of the {@link V} with the provided {@link K}, or {@code -1} if it is not in this
+   * {@link RevisionObjectList}.
+   * <p/>
+   * Like {@link RevisionObjectList#get(int)} this has to walk the keys of the original revision.
    *
    * @param key
    * @return
+   * @deprecated walks the keys on every call, use {@link RevisionObjectList#containsKey(Object)} instead.
    */
+  @Deprecated
   public int getKeyIndex(K key) {
-    if (removedElementKeys.contains(key)) {
+    if (!containsKey(key)) {
       return -1;
     }
 
@@ -281,19 +339,14 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
       return addedElementKeys.indexOf(key) + (coreKeys.size() - removedElementKeys.size());
     }
 
-    int index = coreKeys.indexOf(key);
-
-    if (index < 0) {
-      return -1;
-    }
-
-    while (index < coreKeys.size()) {
-      K ele = coreKeys.get(index);
+    int index = 0;
+    for (K ele : coreKeys) {
+      if (ele.equals(key)) {
+        return index;
+      }
 
-      if (removedElementKeys.contains(ele)) {
+      if (!removedElementKeys.contains(ele)) {
         index++;
-      } else if (ele.equals(key)) {
-        return index;
       }
     }
 
@@ -307,10 +360,8 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
    * @return
    */
   public V get(K key) {
-    int index = getKeyIndex(key);
-
-    if (index >= 0) {
-      return get(index);
+    if (containsKey(key)) {
+      return getOrClone(key);
     }
 
     return null;
@@ -319,11 +370,26 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
   /**
    * Returns a {@code java.util.List} of {@link K} that are the keys for any modified
    * {@link V} in this {@link com.github.pojomvcc.RevisionObjectCache}.
+   * <p/>
+   * Unless the {@code com.github.pojomvcc.CacheElementFactory} is a {@link ModificationAwareCacheElementFactory}
+   * every {@link V} that has been retrieved is considered modified.
    *
    * @return
    */
   public List<K> getModifiedElements() {
-    return Collections.unmodifiableList(clonedElementKeys);
+    if (!(rootCache.getElementFactory() instanceof ModificationAwareCacheElementFactory)) {
+      return Collections.unmodifiableList(clonedElementKeys);
+    }
+
+    List<K> modified = new ArrayList<K>();
+
+    for (K key : clonedElementKeys) {
+      if (isModified(key)) {
+        modified.add(key);
+      }
+    }
+
+    return Collections.unmodifiableList(modified);
   }
 
   /**
@@ -358,12 +424,26 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
 
   /**
    * Returns {@code true} if the provided {@link K} belongs to a modified {@link V}.
+   * <p/>
+   * A {@link V} that has been replaced is always modified. A {@link V} that has only been retrieved is modified if
+   * the {@link ModificationAwareCacheElementFactory} says it has changed, or always if the
+   * {@code com.github.pojomvcc.CacheElementFactory} can't tell.
    *
    * @param ce
    * @return
    */
   public boolean isModified(K ce) {
-    return clonedElementKeys.contains(ce);
+    if (!clonedElementKeys.contains(ce)) {
+      return false;
+    }
+
+    CacheElementFactory<V> factory = rootCache.getElementFactory();
+
+    if (replacedElementKeys.contains(ce) || !(factory instanceof ModificationAwareCacheElementFactory)) {
+      return true;
+    }
+
+    return ((ModificationAwareCacheElementFactory<V>) factory).isModified(originalElements.get(ce), internalMap.get(ce));
   }
 
   /**
@@ -384,24 +464,173 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
    * @param merged
    */
   public void replace(K ce, V merged) {
-    clonedElementKeys.add(ce);                                                      
+    clonedElementKeys.add(ce);
+    replacedElementKeys.add(ce);
     internalMap.put(ce, merged);
     internalListVersion++;
   }
 
+  /**
+   * Moves this {@link RevisionObjectList} to a newer revision of the {@code com.github.pojomvcc.RootObjectCache}.
+   * The changes made to this {@link RevisionObjectList} are kept as they are, the caller must
+   * {@link RevisionObjectList#discard(Object)} or re-apply the changes to every key that changed between the
+   * revisions so that they are consistent with the newer revision.
+   *
+   * @param revision the revision to move to.
+   */
+  public void rebase(long revision) {
+    this.revision = revision;
+    this.coreKeys = rootCache.getKeySetForRevision(revision);
+
+    internalListVersion++;
+  }
+
+  /**
+   * Forgets any change made to the provided {@link K}, so that it is read from the revision again.
+   *
+   * @param key the key to discard the changes to.
+   */
+  public void discard(K key) {
+    addedElementKeys.remove(key);
+    removedElementKeys.remove(key);
+    clonedElementKeys.remove(key);
+    replacedElementKeys.remove(key);
+    originalElements.remove(key);
+    internalMap.remove(key);
+
+    internalListVersion++;
+  }
+
   /**
    * Returns a {@code List} of {@link K} which contains all of the keys currently in this {@link com.github.pojomvcc.util.RevisionObjectList}/
    *
    * @return
    */
   public List<K> getKeys() {
-    List<K> currentKeys = new ArrayList<K>(clonedElementKeys);
-    currentKeys.addAll(addedElementKeys);
-    currentKeys.removeAll(removedElementKeys);
+    List<K> currentKeys = new ArrayList<K>(size());
+
+    for (K key : coreKeys) {
+      if (!removedElementKeys.contains(key)) {
+        currentKeys.add(key);
+      }
+    }
 
+    currentKeys.addAll(addedElementKeys);
     return currentKeys;
   }
 
+  /**
+   * Inner class that implements {@code java.util.Iterator} over the {@link K}s in this {@link RevisionObjectList},
+   * skipping removed keys of the original revision and then returning the added keys.
+   */
+  private class KeyIterator implements Iterator<K> {
+    private final Iterator<K> core = coreKeys.iterator();
+    private final Iterator<K> added = addedElementKeys.iterator();
+    private K next;
+
+    KeyIterator() {
+      advance();
+    }
+
+    private void advance() {
+      next = null;
+
+      while (core.hasNext()) {
+        K key = core.next();
+
+        if (!removedElementKeys.contains(key)) {
+          next = key;
+          return;
+        }
+      }
+
+      if (added.hasNext()) {
+        next = added.next();
+      }
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public K next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+
+      K result = next;
+      advance();
+      return result;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException("com.github.pojomvcc.util.RevisionObjectList.KeyIterator.remove");
+    }
+  }
+
+  /**
+   * {@code java.util.Spliterator} over the keys of the original revision that have not been removed followed by the
+   * added keys. The first split hands off the original keys, later splits divide whichever part remains.
+   */
+  private class KeySpliterator implements Spliterator<K> {
+    private Spliterator<K> core;
+    private Spliterator<K> added;
+    private final boolean exact;
+    private K current;
+
+    private final Consumer<K> capture = new Consumer<K>() {
+      public void accept(K key) {
+        current = key;
+      }
+    };
+
+    KeySpliterator(Spliterator<K> core, Spliterator<K> added, boolean exact) {
+      this.core = core;
+      this.added = added;
+      this.exact = exact;
+    }
+
+    public boolean tryAdvance(Consumer<? super K> action) {
+      if (core != null) {
+        while (core.tryAdvance(capture)) {
+          if (exact || !removedElementKeys.contains(current)) {
+            action.accept(current);
+            return true;
+          }
+        }
+
+        core = null;
+      }
+
+      return added != null && added.tryAdvance(action);
+    }
+
+    public Spliterator<K> trySplit() {
+      if (core != null && added != null) {
+        Spliterator<K> prefix = new KeySpliterator(core, null, exact);
+        core = null;
+        return prefix;
+      }
+
+      Spliterator<K> source = core != null ? core : added;
+      Spliterator<K> split = source != null ? source.trySplit() : null;
+
+      if (split == null) {
+        return null;
+      }
+
+      return source == core ? new KeySpliterator(split, null, exact) : new KeySpliterator(null, split, exact);
+    }
+
+    public long estimateSize() {
+      return (core != null ? core.estimateSize() : 0) + (added != null ? added.estimateSize() : 0);
+    }
+
+    public int characteristics() {
+      return DISTINCT | NONNULL | (exact ? SIZED | SUBSIZED : 0);
+    }
+  }
+
   /**
    * Inner class that implements {@code java.util.Iterator} for traversing this {@link RevisionObjectList}.
    */
@@ -411,24 +640,24 @@ public class RevisionObjectList<K, V> implements Iterable<V> {
      * {@code java.util.Iterator} was created for.
      */
     private long iteratorVersion = -1;
-    private int index = 0;
+    private Iterator<K> keys;
 
     public RevisionObjectListIterator(RevisionObjectList<K, V> list) {
       iteratorVersion = list.internalListVersion;
+      keys = list.keyIterator();
     }
 
     public boolean hasNext() {
       checkForComod();
 
-      return index < size();
+      return keys.hasNext();
     }
 
     public V next() {
       checkForComod();
 
       @SuppressWarnings({"unchecked"}) // got no real choice here but to suppress. we know it is of the right type...
-          V ele = (V) get(index);
-      index++;
+          V ele = (V) getOrClone(keys.next());
       return ele;
     }
 
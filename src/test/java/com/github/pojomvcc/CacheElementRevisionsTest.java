@@ -0,0 +1,206 @@
+package com.github.pojomvcc;
+
+import com.github.pojomvcc.dummy.DummyCacheElement;
+import com.github.pojomvcc.dummy.DummyCacheElementFactory;
+import com.github.pojomvcc.dummy.DummyCacheKey;
+import com.github.pojomvcc.impl.RootObjectCacheImpl;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class CacheElementRevisionsTest {
+  @Test
+  public void testExpireBefore() {
+    CacheElementRevisions<DummyCacheKey, DummyCacheElement> revs = createRevisions();
+    DummyCacheKey key = revs.getCacheKey();
+
+    DummyCacheElement one = new DummyCacheElement();
+    DummyCacheElement three = new DummyCacheElement();
+    DummyCacheElement five = new DummyCacheElement();
+
+    revs.addElement(1L, key, one);
+    revs.addModification(3L, key, three);
+    revs.addModification(5L, key, five);
+
+    // the version at 1 is still visible at revision 2.
+    assertTrue(revs.expireBefore(2L).isEmpty());
+    assertSame(one, revs.get(2L));
+
+    List<CacheElementRevision<DummyCacheKey, DummyCacheElement>> removed = revs.expireBefore(4L);
+    assertEquals(1, removed.size());
+    assertEquals(1L, removed.get(0).getRevision());
+    assertSame(one, removed.get(0).getElement());
+
+    assertEquals(2, revs.size());
+    assertSame(three, revs.get(4L));
+    assertSame(five, revs.get(5L));
+  }
+
+  @Test
+  public void testExpireBeforeRemovesTombstone() {
+    CacheElementRevisions<DummyCacheKey, DummyCacheElement> revs = createRevisions();
+    DummyCacheKey key = revs.getCacheKey();
+
+    revs.addElement(1L, key, new DummyCacheElement());
+    revs.removeElement(2L, key);
+
+    assertEquals(2, revs.expireBefore(3L).size());
+    assertEquals(0, revs.size());
+    assertTrue(revs.isDeleted());
+    assertNull(revs.get(3L));
+
+    // a key that is added again after the tombstone keeps its new version.
+    revs.addElement(4L, key, new DummyCacheElement());
+    revs.removeElement(5L, key);
+    revs.addElement(6L, key, new DummyCacheElement());
+
+    assertEquals(2, revs.expireBefore(5L).size());
+    assertEquals(1, revs.size());
+    assertEquals(6L, revs.getLeadingRevision());
+  }
+
+  @Test
+  public void testDeltaHistory() {
+    PrefixDeltaFactory factory = new PrefixDeltaFactory();
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(factory);
+    CacheElementRevisions<DummyCacheKey, DummyCacheElement> revs = new CacheElementRevisions<DummyCacheKey, DummyCacheElement>(root, new DummyCacheKey(1L));
+    DummyCacheKey key = revs.getCacheKey();
+
+    StringBuilder value = new StringBuilder("a large object");
+    DummyCacheElement leading = null;
+
+    for (long revision = 1; revision <= 10; revision++) {
+      value.append(' ').append(revision);
+      leading = new DummyCacheElement();
+      leading.setValue(value.toString());
+
+      if (revision == 1) {
+        revs.addElement(revision, key, leading);
+      } else {
+        revs.addModification(revision, key, leading);
+      }
+
+      revs.compactHistory(null);
+    }
+
+    // the leading version is never a delta.
+    assertSame(leading, revs.get(10L));
+
+    int total = 0;
+
+    for (long revision = 1; revision < 10; revision++) {
+      factory.patches = 0;
+      assertTrue(revs.get(revision).getValue().endsWith(" " + revision));
+      assertTrue(factory.patches <= factory.getKeyframeInterval());
+      total += factory.patches;
+    }
+
+    // most of the old versions are stored as deltas.
+    assertTrue(total > 0);
+
+    assertEquals(9, revs.expireBefore(10L).size());
+    assertSame(leading, revs.get(10L));
+  }
+
+  @Test
+  public void testKeyframeInterval() {
+    PrefixDeltaFactory factory = new PrefixDeltaFactory();
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(factory);
+    CacheElementRevisions<DummyCacheKey, DummyCacheElement> revs = new CacheElementRevisions<DummyCacheKey, DummyCacheElement>(root, new DummyCacheKey(1L));
+    DummyCacheKey key = revs.getCacheKey();
+
+    for (long revision = 1; revision <= 13; revision++) {
+      DummyCacheElement element = new DummyCacheElement();
+      element.setValue("value " + revision);
+      revs.addModification(revision, key, element);
+      revs.compactHistory(null);
+    }
+
+    int keyframes = 0;
+    int deltas = 0;
+    int mostPatches = 0;
+
+    for (long revision = 1; revision < 13; revision++) {
+      factory.patches = 0;
+      assertEquals("value " + revision, revs.get(revision).getValue());
+
+      if (factory.patches == 0) {
+        keyframes++;
+      } else {
+        deltas++;
+      }
+
+      mostPatches = Math.max(mostPatches, factory.patches);
+    }
+
+    // with an interval of 4 the 12 old versions are stored as 4 deltas, a keyframe, 4 deltas, a keyframe and
+    // then the 2 deltas under the leading version.
+    assertEquals(2, keyframes);
+    assertEquals(10, deltas);
+    assertEquals(factory.getKeyframeInterval(), mostPatches);
+  }
+
+  @Test
+  public void testRemoveRevisionUnderDelta() {
+    PrefixDeltaFactory factory = new PrefixDeltaFactory();
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(factory);
+    CacheElementRevisions<DummyCacheKey, DummyCacheElement> revs = new CacheElementRevisions<DummyCacheKey, DummyCacheElement>(root, new DummyCacheKey(1L));
+    DummyCacheKey key = revs.getCacheKey();
+
+    for (long revision = 1; revision <= 3; revision++) {
+      DummyCacheElement element = new DummyCacheElement();
+      element.setValue("value " + revision);
+      revs.addModification(revision, key, element);
+      revs.compactHistory(null);
+    }
+
+    // the version at 1 is a delta from the version at 2, so it has to survive 2 being removed.
+    revs.removeRevisions(Collections.singletonList(new CacheElementRevision<DummyCacheKey, DummyCacheElement>(key, null, 2L, CacheRevisionType.MODIFIED)));
+
+    assertEquals("value 1", revs.get(1L).getValue());
+    assertEquals("value 1", revs.get(2L).getValue());
+    assertEquals("value 3", revs.get(3L).getValue());
+  }
+
+  private CacheElementRevisions<DummyCacheKey, DummyCacheElement> createRevisions() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    return new CacheElementRevisions<DummyCacheKey, DummyCacheElement>(root, new DummyCacheKey(1L));
+  }
+
+  /**
+   * Describes a version as the length of the prefix it shares with the version after it and the rest of its value.
+   */
+  private static class PrefixDeltaFactory extends DummyCacheElementFactory implements DeltaCacheElementFactory<DummyCacheElement, Object[]> {
+    int patches;
+
+    public Object[] diff(DummyCacheElement from, DummyCacheElement to) {
+      String a = from.getValue();
+      String b = to.getValue();
+
+      int prefix = 0;
+      while (prefix < a.length() && prefix < b.length() && a.charAt(prefix) == b.charAt(prefix)) {
+        prefix++;
+      }
+
+      return new Object[]{prefix, b.substring(prefix)};
+    }
+
+    public DummyCacheElement patch(DummyCacheElement base, Object[] delta) {
+      patches++;
+
+      DummyCacheElement patched = new DummyCacheElement();
+      patched.setValue(base.getValue().substring(0, (Integer) delta[0]) + delta[1]);
+      return patched;
+    }
+
+    public int getKeyframeInterval() {
+      return 4;
+    }
+  }
+}
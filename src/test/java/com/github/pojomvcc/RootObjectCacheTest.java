@@ -1,16 +1,32 @@
 package com.github.pojomvcc;
 
+import com.github.pojomvcc.codec.PojoCodec;
 import com.github.pojomvcc.dummy.DummyCacheElement;
 import com.github.pojomvcc.dummy.DummyCacheElementFactory;
 import com.github.pojomvcc.dummy.DummyCacheKey;
 import com.github.pojomvcc.impl.RootObjectCacheImpl;
+import com.github.pojomvcc.impl.ShardedRootObjectCacheImpl;
 import junit.framework.Assert;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -129,6 +145,30 @@ public class RootObjectCacheTest {
     cache.close();
   }
 
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testKeyListsMatchKeySets() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> rootCache = createCache(100);
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = rootCache.checkout();
+    long revision = cache.getRevision();
+
+    cache.removeElement(new DummyCacheKey(0L));
+    rootCache.commit(cache);
+
+    assertEquals(99, rootCache.getKeys().size());
+    assertEquals(rootCache.getKeySet(), new HashSet<DummyCacheKey>(rootCache.getKeys()));
+    assertEquals(rootCache.getKeySetForRevision(revision), new HashSet<DummyCacheKey>(rootCache.getKeysForRevision(revision)));
+
+    try {
+      rootCache.getKeys().add(new DummyCacheKey(0L));
+      fail("The List of keys should not be modifiable.");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    cache.close();
+  }
+
   @Test
   public void testBigDelete() {
     RootObjectCache<DummyCacheKey, DummyCacheElement> cache = createCache(500);
@@ -172,6 +212,701 @@ public class RootObjectCacheTest {
     assertNull(ele.getValue());
   }
 
+  @Test
+  public void testElementWithRevision() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    DummyCacheKey key = new DummyCacheKey(3L);
+
+    // keep a checkout open at every revision so that the history is retained.
+    for (int i = 0; i < 5; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+      rev.getElement(key).setValue("value " + i);
+      c.commit(rev);
+    }
+
+    assertNull(c.getElementWithRevision(3L, key));
+    assertNotNull(c.getElementWithRevision(4L, key));
+    assertNull(c.getElementWithRevision(10L, key).getValue());
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals("value " + i, c.getElementWithRevision(11L + i, key).getValue());
+    }
+
+    assertEquals("value 4", c.getElement(key).getValue());
+  }
+
+  @Test
+  public void testReadsDuringCommits() throws Exception {
+    final RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    root.setCacheExpiry(new CacheExpiry<DummyCacheKey, DummyCacheElement>(CacheExpiryPolicy.<DummyCacheKey, DummyCacheElement>NEVER()));
+
+    final AtomicBoolean finished = new AtomicBoolean(false);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 4; i++) {
+      readers.execute(new Runnable() {
+        public void run() {
+          try {
+            while (!finished.get()) {
+              long revision = root.getRevision();
+              Set<DummyCacheKey> keys = root.getKeySetForRevision(revision);
+
+              // every commit adds exactly one key, so the key set must always match the revision.
+              assertEquals(revision, keys.size());
+
+              for (DummyCacheKey key : keys) {
+                assertNotNull(root.getElementWithRevision(revision, key));
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+    }
+
+    for (long i = 0; i < 500; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = root.checkout();
+      cache.addElement(new DummyCacheKey(i), new DummyCacheElement());
+      root.commit(cache);
+      cache.close();
+    }
+
+    finished.set(true);
+    readers.shutdown();
+    readers.awaitTermination(1, TimeUnit.MINUTES);
+
+    assertNull(failure.get());
+    assertEquals(500, root.size());
+  }
+
+  @Test
+  public void testShardedConcurrentCommits() throws Exception {
+    final RootObjectCache<DummyCacheKey, DummyCacheElement> root = new ShardedRootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory(), 8);
+    root.setCacheExpiry(new CacheExpiry<DummyCacheKey, DummyCacheElement>(CacheExpiryPolicy.<DummyCacheKey, DummyCacheElement>NEVER()));
+
+    ExecutorService writers = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      final long thread = i;
+
+      writers.execute(new Runnable() {
+        public void run() {
+          for (long j = 0; j < 100; j++) {
+            RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = root.checkout();
+            cache.addElement(new DummyCacheKey(thread * 1000 + j), new DummyCacheElement());
+            root.commit(cache);
+            cache.close();
+          }
+        }
+      });
+    }
+
+    writers.shutdown();
+    assertTrue(writers.awaitTermination(1, TimeUnit.MINUTES));
+
+    assertEquals(800L, root.getRevision());
+    assertEquals(800, root.size());
+
+    // every revision must have been published with exactly one more key than the revision before it.
+    for (long revision = 0; revision <= 800; revision++) {
+      assertEquals(revision, root.getKeySetForRevision(revision).size());
+    }
+
+    for (long i = 0; i < 8; i++) {
+      for (long j = 0; j < 100; j++) {
+        assertNotNull(root.getElement(new DummyCacheKey(i * 1000 + j)));
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentMergesOfSameKey() throws Exception {
+    // appends the changes to the value in the repository, so a merge against a stale version would lose a change.
+    final RootObjectCache<DummyCacheKey, DummyCacheElement> root = new ShardedRootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory() {
+      @Override
+      public DummyCacheElement merge(DummyCacheElement in_repository, DummyCacheElement changes) {
+        DummyCacheElement merged = new DummyCacheElement();
+        merged.setValue((in_repository.getValue() == null ? "" : in_repository.getValue()) + changes.getValue());
+
+        return merged;
+      }
+    }, 4);
+
+    final DummyCacheKey key = new DummyCacheKey(1L);
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> initial = root.checkout();
+    initial.addElement(key, new DummyCacheElement());
+    root.commit(initial);
+
+    ExecutorService writers = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 4; i++) {
+      writers.execute(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 50; j++) {
+            RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = root.checkout();
+            cache.getElement(key).setValue("x");
+            root.commit(cache);
+            cache.close();
+          }
+        }
+      });
+    }
+
+    writers.shutdown();
+    assertTrue(writers.awaitTermination(1, TimeUnit.MINUTES));
+
+    assertEquals(201L, root.getRevision());
+    assertEquals(200, root.getElement(key).getValue().length());
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    final RootObjectCache<DummyCacheKey, DummyCacheElement> root = new ShardedRootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory(), 4);
+    root.setCacheExpiry(new CacheExpiry<DummyCacheKey, DummyCacheElement>(CacheExpiryPolicy.<DummyCacheKey, DummyCacheElement>NEVER()));
+    root.setCommitOptions(CommitOptions.GROUP(5, TimeUnit.MILLISECONDS, 64));
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicInteger conflicts = new AtomicInteger();
+
+    ExecutorService writers = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 8; i++) {
+      final long thread = i;
+
+      writers.execute(new Runnable() {
+        public void run() {
+          try {
+            for (long j = 0; j < 50; j++) {
+              DummyCacheKey key = new DummyCacheKey(thread * 1000 + j);
+              RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = root.checkout();
+              cache.addElement(key, new DummyCacheElement());
+              long revision = root.commit(cache);
+              cache.close();
+
+              assertTrue(root.getKeySetForRevision(revision).contains(key));
+            }
+
+            // every thread adds the same key, only the first of them can succeed.
+            RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = root.checkout();
+            cache.addElement(new DummyCacheKey(-1L), new DummyCacheElement());
+
+            try {
+              root.commit(cache);
+            } catch (ObjectCacheException e) {
+              conflicts.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+    }
+
+    writers.shutdown();
+    assertTrue(writers.awaitTermination(1, TimeUnit.MINUTES));
+
+    assertNull(failure.get());
+    assertEquals(7, conflicts.get());
+    assertEquals(401, root.size());
+
+    // the commits were grouped, so there should be far fewer revisions than commits.
+    assertTrue(root.getRevision() < 401);
+  }
+
+  @Test
+  public void testFactoryFailureDoesNotStallCommits() throws Exception {
+    assertFactoryFailureDoesNotStallCommits(CommitOptions.DEFAULT());
+  }
+
+  @Test
+  public void testFactoryFailureDoesNotStallGroupCommits() throws Exception {
+    assertFactoryFailureDoesNotStallCommits(CommitOptions.GROUP(1, TimeUnit.MILLISECONDS, 8));
+  }
+
+  private void assertFactoryFailureDoesNotStallCommits(CommitOptions options) throws Exception {
+    final RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new FailingCacheElementFactory());
+    root.setCommitOptions(options);
+
+    DummyCacheKey existing = new DummyCacheKey(1L);
+    DummyCacheKey added = new DummyCacheKey(2L);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+    DummyCacheElement element = new DummyCacheElement();
+    element.setValue("ok");
+    rev.addElement(existing, element);
+    root.commit(rev);
+    rev.close();
+
+    // the clone of the modification is null, which is only found whilst it is being installed after the addition.
+    rev = root.checkout();
+    rev.getElement(existing).setValue(FailingCacheElementFactory.NULL_CLONE);
+    rev.addElement(added, new DummyCacheElement());
+
+    try {
+      root.commit(rev);
+      fail("The commit should have failed.");
+    } catch (ObjectCacheException e) {
+      // expected
+    }
+
+    rev.close();
+
+    // the factory throws whilst the commit is being prepared.
+    rev = root.checkout();
+    rev.getElement(existing).setValue(FailingCacheElementFactory.THROW);
+
+    try {
+      root.commit(rev);
+      fail("The commit should have failed.");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    rev.close();
+
+    assertFalse(root.getKeySet().contains(added));
+    assertEquals("ok", root.getElement(existing).getValue());
+
+    ExecutorService committer = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<Long> next = committer.submit(new Callable<Long>() {
+        public Long call() {
+          RevisionObjectCache<DummyCacheKey, DummyCacheElement> cache = root.checkout();
+          cache.addElement(new DummyCacheKey(3L), new DummyCacheElement());
+          long revision = root.commit(cache);
+          cache.close();
+          return revision;
+        }
+      });
+
+      long revision = next.get(10, TimeUnit.SECONDS);
+
+      assertEquals(revision, root.getRevision());
+      assertTrue(root.getKeySet().contains(new DummyCacheKey(3L)));
+      assertFalse(root.getKeySet().contains(added));
+    }
+    finally {
+      committer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testReadsAreNotModifications() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new ComparingCacheElementFactory());
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    for (long i = 0; i < 10; i++) {
+      rev.addElement(new DummyCacheKey(i), new DummyCacheElement());
+    }
+    c.commit(rev);
+    rev.close();
+
+    DummyCacheKey changed = new DummyCacheKey(3L);
+    DummyCacheElement unchanged = c.getElement(new DummyCacheKey(4L));
+
+    rev = c.checkout();
+    for (long i = 0; i < 10; i++) {
+      rev.getElement(new DummyCacheKey(i));
+    }
+    rev.getElement(changed).setValue("changed");
+
+    assertEquals(1, rev.getModifiedElements().size());
+    assertEquals(changed, rev.getModifiedElements().get(0));
+
+    c.commit(rev);
+    rev.close();
+
+    // an element that was only read keeps the version it had before the commit.
+    assertSame(unchanged, c.getElement(new DummyCacheKey(4L)));
+    assertEquals("changed", c.getElement(changed).getValue());
+  }
+
+  @Test
+  public void testExportReturnsStoredVersions() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new FreezingDummyCacheElementFactory());
+    c.setCacheExpiry(new CacheExpiry<DummyCacheKey, DummyCacheElement>(CacheExpiryPolicy.<DummyCacheKey, DummyCacheElement>NEVER()));
+    DummyCacheKey key = new DummyCacheKey(1L);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    DummyCacheElement element = new DummyCacheElement();
+    element.setValue("before");
+    rev.addElement(key, element);
+    c.commit(rev);
+    rev.close();
+
+    ReadOnlyRevisionObjectCache<DummyCacheKey, DummyCacheElement> export = c.export();
+    assertSame(c.getElement(key), export.getElement(key));
+
+    // frozen elements don't need to be copied for a map view either.
+    RevisionObjectCacheMap<DummyCacheKey, DummyCacheElement> map = c.asMap();
+    assertSame(c.getElement(key), map.get(key));
+    map.close();
+
+    try {
+      export.getElement(key).setValue("modified");
+      fail("Stored elements should be frozen.");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    // working copies are still given mutable clones of the frozen elements.
+    rev = c.checkout();
+    rev.getElement(key).setValue("after");
+    c.commit(rev);
+    rev.close();
+
+    assertEquals(1L, export.getRevision());
+    assertEquals(1, export.size());
+    assertEquals("before", export.getElement(key).getValue());
+    assertEquals("after", c.getElement(key).getValue());
+    assertNull(export.getElement(new DummyCacheKey(2L)));
+  }
+
+  @Test
+  public void testExportSurvivesExpiry() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    DummyCacheKey key = new DummyCacheKey(1L);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    DummyCacheElement element = new DummyCacheElement();
+    element.setValue("v1");
+    rev.addElement(key, element);
+    c.commit(rev);
+    rev.close();
+
+    ReadOnlyRevisionObjectCache<DummyCacheKey, DummyCacheElement> export = c.export();
+
+    // closing the working copy runs the expiry, which must not drop the version the export reads.
+    rev = c.checkout();
+    rev.getElement(key).setValue("v2");
+    c.commit(rev);
+    rev.close();
+
+    assertEquals(1L, c.getOldestActiveRevision());
+    assertTrue(export.containsKey(key));
+    assertEquals(1, export.size());
+    assertEquals("v1", export.getElement(key).getValue());
+    assertEquals("v2", c.getElement(key).getValue());
+
+    // closing the export releases its revision without waiting for it to be collected.
+    export.close();
+    export.close();
+    assertEquals(c.getRevision(), c.getOldestActiveRevision());
+
+    try {
+      export.getElement(key);
+      fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+
+    // a closed export fails the same way for a key it never had.
+    try {
+      export.getElement(new DummyCacheKey(100L));
+      fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+  }
+
+  @Test
+  public void testOldestActiveRevision() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    assertEquals(c.getRevision(), c.getOldestActiveRevision());
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> first = c.checkout();
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> second = c.checkout();
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    rev.getElement(new DummyCacheKey(1L)).setValue("changed");
+    c.commit(rev);
+    rev.close();
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> third = c.checkout();
+
+    assertEquals(first.getRevision(), c.getOldestActiveRevision());
+
+    // the revision is still in use by the second checkout.
+    first.close();
+    assertEquals(second.getRevision(), c.getOldestActiveRevision());
+    assertNotNull(c.getElementWithRevision(second.getRevision(), new DummyCacheKey(1L)));
+
+    second.close();
+    assertEquals(third.getRevision(), c.getOldestActiveRevision());
+
+    // closing twice must not release the revision again.
+    second.close();
+    third.close();
+    assertEquals(c.getRevision(), c.getOldestActiveRevision());
+    assertTrue(c.getActiveRevisions().isEmpty());
+  }
+
+  @Test
+  public void testBackgroundVacuum() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    c.setVacuumOptions(VacuumOptions.BACKGROUND(1, 1, TimeUnit.MILLISECONDS));
+    DummyCacheKey key = new DummyCacheKey(1L);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> pinned = c.checkout();
+    long oldest = pinned.getRevision();
+
+    for (int i = 0; i < 20; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+      rev.getElement(key).setValue("value " + i);
+      c.commit(rev);
+      rev.close();
+    }
+
+    // the history is still in use by the pinned checkout.
+    assertNotNull(c.getKeySetForRevision(oldest));
+
+    pinned.close();
+
+    long deadline = System.currentTimeMillis() + 10000;
+    boolean expired = false;
+
+    while (!expired && System.currentTimeMillis() < deadline) {
+      try {
+        c.getKeySetForRevision(oldest);
+        Thread.sleep(10);
+      } catch (ObjectCacheException e) {
+        expired = true;
+      }
+    }
+
+    assertTrue(expired);
+    assertEquals("value 19", c.getElement(key).getValue());
+  }
+
+  @Test
+  public void testAsMapIsPinnedView() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    DummyCacheKey key = new DummyCacheKey(1L);
+    c.getElement(key).setValue("original");
+
+    Map<DummyCacheKey, DummyCacheElement> map = c.asMap();
+    long revision = c.getRevision();
+
+    // the view hands out clones, so modifying them doesn't modify the stored versions.
+    assertNotSame(c.getElement(key), map.get(key));
+    map.get(key).setValue("modified");
+    assertEquals("original", c.getElement(key).getValue());
+
+    for (int i = 0; i < 5; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+      rev.getElement(key).setValue("value " + i);
+      rev.removeElement(new DummyCacheKey(2L + i));
+      c.commit(rev);
+      rev.close();
+    }
+
+    // the history of the view's revision can't be expired whilst the view is reachable.
+    assertEquals(revision, c.getOldestActiveRevision());
+    assertEquals(10, map.size());
+    assertEquals("original", map.get(key).getValue());
+    assertTrue(map.containsKey(new DummyCacheKey(3L)));
+    assertNull(map.get(new DummyCacheKey(100L)));
+
+    int entries = 0;
+    for (Map.Entry<DummyCacheKey, DummyCacheElement> entry : map.entrySet()) {
+      assertNotNull(entry.getValue());
+      entries++;
+    }
+    assertEquals(10, entries);
+
+    try {
+      map.put(key, new DummyCacheElement());
+      Assert.fail();
+    } catch (UnsupportedOperationException e) {
+      // expected.
+    }
+
+    map = null;
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (c.getOldestActiveRevision() == revision && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(10);
+    }
+
+    assertEquals(c.getRevision(), c.getOldestActiveRevision());
+  }
+
+  @Test
+  public void testClosingAsMapReleasesPin() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    DummyCacheKey key = new DummyCacheKey(1L);
+
+    RevisionObjectCacheMap<DummyCacheKey, DummyCacheElement> map = c.asMap();
+    RevisionObjectCacheMap<DummyCacheKey, DummyCacheElement> other = c.asMap();
+    long revision = c.getRevision();
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    rev.getElement(key).setValue("changed");
+    c.commit(rev);
+    rev.close();
+
+    assertEquals(revision, c.getOldestActiveRevision());
+
+    // closing a view only releases its own pin, however many times it is closed.
+    map.close();
+    map.close();
+    assertEquals(revision, c.getOldestActiveRevision());
+    assertNotNull(other.get(key));
+
+    other.close();
+    assertEquals(c.getRevision(), c.getOldestActiveRevision());
+
+    try {
+      map.get(key);
+      Assert.fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+
+    try {
+      map.get(new DummyCacheKey(100L));
+      Assert.fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+
+    try {
+      other.entrySet().iterator().next();
+      Assert.fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+
+    assertTrue(map.containsKey(key));
+  }
+
+  @Test
+  public void testParallelPrepare() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(2000);
+    c.setCommitOptions(CommitOptions.PARALLEL(100, new ForkJoinPool(4)));
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    for (long i = 0; i < 2000; i++) {
+      rev.getElement(new DummyCacheKey(i)).setValue("modified " + i);
+    }
+    for (long i = 2000; i < 2500; i++) {
+      DummyCacheElement element = new DummyCacheElement();
+      element.setValue("added " + i);
+      rev.addElement(new DummyCacheKey(i), element);
+    }
+    rev.removeElement(new DummyCacheKey(0L));
+    c.commit(rev);
+    rev.close();
+
+    assertEquals(2499, c.size());
+    assertNull(c.getElement(new DummyCacheKey(0L)));
+    for (long i = 1; i < 2000; i++) {
+      assertEquals("modified " + i, c.getElement(new DummyCacheKey(i)).getValue());
+    }
+    for (long i = 2000; i < 2500; i++) {
+      assertEquals("added " + i, c.getElement(new DummyCacheKey(i)).getValue());
+    }
+
+    try {
+      CommitOptions.PARALLEL(0);
+      Assert.fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+  }
+
+  @Test
+  public void testKeySpliterator() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(1000);
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+
+    Spliterator<DummyCacheKey> root = c.keySpliterator();
+    assertTrue(root.hasCharacteristics(Spliterator.SUBSIZED));
+    assertEquals(1000, root.estimateSize());
+    assertEquals(1000, StreamSupport.stream(rev.keySpliterator(), true).count());
+
+    for (long i = 0; i < 100; i++) {
+      rev.removeElement(new DummyCacheKey(i));
+    }
+    for (long i = 1000; i < 1050; i++) {
+      rev.addElement(new DummyCacheKey(i), new DummyCacheElement());
+    }
+
+    Set<DummyCacheKey> keys = StreamSupport.stream(rev.keySpliterator(), true).collect(Collectors.<DummyCacheKey>toSet());
+    assertEquals(950, keys.size());
+    assertEquals(new HashSet<DummyCacheKey>(rev.getKeys()), keys);
+    assertFalse(keys.contains(new DummyCacheKey(0L)));
+    assertTrue(keys.contains(new DummyCacheKey(1049L)));
+
+    // the root is unchanged until the working copy is committed.
+    assertEquals(1000, StreamSupport.stream(c.keySpliterator(), true).count());
+
+    Map<DummyCacheKey, DummyCacheElement> map = c.asMap();
+    assertEquals(1000, map.entrySet().parallelStream().filter(new Predicate<Map.Entry<DummyCacheKey, DummyCacheElement>>() {
+      public boolean test(Map.Entry<DummyCacheKey, DummyCacheElement> entry) {
+        return entry.getValue() != null;
+      }
+    }).count());
+
+    rev.close();
+  }
+
+  @Test
+  public void testOffHeapHistory() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    c.setStorageOptions(StorageOptions.OFF_HEAP(new PojoCodec<DummyCacheKey, DummyCacheElement>(DummyCacheKey.class, DummyCacheElement.class), 64));
+    DummyCacheKey key = new DummyCacheKey(1L);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> pinned = c.checkout();
+    long middle = -1;
+    DummyCacheElement original = c.getElement(key);
+
+    for (int i = 0; i < 20; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+      rev.getElement(key).setValue("value " + i);
+      long revision = c.commit(rev);
+      rev.close();
+
+      if (i == 5) {
+        middle = revision;
+      }
+    }
+
+    // the superseded versions are decoded from the arena on every read, the leading version is still on the heap.
+    DummyCacheElement old = c.getElementWithRevision(pinned.getRevision(), key);
+    assertNotSame(original, old);
+    assertNotSame(old, c.getElementWithRevision(pinned.getRevision(), key));
+    assertEquals(original.getValue(), old.getValue());
+    assertEquals("value 5", c.getElementWithRevision(middle, key).getValue());
+    assertSame(c.getElement(key), c.getElement(key));
+    assertEquals("value 19", c.getElement(key).getValue());
+
+    pinned.close();
+  }
+
+  @Test
+  public void testRemoveAndAddAgain() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    DummyCacheKey key = new DummyCacheKey(3L);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    rev.removeElement(key);
+    c.commit(rev);
+
+    assertFalse(c.getKeySet().contains(key));
+
+    rev = c.checkout();
+    DummyCacheElement element = new DummyCacheElement();
+    element.setValue("again");
+    rev.addElement(key, element);
+    c.commit(rev);
+
+    assertTrue(c.getKeySet().contains(key));
+    assertEquals("again", c.getElement(key).getValue());
+    assertNull(c.getElementWithRevision(11L, key));
+  }
+
   @Test
   public void testRevert() {
     RootObjectCache<DummyCacheKey, DummyCacheElement> cache = createCache(100);
@@ -202,6 +937,45 @@ public class RootObjectCacheTest {
     rev.close();
   }
 
+  @Test
+  public void testWorkingCopyChanges() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> cache = createCache(100);
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = cache.checkout();
+
+    DummyCacheKey added = new DummyCacheKey(100L);
+    DummyCacheKey removed = new DummyCacheKey(5L);
+    DummyCacheKey read = new DummyCacheKey(6L);
+
+    rev.addElement(added, new DummyCacheElement());
+    rev.removeElement(removed);
+    assertNotNull(rev.getElement(read));
+
+    assertTrue(rev.containsKey(added));
+    assertFalse(rev.containsKey(removed));
+    assertNull(rev.getElement(removed));
+    assertEquals(100, rev.size());
+
+    assertEquals(100, rev.getKeys().size());
+    assertTrue(rev.getKeys().contains(added));
+    assertFalse(rev.getKeys().contains(removed));
+
+    assertEquals(1, rev.getAddedElements().size());
+    assertEquals(1, rev.getRemovedElements().size());
+    assertTrue(rev.getModifiedElements().contains(read));
+
+    // removing an added element should simply forget about it.
+    rev.removeElement(added);
+    assertFalse(rev.containsKey(added));
+    assertTrue(rev.getAddedElements().isEmpty());
+
+    // removing an element that was never in the cache should be ignored.
+    rev.removeElement(new DummyCacheKey(1000L));
+    assertEquals(99, rev.size());
+    assertEquals(1, rev.getRemovedElements().size());
+
+    rev.close();
+  }
+
   @Test
   public void testUpdateConflict() {
     RootObjectCache<DummyCacheKey, DummyCacheElement> cache = createCache(100);
@@ -225,6 +999,129 @@ public class RootObjectCacheTest {
     }
   }
 
+  @Test
+  public void testIncrementalUpdate() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> cache = createCache(100);
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> mine = cache.checkout();
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> theirs = cache.checkout();
+    long base = mine.getRevision();
+
+    mine.getElement(new DummyCacheKey(1L)).setValue("mine 1");
+    mine.getElement(new DummyCacheKey(2L)).setValue("mine 2");
+    mine.removeElement(new DummyCacheKey(3L));
+    mine.addElement(new DummyCacheKey(200L), new DummyCacheElement());
+
+    theirs.getElement(new DummyCacheKey(1L)).setValue("theirs 1");
+    theirs.getElement(new DummyCacheKey(4L)).setValue("theirs 4");
+    theirs.removeElement(new DummyCacheKey(2L));
+    theirs.addElement(new DummyCacheKey(300L), new DummyCacheElement());
+    cache.commit(theirs);
+    theirs.close();
+
+    assertEquals(4, cache.getChangedKeys(base, cache.getRevision()).size());
+
+    // a failed update leaves the working copy where it was.
+    try {
+      mine.update(RefreshOptions.STRICT);
+      Assert.fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+    assertEquals(base, mine.getRevision());
+
+    mine.update(IGNORE);
+
+    assertEquals(cache.getRevision(), mine.getRevision());
+    assertEquals(cache.getRevision(), cache.getOldestActiveRevision());
+    assertEquals("mine 1", mine.getElement(new DummyCacheKey(1L)).getValue());
+    assertEquals("theirs 4", mine.getElement(new DummyCacheKey(4L)).getValue());
+    assertTrue(mine.getModifiedElements().contains(new DummyCacheKey(1L)));
+    assertTrue(mine.getAddedElements().contains(new DummyCacheKey(2L)));
+    assertTrue(mine.containsKey(new DummyCacheKey(300L)));
+    assertFalse(mine.containsKey(new DummyCacheKey(3L)));
+    assertEquals(101, mine.size());
+
+    cache.commit(mine);
+    mine.close();
+
+    assertEquals("mine 1", cache.getElement(new DummyCacheKey(1L)).getValue());
+    assertEquals("mine 2", cache.getElement(new DummyCacheKey(2L)).getValue());
+    assertEquals("theirs 4", cache.getElement(new DummyCacheKey(4L)).getValue());
+    assertNull(cache.getElement(new DummyCacheKey(3L)));
+    assertEquals(101, cache.size());
+  }
+
+  @Test
+  public void testDiff() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> c = createCache(10);
+    c.getElement(new DummyCacheKey(1L)).setValue("original");
+    long base = c.getRevision();
+
+    // a mirror keeps the revision it last saw checked out, so that it can't be expired.
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> mirrored = c.checkout();
+
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = c.checkout();
+    rev.getElement(new DummyCacheKey(1L)).setValue("one");
+    rev.removeElement(new DummyCacheKey(2L));
+    rev.addElement(new DummyCacheKey(100L), new DummyCacheElement());
+    rev.addElement(new DummyCacheKey(200L), new DummyCacheElement());
+    long middle = c.commit(rev);
+    rev.close();
+
+    rev = c.checkout();
+    rev.getElement(new DummyCacheKey(1L)).setValue("two");
+    rev.getElement(new DummyCacheKey(3L)).setValue("three");
+    rev.removeElement(new DummyCacheKey(200L));
+    c.commit(rev);
+    rev.close();
+
+    RevisionDiff<DummyCacheKey, DummyCacheElement> diff = c.diff(base, c.getRevision());
+    RevisionDiff<DummyCacheKey, DummyCacheElement> first = c.diff(base, middle);
+    mirrored.close();
+    Map<DummyCacheKey, CacheRevisionType> changes = new HashMap<DummyCacheKey, CacheRevisionType>();
+
+    for (RevisionChange<DummyCacheKey, DummyCacheElement> change : diff) {
+      assertNull(changes.put(change.getKey(), change.getType()));
+
+      if (change.getKey().equals(new DummyCacheKey(1L))) {
+        assertEquals("original", change.getPreviousElement().getValue());
+        assertEquals("two", change.getElement().getValue());
+      }
+    }
+
+    // 200 was added and removed again in between, so it isn't a difference.
+    assertEquals(4, changes.size());
+    assertEquals(CacheRevisionType.MODIFIED, changes.get(new DummyCacheKey(1L)));
+    assertEquals(CacheRevisionType.DELETED, changes.get(new DummyCacheKey(2L)));
+    assertEquals(CacheRevisionType.MODIFIED, changes.get(new DummyCacheKey(3L)));
+    assertEquals(CacheRevisionType.ADDED, changes.get(new DummyCacheKey(100L)));
+
+    assertEquals(4, StreamSupport.stream(diff.spliterator(), true).count());
+    assertEquals(4, first.stream().count());
+    RevisionDiff<DummyCacheKey, DummyCacheElement> empty = c.diff(middle, middle);
+    assertEquals(0, empty.stream().count());
+    empty.close();
+
+    // the history of the from revision is kept whilst the diff is reachable.
+    assertEquals(base, c.getOldestActiveRevision());
+
+    // until every diff from it is closed.
+    diff.close();
+    diff.close();
+    assertEquals(base, c.getOldestActiveRevision());
+
+    first.close();
+    assertEquals(c.getRevision(), c.getOldestActiveRevision());
+
+    try {
+      diff.iterator().hasNext();
+      Assert.fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+  }
+
   @Test
   public void averageCaseLarge() {
     RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
@@ -301,6 +1198,47 @@ public class RootObjectCacheTest {
   }
 
 
+  /**
+   * {@link RefreshOptions} that keep the changes of the {@link RevisionObjectCache} when they conflict.
+   */
+  private static final RefreshOptions IGNORE = new RefreshOptions() {
+    public boolean failOnUpdateRemoved() {
+      return false;
+    }
+
+    public boolean failOnUpdateAdd() {
+      return false;
+    }
+
+    public boolean failOnUpdateModify() {
+      return false;
+    }
+
+    public boolean updateAdded() {
+      return true;
+    }
+
+    public boolean updateModified() {
+      return true;
+    }
+
+    public boolean updateRemoved() {
+      return true;
+    }
+
+    public boolean mergeOnUpdate() {
+      return false;
+    }
+
+    public boolean replaceOnUpdate() {
+      return false;
+    }
+
+    public boolean ignoreOnUpdate() {
+      return true;
+    }
+  };
+
   private RootObjectCache<DummyCacheKey, DummyCacheElement> createCache(int numElements) {
     RootObjectCache<DummyCacheKey, DummyCacheElement> rootCache = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
     rootCache.setCacheExpiry(new CacheExpiry(CacheExpiryPolicy.NO_LONGER_USED(1)));
@@ -341,5 +1279,52 @@ public class RootObjectCacheTest {
     cache.close();
   }
 
+  /**
+   * A {@link DummyCacheElementFactory} that fails to clone elements with particular values.
+   */
+  private static class FailingCacheElementFactory extends DummyCacheElementFactory {
+    static final String NULL_CLONE = "null clone";
+    static final String THROW = "throw";
+
+    @Override
+    public DummyCacheElement createClone(DummyCacheElement ele) {
+      if (NULL_CLONE.equals(ele.getValue())) {
+        return null;
+      }
+
+      if (THROW.equals(ele.getValue())) {
+        throw new IllegalStateException("Cannot clone " + ele.getValue() + ".");
+      }
+
+      return super.createClone(ele);
+    }
+  }
+
+  /**
+   * A {@link DummyCacheElementFactory} that can tell if a clone has been changed.
+   */
+  private static class ComparingCacheElementFactory extends DummyCacheElementFactory implements ModificationAwareCacheElementFactory<DummyCacheElement> {
+    public boolean isModified(DummyCacheElement original, DummyCacheElement clone) {
+      return original.getValue() == null ? clone.getValue() != null : !original.getValue().equals(clone.getValue());
+    }
+  }
 
+  /**
+   * A {@link DummyCacheElementFactory} that stores elements that can't be modified.
+   */
+  private static class FreezingDummyCacheElementFactory extends DummyCacheElementFactory implements FreezingCacheElementFactory<DummyCacheElement> {
+    public DummyCacheElement freeze(final DummyCacheElement element) {
+      return new DummyCacheElement() {
+        @Override
+        public void setValue(String s) {
+          throw new UnsupportedOperationException("Element is frozen.");
+        }
+
+        @Override
+        public String getValue() {
+          return element.getValue();
+        }
+      };
+    }
+  }
 }
@@ -0,0 +1,92 @@
+package com.github.pojomvcc.codec;
+
+import com.github.pojomvcc.ObjectCacheException;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class PojoCodecTest {
+  @Test
+  public void testRoundTrip() {
+    PojoCodec<Long, Order> codec = new PojoCodec<Long, Order>(Long.class, Order.class);
+
+    Order order = new Order();
+    order.id = 42L;
+    order.quantity = 7;
+    order.price = 12.5d;
+    order.express = true;
+    order.code = 'x';
+    order.customer = "Aidan é";
+    order.status = Status.SHIPPED;
+    order.discount = 3;
+    order.payload = new byte[]{1, 2, 3};
+    order.next = new Order();
+    order.next.id = 43L;
+    order.cached = "not stored";
+
+    Order decoded = CacheElementCodecs.decode(codec, CacheElementCodecs.encode(codec, order));
+
+    assertEquals(42L, decoded.id);
+    assertEquals(7, decoded.quantity);
+    assertEquals(12.5d, decoded.price, 0.0d);
+    assertTrue(decoded.express);
+    assertEquals('x', decoded.code);
+    assertEquals("Aidan é", decoded.customer);
+    assertEquals(Status.SHIPPED, decoded.status);
+    assertEquals(Integer.valueOf(3), decoded.discount);
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, decoded.payload));
+    assertEquals(43L, decoded.next.id);
+    assertNull(decoded.next.customer);
+    assertNull(decoded.next.next);
+    assertNull(decoded.cached);
+
+    assertEquals(Long.valueOf(99L), CacheElementCodecs.decodeKey(codec, CacheElementCodecs.encodeKey(codec, 99L)));
+    assertEquals(8, CacheElementCodecs.encodeKey(codec, 99L).length);
+  }
+
+  @Test
+  public void testSmallerThanSerialization() {
+    PojoCodec<Long, Order> pojo = new PojoCodec<Long, Order>(Long.class, Order.class);
+    SerializableCodec<Long, Order> serializable = new SerializableCodec<Long, Order>();
+
+    Order order = new Order();
+    order.customer = "customer";
+    order.status = Status.NEW;
+
+    assertTrue(CacheElementCodecs.encode(pojo, order).length * 4 < CacheElementCodecs.encode(serializable, order).length);
+  }
+
+  @Test(expected = ObjectCacheException.class)
+  public void testUnsupportedFieldType() {
+    new PojoCodec<Long, Unsupported>(Long.class, Unsupported.class);
+  }
+
+  public static enum Status {
+    NEW, SHIPPED
+  }
+
+  public static class Order implements Serializable {
+    private long id;
+    private int quantity;
+    private double price;
+    private boolean express;
+    private char code;
+    private String customer;
+    private Status status;
+    private Integer discount;
+    private byte[] payload;
+    private Order next;
+    private transient String cached;
+  }
+
+  public static class Unsupported {
+    private List<String> values;
+  }
+}
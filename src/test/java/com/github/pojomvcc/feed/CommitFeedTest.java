@@ -0,0 +1,276 @@
+package com.github.pojomvcc.feed;
+
+import com.github.pojomvcc.CommitRecord;
+import com.github.pojomvcc.ObjectCacheException;
+import com.github.pojomvcc.RevisionObjectCache;
+import com.github.pojomvcc.RootObjectCache;
+import com.github.pojomvcc.dummy.DummyCacheElement;
+import com.github.pojomvcc.dummy.DummyCacheElementFactory;
+import com.github.pojomvcc.dummy.DummyCacheKey;
+import com.github.pojomvcc.impl.RootObjectCacheImpl;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class CommitFeedTest {
+  @Test
+  public void testEventsArriveInOrder() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    CommitFeed<DummyCacheKey, DummyCacheElement> feed = new CommitFeed<DummyCacheKey, DummyCacheElement>(root, null, 16, true);
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    feed.subscribe(subscriber);
+
+    for (long i = 0; i < 10; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+      DummyCacheElement element = new DummyCacheElement();
+      element.setValue("value " + i);
+      rev.addElement(new DummyCacheKey(i), element);
+
+      if (i > 0) {
+        rev.removeElement(new DummyCacheKey(i - 1));
+      }
+
+      root.commit(rev);
+      rev.close();
+    }
+
+    feed.close();
+    assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+    assertNull(subscriber.error.get());
+    assertEquals(10, subscriber.events.size());
+
+    for (int i = 0; i < 10; i++) {
+      CommitEvent<DummyCacheKey, DummyCacheElement> event = subscriber.events.get(i);
+      DummyCacheKey key = new DummyCacheKey((long) i);
+
+      assertEquals(i + 1, event.getRevision());
+      assertTrue(event.getAddedKeys().contains(key));
+      assertEquals("value " + i, event.getElement(key).getValue());
+      assertEquals(i > 0 ? 1 : 0, event.getRemovedKeys().size());
+    }
+  }
+
+  @Test
+  public void testSlowSubscriberIsCancelled() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    // subscribers are called by the committing thread, so the fast subscriber can never fall behind.
+    Executor inline = new Executor() {
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    CommitFeed<DummyCacheKey, DummyCacheElement> feed = new CommitFeed<DummyCacheKey, DummyCacheElement>(root, inline, 4, false);
+
+    // requests a single event and never asks for more, so the buffer fills up.
+    RecordingSubscriber slow = new RecordingSubscriber(1);
+    RecordingSubscriber fast = new RecordingSubscriber(Long.MAX_VALUE);
+    feed.subscribe(slow);
+    feed.subscribe(fast);
+
+    for (long i = 0; i < 20; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+      rev.addElement(new DummyCacheKey(i), new DummyCacheElement());
+      root.commit(rev);
+      rev.close();
+    }
+
+    // commits are never held up by the slow subscriber.
+    assertEquals(20, root.getRevision());
+    assertTrue(slow.done.await(10, TimeUnit.SECONDS));
+    assertTrue(slow.error.get() instanceof ObjectCacheException);
+    assertEquals(1, feed.getSubscriberCount());
+
+    feed.close();
+    assertTrue(fast.done.await(10, TimeUnit.SECONDS));
+    assertNull(fast.error.get());
+    assertEquals(20, fast.events.size());
+    assertNull(fast.events.get(0).getElement(new DummyCacheKey(0L)));
+  }
+
+  @Test
+  public void testFailingFeedFailsSubscribers() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    final AtomicInteger failed = new AtomicInteger();
+
+    CommitFeed<DummyCacheKey, DummyCacheElement> feed = new CommitFeed<DummyCacheKey, DummyCacheElement>(root) {
+      public void committed(CommitRecord<DummyCacheKey, DummyCacheElement> record) {
+        if (record.getRevision() == 2) {
+          throw new IllegalStateException("failed");
+        }
+
+        super.committed(record);
+      }
+
+      public void failed(CommitRecord<DummyCacheKey, DummyCacheElement> record, RuntimeException cause) {
+        failed.incrementAndGet();
+        super.failed(record, cause);
+      }
+    };
+
+    // a feed that doesn't fail is unaffected by the one that does.
+    CommitFeed<DummyCacheKey, DummyCacheElement> healthy = new CommitFeed<DummyCacheKey, DummyCacheElement>(root);
+
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    RecordingSubscriber other = new RecordingSubscriber(Long.MAX_VALUE);
+    feed.subscribe(subscriber);
+    healthy.subscribe(other);
+
+    for (long i = 0; i < 4; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+      rev.addElement(new DummyCacheKey(i), new DummyCacheElement());
+      root.commit(rev);
+      rev.close();
+    }
+
+    // the commits are unaffected, but the subscriber is told that it has missed a revision.
+    assertEquals(4, root.getRevision());
+    assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+    assertTrue(subscriber.error.get() instanceof ObjectCacheException);
+    assertTrue(subscriber.error.get().getCause() instanceof IllegalStateException);
+    assertEquals(1, failed.get());
+    assertEquals(0, feed.getSubscriberCount());
+
+    for (CommitEvent<DummyCacheKey, DummyCacheElement> event : subscriber.events) {
+      assertEquals(1, event.getRevision());
+    }
+
+    // later subscribers are failed straight away rather than waiting for revisions that will never come.
+    RecordingSubscriber late = new RecordingSubscriber(Long.MAX_VALUE);
+    feed.subscribe(late);
+    assertTrue(late.done.await(10, TimeUnit.SECONDS));
+    assertTrue(late.error.get() instanceof ObjectCacheException);
+
+    healthy.close();
+    assertTrue(other.done.await(10, TimeUnit.SECONDS));
+    assertNull(other.error.get());
+    assertEquals(4, other.events.size());
+  }
+
+  @Test
+  public void testRejectedSubscriberIsFailed() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    final AtomicBoolean rejecting = new AtomicBoolean();
+    final Thread committer = Thread.currentThread();
+
+    Executor executor = new Executor() {
+      public void execute(Runnable command) {
+        if (rejecting.get()) {
+          throw new RejectedExecutionException("full");
+        }
+
+        command.run();
+      }
+    };
+
+    CommitFeed<DummyCacheKey, DummyCacheElement> feed = new CommitFeed<DummyCacheKey, DummyCacheElement>(root, executor, 16, false);
+    final List<Thread> deliveredOn = new CopyOnWriteArrayList<Thread>();
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE) {
+      public void onNext(CommitEvent<DummyCacheKey, DummyCacheElement> event) {
+        deliveredOn.add(Thread.currentThread());
+        super.onNext(event);
+      }
+    };
+    feed.subscribe(subscriber);
+
+    rejecting.set(true);
+
+    for (long i = 0; i < 3; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+      rev.addElement(new DummyCacheKey(i), new DummyCacheElement());
+      root.commit(rev);
+      rev.close();
+    }
+
+    // the events are never delivered by the committing thread, the subscriber is failed instead.
+    assertEquals(3, root.getRevision());
+    assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+    assertTrue(subscriber.error.get() instanceof ObjectCacheException);
+    assertTrue(subscriber.events.isEmpty());
+    assertFalse(deliveredOn.contains(committer));
+    assertEquals(0, feed.getSubscriberCount());
+    feed.close();
+  }
+
+  @Test
+  public void testUnboundedDemandIsNeverUsedUp() throws Exception {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    Executor inline = new Executor() {
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    CommitFeed<DummyCacheKey, DummyCacheElement> feed = new CommitFeed<DummyCacheKey, DummyCacheElement>(root, inline, 16, false);
+
+    // a request on top of an unbounded demand leaves it unbounded.
+    final AtomicReference<Flow.Subscription> subscription = new AtomicReference<Flow.Subscription>();
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE) {
+      public void onSubscribe(Flow.Subscription s) {
+        subscription.set(s);
+        super.onSubscribe(s);
+      }
+    };
+    feed.subscribe(subscriber);
+
+    for (long i = 0; i < 5; i++) {
+      RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+      rev.addElement(new DummyCacheKey(i), new DummyCacheElement());
+      root.commit(rev);
+      rev.close();
+
+      if (i == 2) {
+        subscription.get().request(1);
+      }
+    }
+
+    feed.close();
+    assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+    assertNull(subscriber.error.get());
+    assertEquals(5, subscriber.events.size());
+
+    // the values aren't kept when they aren't published.
+    assertNull(subscriber.events.get(0).getElement(new DummyCacheKey(0L)));
+    assertEquals(1, subscriber.events.get(0).getAddedKeys().size());
+  }
+
+  private static class RecordingSubscriber implements Flow.Subscriber<CommitEvent<DummyCacheKey, DummyCacheElement>> {
+    private final long demand;
+    final List<CommitEvent<DummyCacheKey, DummyCacheElement>> events = new CopyOnWriteArrayList<CommitEvent<DummyCacheKey, DummyCacheElement>>();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    RecordingSubscriber(long demand) {
+      this.demand = demand;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+      subscription.request(demand);
+    }
+
+    public void onNext(CommitEvent<DummyCacheKey, DummyCacheElement> event) {
+      events.add(event);
+    }
+
+    public void onError(Throwable t) {
+      error.set(t);
+      done.countDown();
+    }
+
+    public void onComplete() {
+      done.countDown();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.*;
+import com.github.pojomvcc.codec.PojoCodec;
+import com.github.pojomvcc.dummy.DummyCacheElement;
+import com.github.pojomvcc.dummy.DummyCacheElementFactory;
+import com.github.pojomvcc.dummy.DummyCacheKey;
+import com.github.pojomvcc.impl.RootObjectCacheImpl;
+import com.github.pojomvcc.impl.ShardedRootObjectCacheImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class CheckpointTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final PojoCodec<DummyCacheKey, DummyCacheElement> codec = new PojoCodec<DummyCacheKey, DummyCacheElement>(DummyCacheKey.class, DummyCacheElement.class);
+
+  @Test
+  public void testWriteAndRestore() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = createCache();
+    insert(root, 0, 1000);
+
+    File file = new File(folder.getRoot(), "checkpoint");
+    Checkpoint<DummyCacheKey, DummyCacheElement> checkpoint = new Checkpoint<DummyCacheKey, DummyCacheElement>(codec);
+    long revision = checkpoint.write(root, file, 4);
+
+    RootObjectCache<DummyCacheKey, DummyCacheElement> restored = createCache();
+    assertEquals(revision, checkpoint.restore(restored, file, 4));
+    assertEquals(revision, restored.getRevision());
+    assertEquals(root.getKeySet(), restored.getKeySet());
+
+    for (DummyCacheKey key : root.getKeySet()) {
+      assertEquals(root.getElement(key).getValue(), restored.getElement(key).getValue());
+    }
+
+    // commits carry on from the checkpoint revision.
+    assertEquals(revision + 1, insert(restored, 1000, 1));
+  }
+
+  @Test
+  public void testRestoreIntoShardedCache() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = createCache();
+    insert(root, 0, 1000);
+
+    File file = new File(folder.getRoot(), "checkpoint");
+    Checkpoint<DummyCacheKey, DummyCacheElement> checkpoint = new Checkpoint<DummyCacheKey, DummyCacheElement>(codec);
+    checkpoint.write(root, file, 8);
+
+    // writing over an existing checkpoint replaces it.
+    insert(root, 1000, 10);
+    long revision = checkpoint.write(root, file, 8);
+
+    RootObjectCache<DummyCacheKey, DummyCacheElement> restored = new ShardedRootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory(), 4);
+    assertEquals(revision, checkpoint.restore(restored, file, 4));
+    assertEquals(root.getKeySet(), restored.getKeySet());
+
+    for (DummyCacheKey key : root.getKeySet()) {
+      assertEquals(root.getElement(key).getValue(), restored.getElement(key).getValue());
+    }
+
+    assertEquals(revision + 1, insert(restored, 1010, 1));
+    assertFalse(new File(folder.getRoot(), "checkpoint.tmp").exists());
+  }
+
+  @Test(expected = ObjectCacheException.class)
+  public void testRestoreIntoNonEmptyCache() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = createCache();
+    insert(root, 0, 10);
+
+    File file = new File(folder.getRoot(), "checkpoint");
+    Checkpoint<DummyCacheKey, DummyCacheElement> checkpoint = new Checkpoint<DummyCacheKey, DummyCacheElement>(codec);
+    checkpoint.write(root, file);
+    checkpoint.restore(root, file);
+  }
+
+  @Test
+  public void testCorruptTableIsRejected() throws IOException {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = createCache();
+    insert(root, 0, 100);
+
+    File file = new File(folder.getRoot(), "checkpoint");
+    Checkpoint<DummyCacheKey, DummyCacheElement> checkpoint = new Checkpoint<DummyCacheKey, DummyCacheElement>(codec);
+    checkpoint.write(root, file, 4);
+
+    // change the number of pairs in the first partition, which would otherwise silently drop an element.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long position = raf.length() - 20 - 4 * 24 + 16;
+      raf.seek(position);
+      int count = raf.readInt();
+      raf.seek(position);
+      raf.writeInt(count - 1);
+    }
+    finally {
+      raf.close();
+    }
+
+    try {
+      checkpoint.restore(createCache(), file, 4);
+      fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+  }
+
+  @Test
+  public void testFailedWriteKeepsPreviousCheckpoint() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = createCache();
+    long revision = insert(root, 0, 10);
+
+    File file = new File(folder.getRoot(), "checkpoint");
+    new Checkpoint<DummyCacheKey, DummyCacheElement>(codec).write(root, file);
+    insert(root, 10, 10);
+
+    Checkpoint<DummyCacheKey, DummyCacheElement> failing = new Checkpoint<DummyCacheKey, DummyCacheElement>(new CacheElementCodec<DummyCacheKey, DummyCacheElement>() {
+      public void encodeKey(DummyCacheKey key, ByteBuffer buffer) {
+        codec.encodeKey(key, buffer);
+      }
+
+      public DummyCacheKey decodeKey(ByteBuffer buffer) {
+        return codec.decodeKey(buffer);
+      }
+
+      public void encode(DummyCacheElement element, ByteBuffer buffer) {
+        throw new IllegalStateException("Cannot encode " + element.getValue() + ".");
+      }
+
+      public DummyCacheElement decode(ByteBuffer buffer) {
+        return codec.decode(buffer);
+      }
+
+      public int estimateSize(DummyCacheElement element) {
+        return codec.estimateSize(element);
+      }
+    });
+
+    try {
+      failing.write(root, file);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected.
+    }
+
+    // the partly written checkpoint is removed and the previous checkpoint is left in place.
+    assertFalse(new File(folder.getRoot(), "checkpoint.tmp").exists());
+
+    RootObjectCache<DummyCacheKey, DummyCacheElement> restored = createCache();
+    assertEquals(revision, new Checkpoint<DummyCacheKey, DummyCacheElement>(codec).restore(restored, file));
+    assertEquals(10, restored.size());
+  }
+
+  @Test
+  public void testRestoreThenReplayLog() {
+    File logDirectory = new File(folder.getRoot(), "log");
+    File file = new File(folder.getRoot(), "checkpoint");
+    Checkpoint<DummyCacheKey, DummyCacheElement> checkpoint = new Checkpoint<DummyCacheKey, DummyCacheElement>(codec);
+
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> log = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(logDirectory, codec, SyncPolicy.BATCH(100), 4096);
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = createCache();
+    root.setCommitLog(log);
+
+    for (int i = 0; i < 10; i++) {
+      insert(root, i * 10, 10);
+    }
+
+    long revision = checkpoint.write(root, file);
+    log.truncate(revision);
+
+    for (int i = 10; i < 15; i++) {
+      insert(root, i * 10, 10);
+    }
+
+    log.close();
+
+    RootObjectCache<DummyCacheKey, DummyCacheElement> restored = createCache();
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> reopened = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(logDirectory, codec, SyncPolicy.BATCH(100), 4096);
+
+    assertEquals(revision, checkpoint.restore(restored, file));
+    assertEquals(root.getRevision(), reopened.recover(restored));
+    assertEquals(root.getRevision(), restored.getRevision());
+    assertEquals(root.getKeySet(), restored.getKeySet());
+    reopened.close();
+  }
+
+  private RootObjectCache<DummyCacheKey, DummyCacheElement> createCache() {
+    return new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+  }
+
+  private long insert(RootObjectCache<DummyCacheKey, DummyCacheElement> root, int from, int count) {
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+
+    for (int i = from; i < from + count; i++) {
+      DummyCacheElement element = new DummyCacheElement();
+      element.setValue("value " + i);
+      rev.addElement(new DummyCacheKey((long) i), element);
+    }
+
+    long revision = root.commit(rev);
+    rev.close();
+    return revision;
+  }
+}
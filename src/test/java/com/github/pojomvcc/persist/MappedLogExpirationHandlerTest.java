@@ -0,0 +1,255 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.*;
+import com.github.pojomvcc.impl.RootObjectCacheImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class MappedLogExpirationHandlerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRetrieveFloor() {
+    MappedLogExpirationHandler<Long, String> handler = new MappedLogExpirationHandler<Long, String>(folder.getRoot(), 512);
+
+    for (long key = 0; key < 20; key++) {
+      handler.versionsExpired(key, versions(key, 1L, "one", 3L, "three", 5L, null));
+    }
+
+    for (long key = 0; key < 20; key++) {
+      assertNull(handler.retrieve(key, 0L));
+      assertEquals("one", handler.retrieve(key, 2L).getElement());
+      assertEquals("three", handler.retrieve(key, 4L).getElement());
+      assertEquals(CacheRevisionType.DELETED, handler.retrieve(key, 9L).getState());
+    }
+
+    assertNull(handler.retrieve(100L, 4L));
+
+    // the segments are small, so the log will have been split over many segments.
+    assertTrue(folder.getRoot().list().length > 2);
+    handler.close();
+
+    MappedLogExpirationHandler<Long, String> reopened = new MappedLogExpirationHandler<Long, String>(folder.getRoot(), 512);
+    assertEquals("three", reopened.retrieve(7L, 4L).getElement());
+    assertEquals("one", reopened.retrieve(19L, 1L).getElement());
+    reopened.close();
+  }
+
+  @Test
+  public void testReopenWithEnumKeys() throws Exception {
+    MappedLogExpirationHandler<Colour, String> handler = new MappedLogExpirationHandler<Colour, String>(folder.getRoot(), 512);
+
+    for (Colour colour : Colour.values()) {
+      List<CacheElementRevision<Colour, String>> versions = new ArrayList<CacheElementRevision<Colour, String>>();
+      versions.add(new CacheElementRevision<Colour, String>(colour, colour.name().toLowerCase(), 1L, CacheRevisionType.ADDED));
+      handler.versionsExpired(colour, versions);
+    }
+
+    handler.close();
+
+    // an enum's hashCode() is different in every JVM, so the log has to be read back in another one.
+    Process reader = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+        "-cp", System.getProperty("java.class.path"), EnumKeyReader.class.getName(), folder.getRoot().getPath())
+        .redirectErrorStream(true)
+        .start();
+
+    String output = new String(readFully(reader.getInputStream()), "UTF-8").trim();
+
+    assertEquals(output, 0, reader.waitFor());
+    assertEquals("red green blue", output);
+  }
+
+  @Test
+  public void testCompact() {
+    MappedLogExpirationHandler<Long, String> handler = new MappedLogExpirationHandler<Long, String>(folder.getRoot(), 512);
+
+    for (long key = 0; key < 20; key++) {
+      handler.versionsExpired(key, versions(key, 1L, "one", 3L, "three", 5L, "five"));
+    }
+
+    long before = size(folder.getRoot());
+    handler.compact(4L);
+
+    // the versions at revision 1 are not visible at or after the horizon, only the last key can still be in the
+    // segment that is being appended to, which isn't compacted.
+    for (long key = 0; key < 19; key++) {
+      assertNull(handler.retrieve(key, 2L));
+      assertEquals("three", handler.retrieve(key, 4L).getElement());
+      assertEquals("five", handler.retrieve(key, 5L).getElement());
+    }
+
+    // the compacted segments are only as large as the records that survived.
+    assertTrue(size(folder.getRoot()) < before);
+    handler.close();
+
+    MappedLogExpirationHandler<Long, String> reopened = new MappedLogExpirationHandler<Long, String>(folder.getRoot(), 512);
+    assertEquals("three", reopened.retrieve(3L, 4L).getElement());
+    assertEquals("five", reopened.retrieve(3L, 9L).getElement());
+    reopened.close();
+  }
+
+  @Test
+  public void testConcurrentCompaction() throws Exception {
+    final MappedLogExpirationHandler<Long, String> handler = new MappedLogExpirationHandler<Long, String>(folder.getRoot(), 512);
+    handler.startCompaction(1L, TimeUnit.MILLISECONDS, 2L);
+
+    final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+    Thread[] compactors = new Thread[4];
+
+    for (int i = 0; i < compactors.length; i++) {
+      compactors[i] = new Thread() {
+        public void run() {
+          try {
+            for (long horizon = 0; horizon < 200; horizon++) {
+              handler.compact(horizon);
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      };
+      compactors[i].start();
+    }
+
+    for (long revision = 1; revision < 200; revision += 2) {
+      for (long key = 0; key < 5; key++) {
+        handler.versionsExpired(key, versions(key, revision, "value " + revision));
+      }
+    }
+
+    for (Thread compactor : compactors) {
+      compactor.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    for (long key = 0; key < 5; key++) {
+      assertEquals("value 199", handler.retrieve(key, 200L).getElement());
+    }
+
+    handler.close();
+  }
+
+  @Test
+  public void testRootObjectCacheRetrievesExpiredHistory() {
+    MappedLogExpirationHandler<Long, String> handler = new MappedLogExpirationHandler<Long, String>(folder.getRoot());
+    RootObjectCache<Long, String> root = new RootObjectCacheImpl<Long, String>(new StringFactory());
+    root.setCacheExpiry(new CacheExpiry<Long, String>(CacheExpiryPolicy.<Long, String>NO_LONGER_USED(), handler));
+
+    RevisionObjectCache<Long, String> rev = root.checkout();
+    rev.addElement(1L, "first");
+    rev.addElement(2L, "removed");
+    root.commit(rev);
+    rev.close();
+
+    rev = root.checkout();
+    rev.addElement(3L, "third");
+    root.commit(rev);
+    rev.close();
+
+    rev = root.checkout();
+    rev.removeElement(2L);
+    rev.addElement(4L, "fourth");
+    root.commit(rev);
+    rev.close();
+
+    RevisionObjectCache<Long, String> modify = root.checkout();
+    // remove the first key as well, so that all of its history has to come from the log.
+    modify.removeElement(1L);
+    root.commit(modify);
+    modify.close();
+
+    // the revisions before the head have all expired, so the old versions must come from the log.
+    assertEquals("first", root.getElementWithRevision(1L, 1L));
+    assertEquals("removed", root.getElementWithRevision(2L, 2L));
+    assertNull(root.getElementWithRevision(3L, 2L));
+    assertNull(root.getElement(1L));
+    handler.close();
+  }
+
+  private List<CacheElementRevision<Long, String>> versions(long key, Object... revisionsAndElements) {
+    List<CacheElementRevision<Long, String>> versions = new ArrayList<CacheElementRevision<Long, String>>();
+
+    for (int i = 0; i < revisionsAndElements.length; i += 2) {
+      String element = (String) revisionsAndElements[i + 1];
+      CacheRevisionType type = element == null ? CacheRevisionType.DELETED : (i == 0 ? CacheRevisionType.ADDED : CacheRevisionType.MODIFIED);
+
+      versions.add(new CacheElementRevision<Long, String>(key, element, (Long) revisionsAndElements[i], type));
+    }
+
+    return versions;
+  }
+
+  private long size(File directory) {
+    long size = 0;
+
+    for (File file : directory.listFiles()) {
+      size += file.length();
+    }
+
+    return size;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+
+  private enum Colour {
+    RED, GREEN, BLUE
+  }
+
+  /**
+   * Reopens the log written by {@link MappedLogExpirationHandlerTest#testReopenWithEnumKeys()} and prints the
+   * element of each {@link Colour}.
+   */
+  public static class EnumKeyReader {
+    public static void main(String[] args) {
+      MappedLogExpirationHandler<Colour, String> handler = new MappedLogExpirationHandler<Colour, String>(new File(args[0]), 512);
+      StringBuilder elements = new StringBuilder();
+
+      for (Colour colour : Colour.values()) {
+        CacheElementRevision<Colour, String> version = handler.retrieve(colour, 1L);
+        elements.append(elements.length() == 0 ? "" : " ").append(version == null ? null : version.getElement());
+      }
+
+      handler.close();
+      System.out.println(elements);
+    }
+  }
+
+  /**
+   * A {@link CacheElementFactory} for immutable {@code String}s.
+   */
+  private static class StringFactory implements CacheElementFactory<String> {
+    public String createClone(String ele) {
+      return ele;
+    }
+
+    public String merge(String inRepository, String changes) {
+      return changes;
+    }
+  }
+}
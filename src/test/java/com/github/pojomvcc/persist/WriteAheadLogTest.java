@@ -0,0 +1,145 @@
+package com.github.pojomvcc.persist;
+
+import com.github.pojomvcc.*;
+import com.github.pojomvcc.codec.PojoCodec;
+import com.github.pojomvcc.dummy.DummyCacheElement;
+import com.github.pojomvcc.dummy.DummyCacheElementFactory;
+import com.github.pojomvcc.dummy.DummyCacheKey;
+import com.github.pojomvcc.impl.RootObjectCacheImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class WriteAheadLogTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final PojoCodec<DummyCacheKey, DummyCacheElement> codec = new PojoCodec<DummyCacheKey, DummyCacheElement>(DummyCacheKey.class, DummyCacheElement.class);
+
+  @Test
+  public void testRecover() {
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> log = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(folder.getRoot(), codec, SyncPolicy.BATCH(2), 256);
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    root.setCommitLog(log);
+
+    for (long i = 0; i < 10; i++) {
+      commit(root, i, "value " + i, null);
+    }
+
+    long modified = commit(root, 3L, "modified", 5L);
+    long head = commit(root, 10L, "ten", null);
+    log.close();
+
+    // the segments are small, so the log will have been split over many segments.
+    assertTrue(folder.getRoot().list().length > 2);
+
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> reopened = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(folder.getRoot(), codec, SyncPolicy.EVERY_COMMIT(), 256);
+    RootObjectCache<DummyCacheKey, DummyCacheElement> recovered = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+
+    assertEquals(head, reopened.recover(recovered));
+    assertEquals(head, recovered.getRevision());
+    assertEquals(root.getKeySet(), recovered.getKeySet());
+    assertEquals("modified", recovered.getElement(new DummyCacheKey(3L)).getValue());
+    assertNull(recovered.getElement(new DummyCacheKey(5L)));
+    assertEquals("value 5", recovered.getElementWithRevision(modified - 1, new DummyCacheKey(5L)).getValue());
+
+    // commits carry on from the recovered revision.
+    recovered.setCommitLog(reopened);
+    assertEquals(head + 1, commit(recovered, 11L, "eleven", null));
+    reopened.close();
+  }
+
+  @Test
+  public void testTornRecordIsDiscarded() throws IOException {
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> log = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(folder.getRoot(), codec);
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    root.setCommitLog(log);
+
+    commit(root, 1L, "one", null);
+    long head = commit(root, 2L, "two", null);
+    log.close();
+
+    // simulate a record that was only partly written when the process stopped.
+    File segment = folder.getRoot().listFiles()[0];
+    FileOutputStream out = new FileOutputStream(segment, true);
+    out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+    out.close();
+
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> reopened = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(folder.getRoot(), codec);
+    RootObjectCache<DummyCacheKey, DummyCacheElement> recovered = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+
+    assertEquals(head, reopened.recover(recovered));
+    recovered.setCommitLog(reopened);
+    commit(recovered, 3L, "three", null);
+    reopened.close();
+
+    RootObjectCache<DummyCacheKey, DummyCacheElement> again = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    WriteAheadLog<DummyCacheKey, DummyCacheElement> last = new WriteAheadLog<DummyCacheKey, DummyCacheElement>(folder.getRoot(), codec);
+    assertEquals(head + 1, last.recover(again));
+    assertEquals("three", again.getElement(new DummyCacheKey(3L)).getValue());
+    last.close();
+  }
+
+  @Test
+  public void testFailedLogStopsCommits() {
+    RootObjectCache<DummyCacheKey, DummyCacheElement> root = new RootObjectCacheImpl<DummyCacheKey, DummyCacheElement>(new DummyCacheElementFactory());
+    root.setCommitLog(new CommitLog<DummyCacheKey, DummyCacheElement>() {
+      public void append(CommitRecord<DummyCacheKey, DummyCacheElement> record) {
+        throw new ObjectCacheException("disk full");
+      }
+    });
+
+    try {
+      commit(root, 1L, "one", null);
+      fail();
+    } catch (ObjectCacheException e) {
+      // expected.
+    }
+
+    assertEquals(0L, root.getRevision());
+    assertNull(root.getElement(new DummyCacheKey(1L)));
+
+    root.setCommitLog(null);
+
+    try {
+      commit(root, 2L, "two", null);
+      fail();
+    } catch (ObjectCacheException e) {
+      // the cache no longer matches its log, so it must not accept any more commits.
+    }
+  }
+
+  /**
+   * Commits a single change, setting the value of the provided key (adding it if required) and optionally
+   * removing another key.
+   */
+  private long commit(RootObjectCache<DummyCacheKey, DummyCacheElement> root, long key, String value, Long remove) {
+    RevisionObjectCache<DummyCacheKey, DummyCacheElement> rev = root.checkout();
+    DummyCacheElement element = rev.getElement(new DummyCacheKey(key));
+
+    if (element == null) {
+      element = new DummyCacheElement();
+      element.setValue(value);
+      rev.addElement(new DummyCacheKey(key), element);
+    } else {
+      element.setValue(value);
+    }
+
+    if (remove != null) {
+      rev.removeElement(new DummyCacheKey(remove));
+    }
+
+    long revision = root.commit(rev);
+    rev.close();
+    return revision;
+  }
+}
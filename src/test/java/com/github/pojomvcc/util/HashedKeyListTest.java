@@ -0,0 +1,68 @@
+package com.github.pojomvcc.util;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class HashedKeyListTest {
+  @Test
+  public void testRemoveKeepsOrder() {
+    HashedKeyList<Long> list = new HashedKeyList<Long>();
+    for (long i = 0; i < 10; i++) {
+      assertTrue(list.add(i));
+    }
+
+    assertFalse(list.add(3L));
+    assertTrue(list.remove(3L));
+    assertTrue(list.remove(7L));
+    assertFalse(list.remove(7L));
+
+    assertEquals(8, list.size());
+    assertFalse(list.contains(3L));
+    assertEquals(Arrays.asList(0L, 1L, 2L, 4L, 5L, 6L, 8L, 9L), new ArrayList<Long>(list));
+    assertEquals(3, list.indexOf(4L));
+    assertEquals(Long.valueOf(8L), list.get(6));
+    assertEquals(-1, list.indexOf(7L));
+  }
+
+  @Test
+  public void testRemoveWhilstIterating() {
+    HashedKeyList<Long> list = new HashedKeyList<Long>();
+    for (long i = 0; i < 10; i++) {
+      list.add(i);
+    }
+
+    for (Iterator<Long> it = list.iterator(); it.hasNext(); ) {
+      Long key = it.next();
+      if (key % 2 == 0) {
+        it.remove();
+      }
+    }
+
+    assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), new ArrayList<Long>(list));
+  }
+
+  @Test
+  public void testBulkRemoveAndReAdd() {
+    HashedKeyList<Long> list = new HashedKeyList<Long>();
+    for (long i = 0; i < 100000; i++) {
+      list.add(i);
+    }
+
+    for (long i = 0; i < 100000; i++) {
+      list.remove(i);
+    }
+
+    assertTrue(list.isEmpty());
+
+    list.add(5L);
+    list.add(6L);
+    assertEquals(Arrays.asList(5L, 6L), new ArrayList<Long>(list));
+    assertEquals(1, list.indexOf(6L));
+  }
+}
@@ -0,0 +1,218 @@
+package com.github.pojomvcc.util;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Aidan Morgan
+ */
+public class PersistentHashSetTest {
+  @Test
+  public void testPlusAndMinus() {
+    PersistentHashSet<Long> empty = PersistentHashSet.empty();
+    PersistentHashSet<Long> one = empty.plus(1L);
+    PersistentHashSet<Long> two = one.plus(2L);
+
+    assertEquals(0, empty.size());
+    assertEquals(1, one.size());
+    assertEquals(2, two.size());
+    assertTrue(two.contains(1L));
+    assertTrue(two.contains(2L));
+    assertFalse(one.contains(2L));
+
+    // adding an existing key or removing a missing key should not create a new set.
+    assertSame(two, two.plus(1L));
+    assertSame(two, two.minus(3L));
+
+    PersistentHashSet<Long> removed = two.minus(1L);
+    assertEquals(1, removed.size());
+    assertFalse(removed.contains(1L));
+    assertTrue(two.contains(1L));
+  }
+
+  @Test
+  public void testCollidingHashes() {
+    PersistentHashSet<CollidingKey> set = PersistentHashSet.empty();
+
+    for (int i = 0; i < 10; i++) {
+      set = set.plus(new CollidingKey(i));
+    }
+
+    assertEquals(10, set.size());
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(set.contains(new CollidingKey(i)));
+    }
+
+    for (int i = 0; i < 10; i += 2) {
+      set = set.minus(new CollidingKey(i));
+    }
+
+    assertEquals(5, set.size());
+    assertEquals(5, new HashSet<CollidingKey>(set).size());
+    assertFalse(set.contains(new CollidingKey(0)));
+    assertTrue(set.contains(new CollidingKey(1)));
+  }
+
+  @Test
+  public void testRandomOperationsMatchHashSet() {
+    Random random = new Random(42);
+    Set<Integer> expected = new HashSet<Integer>();
+    PersistentHashSet<Integer> actual = PersistentHashSet.empty();
+
+    for (int i = 0; i < 100000; i++) {
+      Integer key = random.nextInt(20000);
+
+      if (random.nextBoolean()) {
+        expected.add(key);
+        actual = actual.plus(key);
+      } else {
+        expected.remove(key);
+        actual = actual.minus(key);
+      }
+    }
+
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected, actual);
+    assertEquals(expected, new HashSet<Integer>(actual));
+  }
+
+  @Test
+  public void testOlderVersionsAreUnaffected() {
+    PersistentHashSet<Integer> base = PersistentHashSet.empty();
+
+    for (int i = 0; i < 1000; i++) {
+      base = base.plus(i);
+    }
+
+    PersistentHashSet<Integer> modified = base.minus(500).plus(1000);
+
+    assertEquals(1000, base.size());
+    assertTrue(base.contains(500));
+    assertFalse(base.contains(1000));
+
+    assertEquals(1000, modified.size());
+    assertFalse(modified.contains(500));
+    assertTrue(modified.contains(1000));
+  }
+
+  @Test
+  public void testSpliteratorSplitsExactly() {
+    PersistentHashSet<Integer> set = PersistentHashSet.empty();
+    for (int i = 0; i < 10000; i++) {
+      set = set.plus(i);
+    }
+    for (int i = 0; i < 10000; i += 7) {
+      set = set.minus(i);
+    }
+
+    Spliterator<Integer> spliterator = set.spliterator();
+    assertTrue(spliterator.hasCharacteristics(Spliterator.SUBSIZED));
+
+    // every split should report exactly the number of keys it visits.
+    List<Spliterator<Integer>> parts = new ArrayList<Spliterator<Integer>>();
+    parts.add(spliterator);
+    for (int i = 0; i < 6; i++) {
+      List<Spliterator<Integer>> next = new ArrayList<Spliterator<Integer>>();
+      for (Spliterator<Integer> part : parts) {
+        Spliterator<Integer> prefix = part.trySplit();
+        if (prefix != null) {
+          next.add(prefix);
+        }
+        next.add(part);
+      }
+      parts = next;
+    }
+    assertTrue(parts.size() > 32);
+
+    final Set<Integer> seen = new HashSet<Integer>();
+    for (Spliterator<Integer> part : parts) {
+      final int[] count = new int[1];
+      long expected = part.estimateSize();
+      part.forEachRemaining(new Consumer<Integer>() {
+        public void accept(Integer key) {
+          assertTrue(seen.add(key));
+          count[0]++;
+        }
+      });
+      assertEquals(expected, count[0]);
+    }
+
+    assertEquals(set, seen);
+    assertEquals(set.size(), StreamSupport.stream(set.spliterator(), true).count());
+  }
+
+  @Test
+  public void testParallelBuildMatchesSequential() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+
+    try {
+      List<Integer> keys = new ArrayList<Integer>();
+      PersistentHashSet<Integer> sequential = PersistentHashSet.empty();
+
+      for (int i = 0; i < 10000; i++) {
+        keys.add(i);
+        sequential = sequential.plus(i);
+      }
+
+      // duplicates are only counted once.
+      keys.add(1);
+
+      PersistentHashSet<Integer> parallel = PersistentHashSet.of(keys, pool);
+      assertEquals(sequential.size(), parallel.size());
+      assertEquals(sequential, parallel);
+      assertEquals(sequential.size(), StreamSupport.stream(parallel.spliterator(), false).count());
+
+      // the result is an ordinary set that can be modified like any other.
+      assertFalse(parallel.minus(5).contains(5));
+      assertTrue(parallel.plus(10000).contains(10000));
+
+      List<CollidingKey> colliding = new ArrayList<CollidingKey>();
+      for (int i = 0; i < 10; i++) {
+        colliding.add(new CollidingKey(i));
+      }
+
+      PersistentHashSet<CollidingKey> collided = PersistentHashSet.of(colliding, pool);
+      assertEquals(10, collided.size());
+      assertEquals(new HashSet<CollidingKey>(colliding), collided);
+
+      assertTrue(PersistentHashSet.of(Collections.singletonList(1), pool).contains(1));
+      assertTrue(PersistentHashSet.of(Collections.<Integer>emptyList(), pool).isEmpty());
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testMutationNotSupported() {
+    PersistentHashSet.<Integer>empty().plus(1).add(2);
+  }
+
+  /**
+   * A key where groups of instances share the same hash code.
+   */
+  private static class CollidingKey {
+    private final int value;
+
+    CollidingKey(int value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof CollidingKey && ((CollidingKey) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      return value % 3;
+    }
+  }
+}